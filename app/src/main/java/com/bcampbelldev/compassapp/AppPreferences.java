@@ -0,0 +1,236 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The app's preferences, read from disk once per process on a background thread and cached, so
+ * resuming an activity never waits for the preferences file.
+ * <p>
+ * All methods must be called on the main thread. Setters update the cache and write the
+ * preference in the background.
+ */
+final class AppPreferences {
+
+    // Whether the user has opted to not show the calibration dialog again.
+    private static final String DIALOG_STATUS = "dialog_status";
+
+    // Whether the latency overlay is shown.
+    private static final String LATENCY_OVERLAY = "latency_overlay";
+
+    // Whether CameraCompassActivity uses the legacy camera API over Camera2.
+    private static final String LEGACY_CAMERA = "legacy_camera";
+
+    // Whether headings are relative to true north rather than magnetic north.
+    private static final String TRUE_NORTH = "true_north";
+
+    // Whether the nearest waypoints are shown.
+    private static final String WAYPOINTS = "waypoints";
+
+    // Number of points of the compass the heading is named with.
+    private static final String COMPASS_POINTS = "compass_points";
+
+    private static boolean loaded;
+    private static boolean loading;
+    private static final List<Runnable> pending = new ArrayList<>();
+
+    private static boolean dialogDismissed;
+    private static boolean latencyOverlay;
+    private static boolean legacyCamera;
+    private static boolean trueNorth;
+    private static boolean waypoints;
+    private static int compassPoints = CompassPoints.THIRTY_TWO;
+
+
+    private AppPreferences() {}
+
+
+    /**
+     * Load the preferences in the background, if they have not been loaded yet.
+     *
+     * @param context any context of the app
+     * @param onLoaded run on the main thread once the preferences are loaded, straight away if
+     *                 they already are
+     */
+    static void load(Context context, Runnable onLoaded) {
+        if (loaded) {
+            onLoaded.run();
+            return;
+        }
+        pending.add(onLoaded);
+        if (loading) {
+            return;
+        }
+        loading = true;
+
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+                final boolean dialog = prefs.getBoolean(DIALOG_STATUS, false);
+                final boolean overlay = prefs.getBoolean(LATENCY_OVERLAY, false);
+                final boolean legacy = prefs.getBoolean(LEGACY_CAMERA, false);
+                final boolean north = prefs.getBoolean(TRUE_NORTH, false);
+                final boolean targets = prefs.getBoolean(WAYPOINTS, false);
+                final int points = prefs.getInt(COMPASS_POINTS, CompassPoints.THIRTY_TWO);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!loaded) {
+                            apply(dialog, overlay, legacy, north, targets, points);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Load the preferences on the calling thread if they have not been loaded yet. For the rare
+     * case of an activity that needs them in <code>onCreate</code> without the main activity
+     * having started first.
+     *
+     * @param context any context of the app
+     */
+    static void loadNow(Context context) {
+        if (loaded) {
+            return;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        apply(prefs.getBoolean(DIALOG_STATUS, false), prefs.getBoolean(LATENCY_OVERLAY, false),
+                prefs.getBoolean(LEGACY_CAMERA, false), prefs.getBoolean(TRUE_NORTH, false),
+                prefs.getBoolean(WAYPOINTS, false),
+                prefs.getInt(COMPASS_POINTS, CompassPoints.THIRTY_TWO));
+    }
+
+
+    private static void apply(boolean dialog, boolean overlay, boolean legacy, boolean north,
+                              boolean targets, int points) {
+        dialogDismissed = dialog;
+        latencyOverlay = overlay;
+        legacyCamera = legacy;
+        trueNorth = north;
+        waypoints = targets;
+        compassPoints = points;
+        loaded = true;
+        loading = false;
+
+        for (Runnable runnable : pending) {
+            runnable.run();
+        }
+        pending.clear();
+    }
+
+
+    /**
+     * @return <code>true</code> if the calibration dialog should no longer be shown;
+     *         <code>false</code> otherwise.
+     */
+    static boolean isDialogDismissed() {
+        return dialogDismissed;
+    }
+
+
+    static void setDialogDismissed(Context context, boolean dismissed) {
+        dialogDismissed = dismissed;
+        write(context, DIALOG_STATUS, dismissed);
+    }
+
+
+    /**
+     * @return <code>true</code> if the latency overlay is shown;
+     *         <code>false</code> otherwise.
+     */
+    static boolean isLatencyOverlayShown() {
+        return latencyOverlay;
+    }
+
+
+    static void setLatencyOverlayShown(Context context, boolean shown) {
+        latencyOverlay = shown;
+        write(context, LATENCY_OVERLAY, shown);
+    }
+
+
+    /**
+     * @return <code>true</code> if the legacy camera API is used;
+     *         <code>false</code> if Camera2 is.
+     */
+    static boolean isLegacyCamera() {
+        return legacyCamera;
+    }
+
+
+    static void setLegacyCamera(Context context, boolean legacy) {
+        legacyCamera = legacy;
+        write(context, LEGACY_CAMERA, legacy);
+    }
+
+
+    /**
+     * @return <code>true</code> if headings are relative to true north;
+     *         <code>false</code> if they are relative to magnetic north.
+     */
+    static boolean isTrueNorth() {
+        return trueNorth;
+    }
+
+
+    static void setTrueNorth(Context context, boolean enabled) {
+        trueNorth = enabled;
+        write(context, TRUE_NORTH, enabled);
+    }
+
+
+    /**
+     * @return <code>true</code> if the nearest waypoints are shown;
+     *         <code>false</code> otherwise.
+     */
+    static boolean isWaypointsShown() {
+        return waypoints;
+    }
+
+
+    static void setWaypointsShown(Context context, boolean shown) {
+        waypoints = shown;
+        write(context, WAYPOINTS, shown);
+    }
+
+
+    /**
+     * @return number of points of the compass the heading is named with, 4, 8, 16 or 32
+     */
+    static int getCompassPoints() {
+        return compassPoints;
+    }
+
+
+    static void setCompassPoints(Context context, int points) {
+        compassPoints = points;
+        // The preferences are loaded by now, so this does not wait for the disk.
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putInt(COMPASS_POINTS, points)
+                .apply();
+    }
+
+
+    private static void write(Context context, String key, boolean value) {
+        // The preferences are loaded by now, so this does not wait for the disk.
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(key, value)
+                .apply();
+    }
+}
@@ -0,0 +1,263 @@
+package com.bcampbelldev.compassapp;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.util.SizeF;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.Collections;
+
+/**
+ * {@link CameraBackend} on the Camera2 API. The preview is streamed at the size and frame rate
+ * chosen in {@link #configure(int, int, boolean, int[])} rather than the device default, which is
+ * often the full sensor resolution at 30 fps.
+ */
+class Camera2Backend implements CameraBackend {
+
+    private static final String TAG = "Camera2Backend";
+
+    // Horizontal field of view in degrees assumed when the camera does not describe its optics.
+    private static final float DEFAULT_VIEW_ANGLE = 60f;
+
+    private final CameraManager cameraManager;
+    private Handler handler;
+    private Callback callback;
+
+    private String cameraId;
+    private CameraCharacteristics characteristics;
+    private CameraDevice device;
+    private CameraCaptureSession session;
+    private Range<Integer> fpsRange;
+
+    // The camera state callback of the current open request. Callbacks of earlier requests close
+    // the device they are handed.
+    private CameraDevice.StateCallback pendingOpen;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param context context used to get the camera service
+     */
+    Camera2Backend(Context context) {
+        cameraManager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+
+    @SuppressLint("MissingPermission") // Checked by the activity before opening the camera.
+    @Override
+    public void open(Handler handler, final Callback callback) {
+        this.handler = handler;
+        this.callback = callback;
+        try {
+            cameraId = getBackCamId();
+            if (cameraId == null) {
+                callback.onFailed(true);
+                return;
+            }
+            characteristics = cameraManager.getCameraCharacteristics(cameraId);
+
+            pendingOpen = new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    if (pendingOpen != this) {
+                        camera.close();
+                        return;
+                    }
+                    pendingOpen = null;
+                    device = camera;
+                    callback.onOpened();
+                }
+
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    onLost(this, camera);
+                }
+
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    Log.w(TAG, "Camera error " + error);
+                    onLost(this, camera);
+                }
+            };
+            cameraManager.openCamera(cameraId, pendingOpen, handler);
+        } catch (CameraAccessException | SecurityException e) {
+            Log.w(TAG, "Error opening camera: " + e.getMessage());
+            pendingOpen = null;
+            callback.onFailed(false);
+        }
+    }
+
+
+    private void onLost(CameraDevice.StateCallback request, CameraDevice camera) {
+        camera.close();
+        if (pendingOpen == request || device == camera) {
+            pendingOpen = null;
+            session = null;
+            device = null;
+            callback.onFailed(false);
+        }
+    }
+
+
+    @Override
+    public void configure(int viewWidth, int viewHeight, boolean powerSave, int[] outSize) {
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] sizes = map.getOutputSizes(SurfaceHolder.class);
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i].getWidth();
+            heights[i] = sizes[i].getHeight();
+        }
+        int size = PreviewConfig.chooseSize(widths, heights, viewWidth, viewHeight);
+        outSize[0] = widths[size];
+        outSize[1] = heights[size];
+
+        fpsRange = null;
+        if (powerSave) {
+            Range<Integer>[] ranges = characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            if (ranges != null) {
+                int[] mins = new int[ranges.length];
+                int[] maxes = new int[ranges.length];
+                for (int i = 0; i < ranges.length; i++) {
+                    mins[i] = ranges[i].getLower();
+                    maxes[i] = ranges[i].getUpper();
+                }
+                int range = PreviewConfig.choosePowerSaveFpsRange(
+                        mins, maxes, PreviewConfig.POWER_SAVE_MIN_FPS);
+                if (range >= 0) {
+                    fpsRange = ranges[range];
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Derived from the width of the sensor and the focal length of the lens. Devices that report
+     * neither get a typical phone camera's angle.
+     */
+    @Override
+    public float getViewAngle() {
+        SizeF sensor = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        float[] focalLengths =
+                characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        if (sensor == null || focalLengths == null || focalLengths.length == 0) {
+            return DEFAULT_VIEW_ANGLE;
+        }
+        float width = Math.max(sensor.getWidth(), sensor.getHeight());
+        return (float)Math.toDegrees(2 * Math.atan(width / (2 * focalLengths[0])));
+    }
+
+
+    @Override
+    public void startPreview(SurfaceHolder holder) throws Exception {
+        final Surface surface = holder.getSurface();
+        final CameraDevice camera = device;
+
+        camera.createCaptureSession(Collections.singletonList(surface),
+                new CameraCaptureSession.StateCallback() {
+                    @Override
+                    public void onConfigured(CameraCaptureSession captureSession) {
+                        if (device != camera) {
+                            captureSession.close();
+                            return;
+                        }
+                        session = captureSession;
+                        try {
+                            session.setRepeatingRequest(
+                                    buildPreviewRequest(camera, surface), null, handler);
+                        } catch (CameraAccessException | IllegalStateException e) {
+                            Log.w(TAG, "Error starting camera preview: " + e.getMessage());
+                        }
+                    }
+
+
+                    @Override
+                    public void onConfigureFailed(CameraCaptureSession captureSession) {
+                        Log.w(TAG, "Camera preview session could not be configured");
+                    }
+                }, handler);
+    }
+
+
+    private CaptureRequest buildPreviewRequest(CameraDevice camera, Surface surface)
+            throws CameraAccessException {
+        CaptureRequest.Builder request = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        request.addTarget(surface);
+
+        int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            for (int mode : afModes) {
+                if (mode == CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE) {
+                    request.set(CaptureRequest.CONTROL_AF_MODE, mode);
+                    break;
+                }
+            }
+        }
+        if (fpsRange != null) {
+            request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        return request.build();
+    }
+
+
+    @Override
+    public void stopPreview() {
+        if (session != null) {
+            try {
+                session.abortCaptures();
+            } catch (CameraAccessException | IllegalStateException e) {
+                // The session is closed below either way.
+            }
+            session.close();
+            session = null;
+        }
+    }
+
+
+    @Override
+    public void close() {
+        pendingOpen = null;
+        stopPreview();
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+    }
+
+
+    /**
+     * @return ID of the first rear-facing camera, or <code>null</code> if the device does not have
+     *         one
+     * @throws CameraAccessException if the camera service cannot be reached
+     */
+    private String getBackCamId() throws CameraAccessException {
+        for (String id : cameraManager.getCameraIdList()) {
+            Integer facing = cameraManager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        return null;
+    }
+}
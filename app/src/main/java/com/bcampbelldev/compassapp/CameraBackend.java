@@ -0,0 +1,83 @@
+package com.bcampbelldev.compassapp;
+
+import android.os.Handler;
+import android.view.SurfaceHolder;
+
+/**
+ * A camera API the {@link CameraController} can drive: the legacy
+ * <code>android.hardware.Camera</code> or Camera2. All methods are called on the camera thread,
+ * and callbacks are delivered there too.
+ */
+interface CameraBackend {
+
+    /**
+     * Told on the camera thread how opening the camera went.
+     */
+    interface Callback {
+
+        /**
+         * The camera is open and can be configured.
+         */
+        void onOpened();
+
+
+        /**
+         * The camera could not be opened, or was lost after opening.
+         *
+         * @param noRearCamera <code>true</code> if the device has no rear-facing camera;
+         *                     <code>false</code> otherwise.
+         */
+        void onFailed(boolean noRearCamera);
+    }
+
+
+    /**
+     * Start opening the rear-facing camera. The result is delivered to the callback, possibly
+     * before this returns.
+     *
+     * @param handler handler of the camera thread
+     * @param callback told how opening went
+     */
+    void open(Handler handler, Callback callback);
+
+
+    /**
+     * Choose the preview size and frame rate. Called once the camera is open.
+     *
+     * @param viewWidth width of the view showing the preview
+     * @param viewHeight height of the view showing the preview
+     * @param powerSave whether battery saver is on, in which case a lower frame rate is used
+     * @param outSize receives the chosen preview width and height, which the preview surface
+     *                should be sized to
+     */
+    void configure(int viewWidth, int viewHeight, boolean powerSave, int[] outSize);
+
+
+    /**
+     * @return horizontal field of view of the camera in degrees, across the long side of the
+     *         image. Called once the camera is configured
+     */
+    float getViewAngle();
+
+
+    /**
+     * Start streaming the preview to a surface.
+     *
+     * @param holder holder of the preview surface, sized as chosen by
+     *               {@link #configure(int, int, boolean, int[])}
+     * @throws Exception if the preview cannot be started
+     */
+    void startPreview(SurfaceHolder holder) throws Exception;
+
+
+    /**
+     * Stop streaming the preview. The surface is not used afterwards.
+     */
+    void stopPreview();
+
+
+    /**
+     * Stop the preview and release the camera, including one that is still opening.
+     */
+    void close();
+}
@@ -4,12 +4,6 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
-import android.hardware.Camera.CameraInfo;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
@@ -18,13 +12,17 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.animation.Animation;
-import android.view.animation.RotateAnimation;
 import android.widget.FrameLayout;
-import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.bcampbelldev.compassapp.heading.HeadingFormatter;
+import com.bcampbelldev.compassapp.heading.HeadingSample;
+import com.bcampbelldev.compassapp.heading.RotationMath;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import static android.util.DisplayMetrics.DENSITY_260;
 import static android.util.DisplayMetrics.DENSITY_280;
 import static android.util.DisplayMetrics.DENSITY_300;
@@ -44,33 +42,34 @@ import static android.util.DisplayMetrics.DENSITY_XXXHIGH;
  * It could be useful in the event that the user needs to follow a certain heading and wants to find
  * a landmark along that heading.
  */
-@SuppressWarnings("deprecation")
-public class CameraCompassActivity extends Activity implements SensorEventListener {
-    private Camera camera;
-    private CameraPreview camPreview;
+public class CameraCompassActivity extends Activity
+        implements HeadingTracker.Listener, CameraController.Listener, HeadingConnection.Callback {
+    private CameraController cameraController;
     private FrameLayout preview;
-    private int backCamId = 0;
-
-    private SensorManager mSensorManager;
 
-    private float[] rotationMatrixFromEvent = new float[16];
-    private float[] transformedRotationMatrix = new float[16];
-    private float[] orientation = new float[3];
-
-    protected RangeMap map = new RangeMap();
+    private HeadingConnection connection;
+    private LatencyMonitor latencyMonitor;
+    private WaypointSource waypointSource;
 
     private TextView headingView;
-    private ImageView compassView;
+    private TextView latencyOverlay;
+    private CompassRoseView compassView;
+    private PoiOverlayView poiOverlay;
+    private MagneticWarning magneticWarning;
+    private final HeadingFormatter headingFormatter = new HeadingFormatter();
 
     private static final int CAMERA_PERMISSIONS = 0;
-    protected float currentDegree = 0f;
+
+    // Sampling period of SensorManager.SENSOR_DELAY_GAME. Faster headings would not move the
+    // markers any more smoothly over a preview running at 30 frames per second at best.
+    private static final long GAME_PERIOD_MILLIS = 20;
 
 
     /**
      * For this activity to work the device must have a camera, specifically a rear-facing camera.
      * A camera check is done using {@link CameraCompassActivity#checkCameraHardware(Context)} and a
-     * rear-facing camera is detected using {@link CameraCompassActivity#getBackCamId()}. If a
-     * camera is found, the user must give camera permissions to use it.
+     * rear-facing camera is detected by the {@link CameraController} when it opens the camera. If
+     * a camera is found, the user must give camera permissions to use it.
      *
      * @param savedInstanceState saved state of the activity. <code>null</code> if state has not
      *                           been saved
@@ -88,48 +87,39 @@ public class CameraCompassActivity extends Activity implements SensorEventListen
             Toast.makeText(this, "This device does not have a camera", Toast.LENGTH_SHORT).show();
             finish();
         }
-        // If the device has a camera:
-        else {
-            // Check if camera permissions have been granted.
-            int permissionCheck = ContextCompat.checkSelfPermission(this,
-                    Manifest.permission.CAMERA);
-
-            // User has already granted camera permissions.
-            if (permissionCheck == PackageManager.PERMISSION_GRANTED) {
-                // Check if the device has a rear-facing camera.
-                backCamId = getBackCamId();
-                if (backCamId < 0) {
-                    Toast.makeText(this, "This feature is unavailable without a rear-facing camera",
-                            Toast.LENGTH_SHORT).show();
-
-                    finish();
-                }
-                // If the device has a rear-facing camera and camera permissions have been granted,
-                // open a connection to the camera.
-                try {
-                    releaseCamera();
-                    camera = Camera.open(backCamId);
-                    createPreview();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-            // Ask for required camera permissions if they haven't yet been given.
-            else {
-                ActivityCompat.requestPermissions(
-                        CameraCompassActivity.this,
-                        new String[]{Manifest.permission.CAMERA},
-                        CAMERA_PERMISSIONS);
-            }
+        // If the device has a camera, ask for camera permissions if they haven't yet been given.
+        // The camera itself is opened in onResume, on the camera thread.
+        else if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(
+                    CameraCompassActivity.this,
+                    new String[]{Manifest.permission.CAMERA},
+                    CAMERA_PERMISSIONS);
         }
 
-        // Setup the heading and compass Views and SensorManager.
+        // The preview surface is added straight away, so the compass is drawn while the camera
+        // is still opening.
+        // Normally already loaded by MainActivity.
+        AppPreferences.loadNow(this);
+        cameraController = new CameraController(this, AppPreferences.isLegacyCamera(), this);
+        preview = (FrameLayout)findViewById(R.id.camera_preview);
+        preview.addView(new CameraPreview(this, cameraController));
+
+        // Setup the heading and compass Views and the connection to the heading service.
         headingView = (TextView)findViewById(R.id.augReality_heading);
-        mSensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
-        compassView = (ImageView)findViewById(R.id.augCompass);
+        compassView = (CompassRoseView)findViewById(R.id.augCompass);
+        magneticWarning = new MagneticWarning((TextView)findViewById(R.id.magnetic_warning));
+
+        // The device is held upright in landscape mode with the screen facing the user.
+        // The markers must keep up with the device swinging round, which takes the gyroscope.
+        connection = new HeadingConnection(this, new HeadingService.Client(this,
+                RotationMath.AXIS_X, RotationMath.AXIS_Z, GAME_PERIOD_MILLIS, true, null), this);
+        latencyMonitor = new LatencyMonitor();
+        latencyOverlay = (TextView)findViewById(R.id.latency_overlay);
 
-        // Populate compass RangeMap
-        fillMap(map);
+        // Waypoints are turned on from MainActivity and marked where they are in the preview.
+        poiOverlay = (PoiOverlayView)findViewById(R.id.poi_overlay);
+        waypointSource = new WaypointSource(this, null, poiOverlay);
 
         // Adjust imageView margins
         ViewGroup.MarginLayoutParams params =
@@ -203,35 +193,15 @@ public class CameraCompassActivity extends Activity implements SensorEventListen
 
         switch (requestCode) {
             case CAMERA_PERMISSIONS:
-                // Camera permissions granted.
+                // Camera permissions granted. onResume, which follows, opens the camera.
                 if (grantResults.length > 0
                         && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-
-                    // Make sure the device has a rear-facing camera.
-                    backCamId = getBackCamId();
-                    if (backCamId < 0) {
-                        Toast.makeText(
-                                this,
-                                "This feature is unavailable without a rear-facing camera",
-                                Toast.LENGTH_SHORT).show();
-
-                        finish();
-                    }
-                    // If the device has a rear-facing camera, open a connection to it.
-                    try {
-                        releaseCamera();
-                        camera = Camera.open(backCamId);
-                        createPreview();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    break;
                 }
                 // Camera permissions denied.
-                else {
-                    Toast.makeText(this, "This feature is unavailable without camera permissions",
-                            Toast.LENGTH_SHORT).show();
-                    finish();
-                }
+                Toast.makeText(this, "This feature is unavailable without camera permissions",
+                        Toast.LENGTH_SHORT).show();
+                finish();
                 break;
 
             default:
@@ -253,178 +223,162 @@ public class CameraCompassActivity extends Activity implements SensorEventListen
 
 
     /**
-     * Release the camera immediately if the activity goes out of focus. Stop the sensor listener to
-     * conserve battery.
+     * Bind to the heading service, which is normally still running for MainActivity.
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        connection.bind();
+    }
+
+
+    /**
+     * Release the camera immediately if the activity goes out of focus and stop receiving
+     * headings. Does not wait for the camera to close.
      */
     @Override
     protected void onPause() {
         super.onPause();
-        releaseCamera();
-        mSensorManager.unregisterListener(this);
+        cameraController.release();
+        connection.pause();
+        latencyMonitor.stop();
+        waypointSource.stop();
+    }
+
+
+    /**
+     * Unbind from the heading service, which releases the sensor shortly afterwards unless
+     * another screen takes over.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        connection.unbind();
     }
 
 
     /**
-     * Register a motion sensor listener of type rotation vector. This is how we determine the
-     * device's orientation in space. Also, enter sticky immersive mode and adjust the margins of the
-     * compass rose imageView.
+     * Start receiving headings from the heading service, which listens to the rotation vector
+     * sensor. This is how we determine the device's orientation in space. Also, enter sticky
+     * immersive mode and start opening the camera without waiting for it.
      */
     @Override
     protected void onResume() {
         super.onResume();
-        mSensorManager.registerListener(
-                this,
-                mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR),
-                SensorManager.SENSOR_DELAY_GAME);
+        connection.resume();
+
+        // The latency overlay is toggled from the options menu of MainActivity.
+        if (AppPreferences.isLatencyOverlayShown()) {
+            latencyMonitor.showOverlay(getWindow(), latencyOverlay);
+        }
+
+        // True north and the compass points are also chosen from MainActivity, and passed on to
+        // the service by it.
+        waypointSource.start();
 
         // Sticky Immersive mode.
         UiChangeListener();
 
-        try
-        {
-            camera = Camera.open(backCamId);
-            camPreview = new CameraPreview(this, camera);
-            preview.addView(camPreview);
-        } catch (Exception e){
-            Log.d("On Resume", "Error starting camera preview: " + e.getMessage());
+        // Open the camera on the camera thread; the preview starts once it is ready.
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED) {
+            cameraController.open();
         }
     }
 
 
     /**
-     * Release the camera when the activity is destroyed.
+     * Release the camera and stop the camera thread when the activity is destroyed.
      */
     @Override
     protected void onDestroy() {
-        releaseCamera();
+        cameraController.quit();
         super.onDestroy();
     }
 
 
     /**
-     * Method to release the camera object.
+     * Called on the main thread when the camera cannot be opened.
+     *
+     * @param noRearCamera <code>true</code> if the device has no rear-facing camera;
+     *                     <code>false</code> if the camera failed to open.
      */
-    private void releaseCamera() {
-        if (camera != null){
-            camera.stopPreview();
-            camPreview.getHolder().removeCallback(camPreview);
-            camera.release();
-            camera = null;
+    @Override
+    public void onCameraUnavailable(boolean noRearCamera) {
+        if (noRearCamera) {
+            Toast.makeText(this, "This feature is unavailable without a rear-facing camera",
+                    Toast.LENGTH_SHORT).show();
+            finish();
+        } else {
+            Toast.makeText(this, "The camera could not be opened", Toast.LENGTH_SHORT).show();
         }
     }
 
 
     /**
-     * Method to determine the ID of the rear-facing camera. Loops through the device's cameras
-     * and checks their orientation using {@link CameraInfo}.
+     * Called on the main thread once the preview is running, with the camera's field of view the
+     * waypoints are projected with.
      *
-     * @return cameraID the integer ID of the rear-facing camera, or -1 if the device does not have
-     *                  a rear-facing camera
+     * @param viewAngle horizontal field of view of the preview in degrees
      */
-    private int getBackCamId() {
-        int cameraID = -1;
-        int numCameras = Camera.getNumberOfCameras();
-
-        for (int i = 0; i < numCameras; i++) {
-            CameraInfo info = new CameraInfo();
-            Camera.getCameraInfo(i, info);
-            if (info.facing == CameraInfo.CAMERA_FACING_BACK) {
-                cameraID = i;
-                break;
-            }
-        }
-
-        return cameraID;
+    @Override
+    public void onPreviewStarted(float viewAngle) {
+        poiOverlay.setViewAngle(viewAngle);
     }
 
 
     /**
-     * Called on new reading from sensor. We will use the sensor data to determine the orientation
-     * of the device.
+     * Pick up the latency stats of the heading service once it is connected.
      *
-     * @param event holds information such as the sensor's type, the time-stamp, accuracy, and
-     *              the sensor's data
+     * @param service the heading service
      */
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        // Only do work on rotation vector sensor events.
-        if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
-
-            // Helper function to convert a rotation vector to a rotation matrix: converts device
-            // coordinate to world coordinate.
-            SensorManager.getRotationMatrixFromVector(rotationMatrixFromEvent, event.values);
-
-            // Rotates the given matrix (rotationMatrixFromEvent) so that it is expressed in a
-            // different coordinate system.
-            SensorManager.remapCoordinateSystem(
-                    rotationMatrixFromEvent,
-                    SensorManager.AXIS_X,
-                    SensorManager.AXIS_Z,
-                    transformedRotationMatrix);
-
-            // Compute the three orientation angles of the device (in radians):
-            //    azimuth = orientation[0]
-            //    pitch = orientation[1]
-            //    roll = orientation[2]
-            SensorManager.getOrientation(transformedRotationMatrix, orientation);
-
-            // Get the azimuth in degrees and set the heading TextView. The azimuth (in this
-            // orientation, i.e. the device in landscape mode with the screen perpendicular to the
-            // ground and facing the user) is the angle between the z-axis and magnetic north,
-            // rotated around the y-axis.
-            int degree = (int) Math.toDegrees(orientation[0]);
-            degree = Math.round(degree);
-
-            // Azimuth ranges from -180 to 180. Convert to 0-360 range.
-            if (degree < 0) {
-                degree += 360;
-            }
-
-            // Determine compass point text.
-            String compassPoint = map.getValueForKey(degree);
-
-            String heading = String.format("%1$d\u00B0 %2$s", degree, compassPoint);
-            headingView.setText(heading);
-
-            // Create a rotation animation.
-            RotateAnimation ra = new RotateAnimation(
-                    currentDegree,
-                    -degree,
-                    Animation.RELATIVE_TO_SELF, 0.5f,
-                    Animation.RELATIVE_TO_SELF, 0.5f);
-
-            // How long the animation will take place.
-            ra.setDuration(210);
-
-            // Set the animation after the end of the reservation status.
-            ra.setFillAfter(true);
-
-            // Start the animation.
-            compassView.startAnimation(ra);
-
-            // Update the new current degree.
-            currentDegree = -degree;
-        }
+    public void onHeadingServiceConnected(HeadingService service) {
+        latencyMonitor.setStats(service.getStats());
     }
 
 
     /**
-     * Required by {@link SensorEventListener}, but not used here.
+     * Called on the main thread with the latest heading computed by the {@link HeadingService}.
+     * The azimuth (in this orientation, i.e. the device in landscape mode with the screen
+     * perpendicular to the ground and facing the user) is the angle between the z-axis and
+     * magnetic north, rotated around the y-axis.
      *
-     * @param sensor ID of the sensor being monitored
-     * @param accuracy new accuracy of the sensor
+     * @param sample the latest heading
      */
     @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    public void onHeadingChanged(HeadingSample sample) {
+        // Only touch the TextView when the displayed text changes. The formatter reuses its
+        // buffer, which the TextView displays directly.
+        if (headingFormatter.update(sample.getHeading(), sample.getCompassPoint())) {
+            headingView.setText(headingFormatter.getChars(), 0, headingFormatter.length());
+        }
+
+        // Turn the compass rose. It catches up with the heading on the next display frame.
+        compassView.setHeading(sample.getAzimuth());
+        magneticWarning.update(sample.getMagneticState());
+
+        // Move the waypoint markers. They are projected on the next display frame.
+        poiOverlay.setRotationMatrix(sample.getRotationMatrix());
+
+        latencyMonitor.onHeadingDelivered(sample);
+    }
 
 
     /**
-     * Method used to create the camera preview and add it to the layout's view.
+     * Add the heading pipeline's latency stats to the activity's state dump, e.g.
+     * <code>adb shell dumpsys activity com.bcampbelldev.compassapp/.CameraCompassActivity</code>.
      */
-    public void createPreview() {
-        camPreview = new CameraPreview(this, camera);
-        preview = (FrameLayout) findViewById(R.id.camera_preview);
-        preview.addView(camPreview);
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        HeadingService service = connection != null ? connection.getService() : null;
+        if (service != null) {
+            writer.print(prefix);
+            writer.println("Heading pipeline, from the "
+                    + HeadingSource.getName(service.getSource()) + ":");
+            service.getStats().dump(prefix + "  ", writer);
+        }
     }
 
 
@@ -439,47 +393,4 @@ public class CameraCompassActivity extends Activity implements SensorEventListen
                         | View.SYSTEM_UI_FLAG_FULLSCREEN;
         decorView.setSystemUiVisibility(uiOptions);
     }
-
-
-    /**
-     * Method that populates the RangeMap so that a range of compass headings corresponds to a
-     * compass point. E.g. 42 degree heading corresponds to "NE".
-     *
-     * @param map the RangeMap to populate.
-     */
-    public void fillMap(RangeMap map) {
-        map.put(0, 5, "N");
-        map.put(6, 16, "NbE");
-        map.put(17, 28, "NNE");
-        map.put(29, 39, "NEbN");
-        map.put(40, 50, "NE");
-        map.put(51, 61, "NEbE");
-        map.put(62, 73, "ENE");
-        map.put(74, 84, "EbN");
-        map.put(85, 95, "E");
-        map.put(96, 106, "EbS");
-        map.put(107, 118, "ESE");
-        map.put(119, 129, "SEbE");
-        map.put(130, 140, "SE");
-        map.put(141, 151, "SEbS");
-        map.put(152, 163, "SSE");
-        map.put(164, 174, "SbE");
-        map.put(175, 185, "S");
-        map.put(186, 196, "SbW");
-        map.put(197, 208, "SSW");
-        map.put(209, 219, "SWbS");
-        map.put(220, 230, "SW");
-        map.put(231, 241, "SWbW");
-        map.put(242, 253, "WSW");
-        map.put(254, 264, "WbS");
-        map.put(265, 275, "W");
-        map.put(276, 286, "WbN");
-        map.put(287, 298, "WNW");
-        map.put(299, 309, "NWbW");
-        map.put(310, 320, "NW");
-        map.put(321, 331, "NWbN");
-        map.put(332, 343, "NNW");
-        map.put(344, 354, "NbW");
-        map.put(355, 359, "N");
-    }
 }
\ No newline at end of file
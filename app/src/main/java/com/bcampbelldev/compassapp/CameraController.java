@@ -0,0 +1,354 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens, previews and releases the rear-facing camera on a background camera thread, so the
+ * activity never waits for the camera driver. The camera itself is reached through a
+ * {@link CameraBackend}: Camera2 by default, or the legacy API.
+ * <p>
+ * The camera goes through an explicit lifecycle, and every transition runs on the camera thread:
+ * <pre>
+ *     CLOSED -> OPENING -> PREVIEWING -> RELEASING -> CLOSED
+ * </pre>
+ * <code>OPENING</code> lasts from the open request until the camera is open, configured and the
+ * preview surface has been resized to the chosen preview size. Requests are queued in order, so
+ * a quick pause and resume releases the camera before opening it again rather than contending
+ * for it; an open still waiting in the queue when the release arrives is simply cancelled.
+ */
+class CameraController implements SurfaceHolder.Callback, CameraBackend.Callback {
+
+    private static final String TAG = "CameraController";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPENING = 1;
+    static final int STATE_PREVIEWING = 2;
+    static final int STATE_RELEASING = 3;
+
+    // How long the main thread waits for the camera to let go of a surface being destroyed.
+    private static final long SURFACE_RELEASE_TIMEOUT_MILLIS = 500;
+
+    /**
+     * Told on the main thread when the preview starts or the camera cannot be used.
+     */
+    interface Listener {
+
+        /**
+         * Called on the main thread if the device has no rear-facing camera or it fails to open.
+         *
+         * @param noRearCamera <code>true</code> if the device has no rear-facing camera;
+         *                     <code>false</code> if the camera failed to open.
+         */
+        void onCameraUnavailable(boolean noRearCamera);
+
+
+        /**
+         * Called on the main thread each time the preview starts.
+         *
+         * @param viewAngle horizontal field of view of the preview in degrees
+         */
+        void onPreviewStarted(float viewAngle);
+    }
+
+
+    private final CameraBackend backend;
+    private final PowerManager powerManager;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread cameraThread;
+    private final Handler cameraHandler;
+
+    // Only changed on the camera thread.
+    private volatile int state = STATE_CLOSED;
+    private boolean opened;
+    private boolean configured;
+    private final int[] previewSize = new int[2];
+
+    private int viewWidth;
+    private int viewHeight;
+    private SurfaceHolder surface;
+    private int surfaceWidth;
+    private int surfaceHeight;
+
+
+    /**
+     * Class constructor. Starts the camera thread.
+     *
+     * @param context context used to get system services
+     * @param legacy <code>true</code> to use the legacy camera API;
+     *               <code>false</code> to use Camera2.
+     * @param listener told on the main thread when the preview starts or the camera cannot be used
+     */
+    CameraController(Context context, boolean legacy, Listener listener) {
+        this.backend = legacy ? new LegacyCameraBackend() : new Camera2Backend(context);
+        this.powerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        this.listener = listener;
+        cameraThread = new HandlerThread("Camera");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+    }
+
+
+    private final Runnable openTask = new Runnable() {
+        @Override
+        public void run() {
+            openCamera();
+        }
+    };
+
+
+    private final Runnable releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            releaseCamera();
+        }
+    };
+
+
+    /**
+     * Open the rear-facing camera and start the preview once the surface is ready. Returns
+     * immediately.
+     */
+    void open() {
+        cameraHandler.removeCallbacks(openTask);
+        cameraHandler.post(openTask);
+    }
+
+
+    /**
+     * Stop the preview and release the camera for other apps. Returns immediately.
+     */
+    void release() {
+        // An open that has not started yet does not need to happen at all.
+        cameraHandler.removeCallbacks(openTask);
+        cameraHandler.post(releaseTask);
+    }
+
+
+    /**
+     * Release the camera and stop the camera thread once it is done. The controller cannot be
+     * used afterwards.
+     */
+    void quit() {
+        release();
+        cameraThread.quitSafely();
+    }
+
+
+    /**
+     * @return current lifecycle state, one of the <code>STATE_*</code> constants
+     */
+    int getState() {
+        return state;
+    }
+
+
+    /**
+     * Set the size of the view showing the preview, which the preview size is chosen to cover.
+     * Called on the main thread when the view is laid out.
+     *
+     * @param width width of the view
+     * @param height height of the view
+     */
+    void setViewSize(final int width, final int height) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                viewWidth = width;
+                viewHeight = height;
+                if (state == STATE_PREVIEWING) {
+                    stopPreview();
+                }
+                configured = false;
+                startPreview();
+            }
+        });
+    }
+
+
+    @Override
+    public void surfaceCreated(final SurfaceHolder holder) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                surface = holder;
+            }
+        });
+    }
+
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, final int width,
+                               final int height) {
+        // Restart the preview so it picks up the new surface size.
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                surfaceWidth = width;
+                surfaceHeight = height;
+                if (state == STATE_PREVIEWING) {
+                    stopPreview();
+                }
+                startPreview();
+            }
+        });
+    }
+
+
+    /**
+     * The camera must stop drawing to the surface before this returns, so this is the one call
+     * that waits for the camera thread. By then the camera has normally been released already in
+     * <code>onPause</code>, and the wait is a single empty message.
+     *
+     * @param holder {@link SurfaceHolder} whose surface is being destroyed
+     */
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        final CountDownLatch detached = new CountDownLatch(1);
+        boolean posted = cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == STATE_PREVIEWING) {
+                    stopPreview();
+                }
+                surface = null;
+                surfaceWidth = 0;
+                surfaceHeight = 0;
+                detached.countDown();
+            }
+        });
+        if (!posted) {
+            // The camera thread has quit, after releasing the camera.
+            return;
+        }
+        try {
+            detached.await(SURFACE_RELEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * CLOSED -> OPENING. Runs on the camera thread.
+     */
+    private void openCamera() {
+        if (state != STATE_CLOSED) {
+            return;
+        }
+        state = STATE_OPENING;
+        opened = false;
+        configured = false;
+        backend.open(cameraHandler, this);
+    }
+
+
+    /**
+     * Called on the camera thread once the backend has opened the camera.
+     */
+    @Override
+    public void onOpened() {
+        opened = true;
+        startPreview();
+    }
+
+
+    /**
+     * Called on the camera thread if the backend could not open the camera or lost it.
+     *
+     * @param noRearCamera <code>true</code> if the device has no rear-facing camera;
+     *                     <code>false</code> otherwise.
+     */
+    @Override
+    public void onFailed(final boolean noRearCamera) {
+        releaseCamera();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraUnavailable(noRearCamera);
+            }
+        });
+    }
+
+
+    /**
+     * OPENING -> PREVIEWING, once the camera is open, the view has been laid out and the surface
+     * has the chosen preview size. Runs on the camera thread.
+     */
+    private void startPreview() {
+        if (state != STATE_OPENING || !opened || viewWidth == 0) {
+            return;
+        }
+
+        if (!configured) {
+            backend.configure(viewWidth, viewHeight, powerManager.isPowerSaveMode(), previewSize);
+            configured = true;
+        }
+
+        // Size the surface buffers to the preview, so the camera neither streams nor the
+        // compositor holds more pixels than needed. The preview starts on the resulting
+        // surfaceChanged.
+        if (surface == null || surfaceWidth != previewSize[0]
+                || surfaceHeight != previewSize[1]) {
+            if (surface != null) {
+                final SurfaceHolder holder = surface;
+                final int width = previewSize[0];
+                final int height = previewSize[1];
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        holder.setFixedSize(width, height);
+                    }
+                });
+            }
+            return;
+        }
+
+        try {
+            backend.startPreview(surface);
+            state = STATE_PREVIEWING;
+
+            final float viewAngle = backend.getViewAngle();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPreviewStarted(viewAngle);
+                }
+            });
+        } catch (Exception e) {
+            Log.w(TAG, "Error starting camera preview: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * PREVIEWING -> OPENING, e.g. when the surface changes. Runs on the camera thread.
+     */
+    private void stopPreview() {
+        backend.stopPreview();
+        state = STATE_OPENING;
+    }
+
+
+    /**
+     * OPENING or PREVIEWING -> RELEASING -> CLOSED. Runs on the camera thread.
+     */
+    private void releaseCamera() {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+        state = STATE_RELEASING;
+        backend.close();
+        opened = false;
+        state = STATE_CLOSED;
+    }
+}
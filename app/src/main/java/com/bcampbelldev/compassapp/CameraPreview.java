@@ -1,93 +1,43 @@
 package com.bcampbelldev.compassapp;
 
 import android.content.Context;
-import android.hardware.Camera;
-import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
-import java.io.IOException;
-
-import static android.content.ContentValues.TAG;
-
 /**
- * This class is used to create and draw the camera preview used by {@link CameraCompassActivity}.
+ * This class is the surface the camera preview used by {@link CameraCompassActivity} is drawn on.
+ * It can be added to the layout before the camera is open; the {@link CameraController} sizes its
+ * buffers to the chosen preview size and starts the preview once both are ready.
  */
-@SuppressWarnings("deprecation")
-public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
-
-    private SurfaceHolder holder;
-    private Camera camera;
+public class CameraPreview extends SurfaceView {
 
+    private final CameraController controller;
 
     /**
      * Class constructor.
      *
      * @param context {@link CameraCompassActivity} context
-     * @param camera Our camera device
+     * @param controller the camera controller, notified when the surface is created, changed and
+     *                   destroyed
      */
-    public CameraPreview(Context context, Camera camera) {
+    CameraPreview(Context context, CameraController controller) {
         super(context);
-        this.camera = camera;
+        this.controller = controller;
 
-        // Install a SurfaceHolder.Callback so we get notified when the underlying surface is
-        // created and destroyed.
-        holder = getHolder();
-        holder.addCallback(this);
-        holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
+        // Install a SurfaceHolder.Callback so the controller gets notified when the underlying
+        // surface is created and destroyed.
+        SurfaceHolder holder = getHolder();
+        holder.addCallback(controller);
         holder.setKeepScreenOn(true);
     }
 
 
     /**
-     * Called immediately after the surface is first created.
-     *
-     * @param holder {@link SurfaceHolder} whose surface is being created
-     */
-    public void surfaceCreated(SurfaceHolder holder) {
-        // The Surface has been created, now tell the camera where to draw the preview.
-        try {
-            camera.setPreviewDisplay(holder);
-        } catch (IOException e) {
-            Log.d(TAG, "Error setting camera preview: " + e.getMessage());
-        }
-    }
-
-
-    /**
-     * Camera preview will be released in the {@link CameraCompassActivity}.
-     *
-     * @param holder {@link SurfaceHolder} that holds the camera preview
-     */
-    public void surfaceDestroyed(SurfaceHolder holder) {}
-
-
-    /**
-     * Called immediately after any structural changes (format or size) have been made to the
-     * surface. This method is always called at least once, after
-     * {@link CameraPreview#surfaceCreated(SurfaceHolder)}.
-     *
-     * @param holder {@link SurfaceHolder} whose surface has changed
-     * @param format {@link android.graphics.PixelFormat} of the surface
-     * @param w width of the surface
-     * @param h height of the surface
+     * Let the controller choose a preview size that covers the view.
      */
-    public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
-        if (this.holder.getSurface() == null){
-            // Preview surface does not exist.
-            return;
-        }
-
-        // Start preview.
-        try {
-            camera.stopPreview();
-            Camera.Parameters params = camera.getParameters();
-            params.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-            camera.setParameters(params);
-            camera.setPreviewDisplay(holder);
-            camera.startPreview();
-        } catch (Exception e){
-            Log.d("Surface Changed", "Error starting camera preview: " + e.getMessage());
-        }
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        controller.setViewSize(w, h);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.Context;
+import android.content.res.Configuration;
+
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.RangeMap;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The compass point maps in the user's language, compiled from the
+ * <code>compass_points</code> string array once per language and number of points and kept for
+ * the life of the process. Switching modes or activities reuses the compiled maps, so headings
+ * are never named by building strings.
+ * <p>
+ * Only accessed on the main thread.
+ */
+final class CompassPointTables {
+
+    // Keyed by the locale followed by the number of points.
+    private static final Map<String, RangeMap> tables = new HashMap<>();
+
+
+    private CompassPointTables() {}
+
+
+    /**
+     * @param context context whose configuration gives the language
+     * @param points number of points of the compass, 4, 8, 16 or 32
+     * @return the map for the compass in the current language
+     */
+    static RangeMap get(Context context, int points) {
+        Configuration config = context.getResources().getConfiguration();
+        @SuppressWarnings("deprecation")
+        Locale locale = config.locale;
+        String key = locale + "/" + points;
+
+        RangeMap table = tables.get(key);
+        if (table == null) {
+            table = CompassPoints.create(points,
+                    context.getResources().getStringArray(R.array.compass_points));
+            tables.put(key, table);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,283 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.Choreographer;
+import android.view.View;
+
+/**
+ * View that draws the compass rose rotated to the current heading.
+ * <p>
+ * Sensor events only update the target heading through {@link #setHeading(float)}. The rose is
+ * moved towards the target once per display frame from a {@link Choreographer} callback, taking
+ * the shortest way around the circle, so there is at most one invalidate per vsync no matter how
+ * fast the sensor delivers events.
+ * <p>
+ * A rose given as a bitmap resource, e.g. through <code>android:src</code>, is not decoded until
+ * the view knows its size, and then at that size from the {@link RoseBitmapCache}, so the view
+ * neither holds the full resolution image nor decodes it again when the activity is recreated.
+ */
+public class CompassRoseView extends View implements Choreographer.FrameCallback {
+
+    // How quickly the rose catches up with the target heading. After three time constants it has
+    // covered 95% of the way, about the length of the old 210 ms rotate animation.
+    private static final float TIME_CONSTANT_NANOS = 70_000_000f;
+
+    // Once the rose is this close to the target it snaps to it and stops requesting frames.
+    private static final float SETTLE_DEGREES = 0.1f;
+
+    // Elapsed time assumed for the first frame after the rose was at rest.
+    private static final long FIRST_FRAME_NANOS = 16_666_667L;
+
+    private Drawable rose;
+
+    // Bitmap resource the rose is decoded from at the view's size, or 0 for a given drawable.
+    private int roseResId;
+
+    private float targetDegrees;
+    private float displayedDegrees;
+    private long lastFrameNanos;
+    private boolean frameScheduled;
+
+
+    /**
+     * Class constructors.
+     *
+     * @param context context the view is running in
+     */
+    public CompassRoseView(Context context) {
+        this(context, null);
+    }
+
+
+    public CompassRoseView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+
+    public CompassRoseView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        TypedArray a = context.obtainStyledAttributes(
+                attrs, R.styleable.CompassRoseView, defStyleAttr, 0);
+        try {
+            // Bitmaps are decoded at the view's size; others, e.g. vectors, are used as they are.
+            TypedValue value = a.peekValue(R.styleable.CompassRoseView_android_src);
+            if (value != null && value.resourceId != 0 && value.string != null
+                    && !value.string.toString().endsWith(".xml")) {
+                setRoseResource(value.resourceId);
+            } else {
+                setRose(a.getDrawable(R.styleable.CompassRoseView_android_src));
+            }
+        } finally {
+            a.recycle();
+        }
+    }
+
+
+    /**
+     * Set the bitmap resource used for the compass rose. It is decoded at the size of the view,
+     * once the view has one.
+     *
+     * @param resId the rose bitmap, drawn centered and scaled to fit inside the padding
+     */
+    public void setRoseResource(int resId) {
+        roseResId = resId;
+        showRose(null);
+        loadRose(getWidth(), getHeight());
+    }
+
+
+    /**
+     * Set the drawable used for the compass rose.
+     *
+     * @param rose the rose drawable, drawn centered and scaled to fit inside the padding
+     */
+    public void setRose(Drawable rose) {
+        roseResId = 0;
+        showRose(rose);
+    }
+
+
+    private void showRose(Drawable rose) {
+        if (this.rose != null) {
+            this.rose.setCallback(null);
+        }
+        this.rose = rose;
+        if (rose != null) {
+            rose.setCallback(this);
+            updateRoseBounds(getWidth(), getHeight());
+        }
+        invalidate();
+    }
+
+
+    /**
+     * Set the heading the rose should turn to. Cheap enough to call on every sensor event; the
+     * rose itself is only redrawn on the next display frame.
+     *
+     * @param degrees heading in degrees clockwise from north
+     */
+    public void setHeading(float degrees) {
+        targetDegrees = normalize(degrees);
+
+        // Changes too small to see don't wake the rose up once it has settled.
+        if (!frameScheduled
+                && Math.abs(shortestArc(displayedDegrees, targetDegrees)) >= SETTLE_DEGREES) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+
+    /**
+     * Move the displayed heading towards the target heading and redraw. Schedules the next frame
+     * until the rose has settled on the target.
+     *
+     * @param frameTimeNanos time at which the frame started rendering
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+
+        long elapsed = lastFrameNanos == 0 ? FIRST_FRAME_NANOS : frameTimeNanos - lastFrameNanos;
+        lastFrameNanos = frameTimeNanos;
+
+        float delta = shortestArc(displayedDegrees, targetDegrees);
+        if (Math.abs(delta) < SETTLE_DEGREES) {
+            displayedDegrees = targetDegrees;
+        } else {
+            float step = 1f - (float)Math.exp(-elapsed / TIME_CONSTANT_NANOS);
+            displayedDegrees = normalize(displayedDegrees + delta * step);
+        }
+        invalidate();
+
+        if (displayedDegrees != targetDegrees) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            lastFrameNanos = 0;
+        }
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(this);
+        frameScheduled = false;
+        lastFrameNanos = 0;
+    }
+
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        loadRose(w, h);
+        updateRoseBounds(w, h);
+    }
+
+
+    /**
+     * Decode the rose resource to fit inside the padded area of the view, or take it from the
+     * cache if it already has been at this size.
+     *
+     * @param w width of the view
+     * @param h height of the view
+     */
+    private void loadRose(int w, int h) {
+        int availableWidth = w - getPaddingLeft() - getPaddingRight();
+        int availableHeight = h - getPaddingTop() - getPaddingBottom();
+        if (roseResId == 0 || availableWidth <= 0 || availableHeight <= 0) {
+            return;
+        }
+        // Hardware bitmaps cannot be drawn on a software canvas, e.g. in the layout editor.
+        Bitmap bitmap = RoseBitmapCache.get(getResources(), roseResId, availableWidth,
+                availableHeight, isHardwareAccelerated() && !isInEditMode());
+        BitmapDrawable drawable = null;
+        if (bitmap != null) {
+            // Drawn pixel for pixel, since the bitmap already has the size it is drawn at.
+            drawable = new BitmapDrawable(getResources(), bitmap);
+            drawable.setTargetDensity(bitmap.getDensity());
+        }
+        showRose(drawable);
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (rose == null) {
+            return;
+        }
+        int saveCount = canvas.save();
+        canvas.rotate(-displayedDegrees, getWidth() / 2f, getHeight() / 2f);
+        rose.draw(canvas);
+        canvas.restoreToCount(saveCount);
+    }
+
+
+    @Override
+    protected boolean verifyDrawable(Drawable who) {
+        return who == rose || super.verifyDrawable(who);
+    }
+
+
+    /**
+     * Fit the rose inside the padded area of the view, keeping its aspect ratio and centering it.
+     *
+     * @param w width of the view
+     * @param h height of the view
+     */
+    private void updateRoseBounds(int w, int h) {
+        if (rose == null) {
+            return;
+        }
+        int availableWidth = w - getPaddingLeft() - getPaddingRight();
+        int availableHeight = h - getPaddingTop() - getPaddingBottom();
+        int intrinsicWidth = rose.getIntrinsicWidth();
+        int intrinsicHeight = rose.getIntrinsicHeight();
+
+        int width = availableWidth;
+        int height = availableHeight;
+        if (intrinsicWidth > 0 && intrinsicHeight > 0) {
+            float scale = Math.min((float)availableWidth / intrinsicWidth,
+                    (float)availableHeight / intrinsicHeight);
+            width = Math.round(intrinsicWidth * scale);
+            height = Math.round(intrinsicHeight * scale);
+        }
+
+        int left = getPaddingLeft() + (availableWidth - width) / 2;
+        int top = getPaddingTop() + (availableHeight - height) / 2;
+        rose.setBounds(left, top, left + width, top + height);
+    }
+
+
+    /**
+     * @return the signed difference from one heading to another along the shorter way around the
+     *         circle, in the range -180 to 180 degrees
+     */
+    private static float shortestArc(float from, float to) {
+        float delta = (to - from) % 360f;
+        if (delta > 180f) {
+            delta -= 360f;
+        } else if (delta < -180f) {
+            delta += 360f;
+        }
+        return delta;
+    }
+
+
+    /**
+     * @return the heading in the range 0 (inclusive) to 360 (exclusive) degrees
+     */
+    private static float normalize(float degrees) {
+        degrees %= 360f;
+        return degrees < 0f ? degrees + 360f : degrees;
+    }
+}
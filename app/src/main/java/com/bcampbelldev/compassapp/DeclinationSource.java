@@ -0,0 +1,281 @@
+package com.bcampbelldev.compassapp;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.GeomagneticField;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import com.bcampbelldev.compassapp.heading.DeclinationGrid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Feeds a {@link HeadingTracker} the magnetic declination at the device's location while true
+ * north is enabled, so it shows true headings, and the strength and inclination of the Earth's
+ * field there, which interference is detected against.
+ * <p>
+ * The declination comes from a {@link DeclinationGrid} sampled from the World Magnetic Model
+ * ({@link GeomagneticField}). The grid is generated once a year on a background thread and cached
+ * in a file, and kept in memory for the life of the process. Locations come passively from other
+ * apps' fixes and the last known location: declination changes slowly enough that the app never
+ * needs to turn on a location provider itself.
+ */
+class DeclinationSource implements LocationListener {
+
+    private static final String TAG = "DeclinationSource";
+
+    // Grid spacing in degrees.
+    private static final int GRID_STEP = 5;
+
+    // Location updates are only of interest once the device has moved this far.
+    private static final long MIN_UPDATE_MILLIS = 10 * 60 * 1000;
+    private static final float MIN_UPDATE_METERS = 10_000f;
+
+    // Shared by all activities. Only accessed on the main thread.
+    private static DeclinationGrid grid;
+    private static int gridYear;
+    private static boolean gridLoading;
+    private static final List<DeclinationSource> waitingForGrid = new ArrayList<>();
+
+    private final Context context;
+    private final HeadingTracker tracker;
+    private final LocationManager locationManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Location location;
+    private boolean started;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param context context used to get system services and the cache directory
+     * @param tracker tracker to feed the declination
+     */
+    DeclinationSource(Context context, HeadingTracker tracker) {
+        this.context = context.getApplicationContext();
+        this.tracker = tracker;
+        this.locationManager = (LocationManager)context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+
+    /**
+     * @param context any context of the app
+     * @return <code>true</code> if the app may read the device's location;
+     *         <code>false</code> otherwise.
+     */
+    static boolean hasPermission(Context context) {
+        return ContextCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+
+    /**
+     * Start feeding the field at the device's location, with the declination if true north is
+     * enabled, or reset the tracker to magnetic north otherwise. Call from <code>onResume</code>
+     * and whenever the setting changes.
+     */
+    void start() {
+        stop();
+        tracker.setDeclination(0);
+        if (!hasPermission(context)) {
+            return;
+        }
+        started = true;
+
+        try {
+            for (String provider : locationManager.getProviders(true)) {
+                Location last = locationManager.getLastKnownLocation(provider);
+                if (last != null && (location == null || last.getTime() > location.getTime())) {
+                    location = last;
+                }
+            }
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+                    MIN_UPDATE_MILLIS, MIN_UPDATE_METERS, this);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Location unavailable: " + e.getMessage());
+        }
+
+        if (AppPreferences.isTrueNorth() && (grid == null || gridYear != currentYear())) {
+            loadGrid();
+        }
+        update();
+    }
+
+
+    /**
+     * Stop listening for locations. The tracker keeps the last declination and field.
+     */
+    void stop() {
+        if (started) {
+            started = false;
+            locationManager.removeUpdates(this);
+        }
+    }
+
+
+    /**
+     * Give the tracker the field, and the declination if true north is enabled, at the latest
+     * location.
+     */
+    private void update() {
+        if (!started || location == null) {
+            return;
+        }
+        float latitude = (float)location.getLatitude();
+        float longitude = (float)location.getLongitude();
+
+        // Only evaluated every few kilometers, so the grid is not worth it here.
+        GeomagneticField field = new GeomagneticField(latitude, longitude,
+                (float)location.getAltitude(), System.currentTimeMillis());
+        tracker.setMagneticReference(field.getFieldStrength() / 1000f, field.getInclination());
+
+        if (grid != null && AppPreferences.isTrueNorth()) {
+            tracker.setDeclination(grid.getDeclination(latitude, longitude));
+        }
+    }
+
+
+    /**
+     * Look up the declination at a location whether or not true north is enabled, e.g. to turn
+     * magnetic headings into true ones. Only call on the main thread.
+     *
+     * @param latitude latitude in degrees
+     * @param longitude longitude in degrees
+     * @return declination in degrees, positive when magnetic north is east of true north. From
+     *         the grid once it has been loaded, straight from the model until then
+     */
+    static float getDeclination(double latitude, double longitude) {
+        if (grid != null) {
+            return grid.getDeclination((float)latitude, (float)longitude);
+        }
+        return new GeomagneticField((float)latitude, (float)longitude, 0,
+                System.currentTimeMillis()).getDeclination();
+    }
+
+
+    @Override
+    public void onLocationChanged(Location location) {
+        this.location = location;
+        update();
+    }
+
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+
+    @Override
+    public void onProviderEnabled(String provider) {}
+
+
+    @Override
+    public void onProviderDisabled(String provider) {}
+
+
+    /**
+     * Read this year's grid from the cache file, generating and caching it first if needed, on
+     * a background thread.
+     */
+    private void loadGrid() {
+        waitingForGrid.add(this);
+        if (gridLoading) {
+            return;
+        }
+        gridLoading = true;
+
+        final int year = currentYear();
+        final File file = new File(context.getFilesDir(), "declination-" + year + ".grid");
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DeclinationGrid loaded = readOrGenerate(file);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        gridLoading = false;
+                        grid = loaded;
+                        gridYear = year;
+                        for (DeclinationSource source : waitingForGrid) {
+                            source.update();
+                        }
+                        waitingForGrid.clear();
+                    }
+                });
+            }
+        });
+    }
+
+
+    private static DeclinationGrid readOrGenerate(File file) {
+        if (file.exists()) {
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    return DeclinationGrid.read(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Regenerating unreadable declination grid: " + e.getMessage());
+            }
+        }
+
+        // Evaluate the model at the middle of the year, at sea level.
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MONTH, Calendar.JULY);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        final long time = calendar.getTimeInMillis();
+        DeclinationGrid generated = DeclinationGrid.generate(new DeclinationGrid.Model() {
+            @Override
+            public float getDeclination(float latitude, float longitude) {
+                return new GeomagneticField(latitude, longitude, 0, time).getDeclination();
+            }
+        }, GRID_STEP);
+
+        // Grids from earlier years are out of date.
+        File[] old = file.getParentFile().listFiles();
+        if (old != null) {
+            for (File f : old) {
+                if (f.getName().startsWith("declination-") && !f.equals(file)) {
+                    f.delete();
+                }
+            }
+        }
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                generated.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache declination grid: " + e.getMessage());
+        }
+        return generated;
+    }
+
+
+    private static int currentYear() {
+        return Calendar.getInstance().get(Calendar.YEAR);
+    }
+}
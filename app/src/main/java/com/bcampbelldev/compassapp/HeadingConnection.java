@@ -0,0 +1,125 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+
+/**
+ * Connects an activity to the {@link HeadingService}: bound while the activity is started, and
+ * subscribed to headings while it is resumed. Binding in <code>onStart</code> means the next
+ * screen is bound before the previous one lets go in its <code>onStop</code>, so the service and
+ * its sensor registration carry on across the switch.
+ */
+class HeadingConnection implements ServiceConnection {
+
+    /**
+     * Told on the main thread once the service is connected.
+     */
+    interface Callback {
+
+        /**
+         * Called on the main thread once the service is connected, before the activity is
+         * subscribed to headings. E.g. to pass on settings or pick up the stats.
+         *
+         * @param service the heading service
+         */
+        void onHeadingServiceConnected(HeadingService service);
+    }
+
+
+    private final Context context;
+    private final HeadingService.Client client;
+    private final Callback callback;
+
+    private boolean bound;
+    private boolean resumed;
+    private HeadingService service;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param context the activity
+     * @param client subscription of the activity
+     * @param callback told once the service is connected
+     */
+    HeadingConnection(Context context, HeadingService.Client client, Callback callback) {
+        this.context = context;
+        this.client = client;
+        this.callback = callback;
+    }
+
+
+    /**
+     * Bind to the service, creating it if needed. Call from <code>onStart</code>.
+     */
+    void bind() {
+        if (!bound) {
+            bound = context.bindService(new Intent(context, HeadingService.class), this,
+                    Context.BIND_AUTO_CREATE);
+        }
+    }
+
+
+    /**
+     * Unbind from the service. Call from <code>onStop</code>.
+     */
+    void unbind() {
+        if (bound) {
+            pause();
+            bound = false;
+            service = null;
+            context.unbindService(this);
+        }
+    }
+
+
+    /**
+     * Subscribe to headings, now or once the service is connected. Call from
+     * <code>onResume</code>.
+     */
+    void resume() {
+        resumed = true;
+        if (service != null) {
+            service.addClient(client);
+        }
+    }
+
+
+    /**
+     * Stop receiving headings. Call from <code>onPause</code>.
+     */
+    void pause() {
+        resumed = false;
+        if (service != null) {
+            service.removeClient(client);
+        }
+    }
+
+
+    /**
+     * @return the service, or <code>null</code> until it is connected
+     */
+    HeadingService getService() {
+        return service;
+    }
+
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        service = ((HeadingService.LocalBinder)binder).getService();
+        callback.onHeadingServiceConnected(service);
+        if (resumed) {
+            service.addClient(client);
+        }
+    }
+
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        // Only happens if the process dies, which takes the activity with it.
+        service = null;
+    }
+}
@@ -0,0 +1,671 @@
+package com.bcampbelldev.compassapp;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.SensorManager;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.bcampbelldev.compassapp.heading.AdaptiveRateController;
+import com.bcampbelldev.compassapp.heading.HeadingMailbox;
+import com.bcampbelldev.compassapp.heading.HeadingSample;
+import com.bcampbelldev.compassapp.heading.HeadingStream;
+import com.bcampbelldev.compassapp.heading.HeadingThrottle;
+import com.bcampbelldev.compassapp.heading.OneEuroHeadingFilter;
+import com.bcampbelldev.compassapp.heading.PipelineStats;
+import com.bcampbelldev.compassapp.heading.PowerModeController;
+import com.bcampbelldev.compassapp.heading.RangeMap;
+import com.bcampbelldev.compassapp.heading.RotationMath;
+import com.bcampbelldev.compassapp.heading.SensorRecorder;
+import com.bcampbelldev.compassapp.heading.TrackLog;
+import com.bcampbelldev.compassapp.heading.TrackLogReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bound service that owns the app's one heading sensor registration. The heading pipeline runs
+ * once, in a {@link HeadingTracker}, and every heading is fanned out to the subscribed
+ * {@link Client}s: the screens, and anything else that wants headings.
+ * <p>
+ * The tracker uses the cheapest {@link HeadingSource} good enough for the clients: the gyroscope
+ * is only used while a client has to follow quick turns, and the sensor is only switched off
+ * while the device is still if none has to.
+ * <p>
+ * The sensor stays registered for a moment after the last client leaves, so going from one
+ * screen to the other neither restarts the sensor fusion nor the heading filter. Each client may
+ * limit how often it is told, and clients on their own threads get the latest heading through a
+ * {@link HeadingMailbox} of their own: one that falls behind only misses headings, it never holds
+ * up the others.
+ * <p>
+ * While a sensor log is being recorded the service runs in the foreground, so the log carries on
+ * when the app is in the background.
+ * <p>
+ * Every session of the service keeps a {@link TrackLog} of its headings, ten a second, in the
+ * app's files directory, which can be exported to CSV. Only the tracks of the latest sessions
+ * are kept. All methods must be called on the main thread.
+ */
+public class HeadingService extends Service implements HeadingTracker.Listener {
+
+    private static final String TAG = "HeadingService";
+
+    // How long the sensor stays registered once nothing needs headings.
+    private static final long IDLE_STOP_MILLIS = 2000;
+
+    // Sensor events buffered while the recorder's writer catches up, several seconds' worth.
+    private static final int RECORDER_CAPACITY = 4096;
+
+    // How long the sensor hub may hold samples in its FIFO while headings are only recorded and
+    // no screen shows them, so the processor is woken for bursts rather than for every sample.
+    private static final int BACKGROUND_REPORT_LATENCY_US = 1_000_000;
+
+    // Shortest time between two headings in the track log, and the headings buffered while its
+    // writer catches up, well over a minute's worth.
+    private static final long TRACK_INTERVAL_NANOS = 100_000_000L;
+    private static final int TRACK_CAPACITY = 1024;
+
+    // Tracks kept, this session's included. A day of use rarely takes more than a few MB.
+    private static final int MAX_TRACKS = 20;
+
+    private static final String CHANNEL_ID = "recording";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Subscription to the headings of the service.
+     */
+    static final class Client implements Runnable {
+
+        private final HeadingTracker.Listener listener;
+        private final int axisX;
+        private final int axisY;
+        private final boolean responsive;
+        private final Handler handler;
+        private final HeadingMailbox mailbox;
+
+        // Only used on the main thread.
+        private final HeadingThrottle throttle;
+        private long skipped;
+        private long coalesced;
+
+
+        /**
+         * Class constructor.
+         *
+         * @param listener told about new headings
+         * @param axisX world axis the device x axis is mapped onto while this client is the
+         *              newest, see {@link HeadingTracker#setAxisRemap(int, int)}
+         * @param axisY world axis the device y axis is mapped onto
+         * @param minIntervalMillis shortest time between two headings told, in sensor time, or 0
+         *                          for every heading
+         * @param responsive whether the headings must follow quick turns, e.g. for a camera
+         *                   view, which needs the gyroscope
+         * @param handler handler of the thread the listener is called on, or <code>null</code>
+         *                for the main thread
+         */
+        Client(HeadingTracker.Listener listener, int axisX, int axisY, long minIntervalMillis,
+               boolean responsive, Handler handler) {
+            if (!RotationMath.isValidRemap(axisX, axisY)) {
+                throw new IllegalArgumentException(
+                        "Invalid axis remapping " + axisX + ", " + axisY);
+            }
+            this.listener = listener;
+            this.axisX = axisX;
+            this.axisY = axisY;
+            this.throttle = new HeadingThrottle(minIntervalMillis * 1_000_000L);
+            this.responsive = responsive;
+            this.handler = handler;
+            this.mailbox = handler != null ? new HeadingMailbox() : null;
+        }
+
+
+        /**
+         * Called on the main thread with every heading of the tracker.
+         */
+        private void offer(HeadingSample sample) {
+            if (!throttle.accept(sample.getTimestamp())) {
+                skipped++;
+                return;
+            }
+
+            if (handler == null) {
+                listener.onHeadingChanged(sample);
+                return;
+            }
+            mailbox.edit().set(sample);
+            if (mailbox.publish()) {
+                handler.post(this);
+            } else {
+                // The client has not taken the last heading yet; it gets this one instead.
+                coalesced++;
+            }
+        }
+
+
+        // Run on the client's thread once it is removed: takes the heading it was never told
+        // about, so the mailbox asks for a delivery again when the client is added back.
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                mailbox.poll();
+            }
+        };
+
+
+        /**
+         * Deliver the latest heading on the client's thread.
+         */
+        @Override
+        public void run() {
+            HeadingSample sample = mailbox.poll();
+            if (sample != null) {
+                listener.onHeadingChanged(sample);
+            }
+        }
+    }
+
+
+    /**
+     * Gives clients in this process the service itself.
+     */
+    class LocalBinder extends Binder {
+
+        HeadingService getService() {
+            return HeadingService.this;
+        }
+    }
+
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Client> clients = new ArrayList<>();
+    private final HeadingStream headings = new HeadingStream();
+
+    private SensorManager sensorManager;
+    private HeadingTracker tracker;
+    private DeclinationSource declinationSource;
+    private boolean running;
+    private SensorRecorder recorder;
+    private TrackLog trackLog;
+    private HeadingStream.Operator trackHeadings;
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Flat is replaced by the remap of the first client.
+        sensorManager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
+        tracker = new HeadingTracker(
+                sensorManager,
+                RotationMath.AXIS_X,
+                RotationMath.AXIS_Y,
+                new AdaptiveRateController.Config()
+                        .setFastPeriodUs(SensorManager.SENSOR_DELAY_FASTEST),
+                this);
+
+        // Smooth out the jitter of the raw heading while still following quick turns.
+        tracker.setFilter(new OneEuroHeadingFilter(1f, 4f, 1f));
+        tracker.setCompassPoints(CompassPointTables.get(this, AppPreferences.getCompassPoints()));
+        declinationSource = new DeclinationSource(this, tracker);
+
+        final File tracks = new File(getFilesDir(), "tracks");
+        if (tracks.isDirectory() || tracks.mkdirs()) {
+            // Sensor timestamps are on the elapsed realtime clock.
+            long now = System.currentTimeMillis();
+            final File track = new File(tracks, "track-" + now + ".bin");
+            trackLog = new TrackLog(track, TRACK_CAPACITY, now, SystemClock.elapsedRealtimeNanos());
+            trackLog.start();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deleteOldTracks(tracks, track);
+                }
+            });
+            trackHeadings = headings.throttle(TRACK_INTERVAL_NANOS);
+            trackHeadings.subscribe(trackLog);
+        } else {
+            Log.w(TAG, "Cannot create " + tracks + ", headings are not logged");
+        }
+    }
+
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+
+    @Override
+    public void onDestroy() {
+        mainHandler.removeCallbacks(idleStop);
+        stopTracking();
+        stopRecording();
+        closeTrackLog();
+        super.onDestroy();
+    }
+
+
+    /**
+     * Start telling a client about new headings. The newest client decides how the device is
+     * assumed to be held, since it belongs to the screen in front.
+     *
+     * @param client the client
+     */
+    void addClient(Client client) {
+        if (!clients.contains(client)) {
+            clients.add(client);
+            client.throttle.reset();
+        }
+        tracker.setAxisRemap(client.axisX, client.axisY);
+        selectSource();
+        updateReportLatency();
+        startTracking();
+    }
+
+
+    /**
+     * Stop telling a client about new headings. The sensor is released shortly after the last
+     * client is removed, unless a log is being recorded.
+     *
+     * @param client the client
+     */
+    void removeClient(Client client) {
+        clients.remove(client);
+        if (client.handler != null) {
+            client.handler.removeCallbacks(client);
+            // The mailbox is only read on the client's thread.
+            client.handler.post(client.drain);
+        }
+        if (!clients.isEmpty()) {
+            selectSource();
+        }
+        updateReportLatency();
+        stopWhenIdle();
+    }
+
+
+    /**
+     * Switch the tracker to the cheapest source good enough for all clients, and let it switch
+     * the sensor off while the device is still unless a client has to follow the first movement.
+     */
+    private void selectSource() {
+        boolean responsive = false;
+        for (int i = 0; i < clients.size(); i++) {
+            responsive |= clients.get(i).responsive;
+        }
+        tracker.setDormantAllowed(!responsive);
+        int source = HeadingSource.select(sensorManager, responsive);
+        if (source != tracker.getSource()) {
+            Log.i(TAG, "Heading source: " + HeadingSource.getName(source));
+            tracker.setSource(source);
+        }
+    }
+
+
+    /**
+     * Let the sensor hub batch samples while they are only recorded, and deliver every one as
+     * soon as it is measured while a client shows them.
+     */
+    private void updateReportLatency() {
+        tracker.setMaxReportLatencyUs(clients.isEmpty() && recorder != null
+                ? BACKGROUND_REPORT_LATENCY_US : 0);
+    }
+
+
+    private void stopWhenIdle() {
+        if (clients.isEmpty() && recorder == null) {
+            mainHandler.removeCallbacks(idleStop);
+            mainHandler.postDelayed(idleStop, IDLE_STOP_MILLIS);
+        }
+    }
+
+
+    private final Runnable idleStop = new Runnable() {
+        @Override
+        public void run() {
+            if (clients.isEmpty() && recorder == null) {
+                stopTracking();
+            }
+        }
+    };
+
+
+    private void startTracking() {
+        mainHandler.removeCallbacks(idleStop);
+        if (!running) {
+            running = true;
+            tracker.start();
+            declinationSource.start();
+        }
+    }
+
+
+    private void stopTracking() {
+        if (running) {
+            running = false;
+            declinationSource.stop();
+            tracker.stop();
+        }
+    }
+
+
+    /**
+     * Fan a new heading out to the clients.
+     *
+     * @param sample the latest heading
+     */
+    @Override
+    public void onHeadingChanged(HeadingSample sample) {
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).offer(sample);
+        }
+        headings.publish(sample);
+    }
+
+
+    /**
+     * Headings for consumers that are not a screen and do not keep the sensor registered
+     * themselves, e.g. to batch them while something else needs headings. Published on the main
+     * thread.
+     *
+     * @return stream of every heading of the tracker
+     */
+    HeadingStream getHeadings() {
+        return headings;
+    }
+
+
+    /**
+     * Set the compass points headings are named with.
+     *
+     * @param compassPoints precompiled map, see {@link CompassPointTables}
+     */
+    void setCompassPoints(RangeMap compassPoints) {
+        tracker.setCompassPoints(compassPoints);
+    }
+
+
+    /**
+     * Apply a change of the true north setting.
+     */
+    void updateDeclination() {
+        if (running) {
+            declinationSource.start();
+        }
+    }
+
+
+    /**
+     * @return where the headings come from, one of the sources of {@link HeadingSource}
+     */
+    int getSource() {
+        return tracker.getSource();
+    }
+
+
+    /**
+     * @return power state of the heading sensor and the time spent in each state
+     */
+    PowerModeController getPowerMode() {
+        return tracker.getPowerMode();
+    }
+
+
+    /**
+     * @return latency and throughput counters of the pipeline, reset whenever the sensor is
+     *         registered again
+     */
+    PipelineStats getStats() {
+        return tracker.getStats();
+    }
+
+
+    /**
+     * @return <code>true</code> if a sensor log is being recorded;
+     *         <code>false</code> otherwise.
+     */
+    boolean isRecording() {
+        return recorder != null;
+    }
+
+
+    /**
+     * Start logging the raw rotation vector events to a new file in the app's external files
+     * directory, so a bad heading can be replayed later. Recording carries on in the background
+     * until {@link #stopRecording()}.
+     */
+    void startRecording() {
+        if (recorder != null) {
+            return;
+        }
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        recorder = new SensorRecorder(
+                new File(dir, "rotation-" + System.currentTimeMillis() + ".bin"),
+                RECORDER_CAPACITY);
+        recorder.start();
+        tracker.setRecorder(recorder);
+        updateReportLatency();
+
+        // Keep the service, and the sensor, alive with no screen bound to it.
+        startService(new Intent(this, HeadingService.class));
+        startForeground(NOTIFICATION_ID, buildNotification());
+        startTracking();
+    }
+
+
+    /**
+     * Stop logging and close the log file off the main thread.
+     */
+    void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        final SensorRecorder finished = recorder;
+        recorder = null;
+        stopForeground(true);
+        stopSelf();
+
+        // The samples still waiting in the sensor hub's FIFO belong in the log.
+        final Context context = getApplicationContext();
+        tracker.flush(new Runnable() {
+            @Override
+            public void run() {
+                if (recorder == null) {
+                    tracker.setRecorder(null);
+                }
+                updateReportLatency();
+                stopWhenIdle();
+
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            finished.close();
+                            toast(context.getString(R.string.recording_saved,
+                                    finished.getFile().getPath()));
+                        } catch (IOException e) {
+                            toast(context.getString(R.string.recording_failed,
+                                    e.getMessage()));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * @return <code>true</code> if this session's headings are being logged;
+     *         <code>false</code> otherwise.
+     */
+    boolean hasTrack() {
+        return trackLog != null;
+    }
+
+
+    /**
+     * Export this session's heading track, up to the latest heading, to a CSV file in the app's
+     * external files directory. The log is read and the CSV written a block at a time off the
+     * main thread, so the export takes little memory however long the session.
+     */
+    void exportTrack() {
+        if (trackLog == null) {
+            return;
+        }
+        final File source = trackLog.getFile();
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        final File csv = new File(dir, source.getName().replace(".bin", ".csv"));
+
+        // Headings still batched in the sensor hub go into the track, and the track is written
+        // out, before it is read.
+        final TrackLog log = trackLog;
+        final Context context = getApplicationContext();
+        tracker.flush(new Runnable() {
+            @Override
+            public void run() {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            log.sync();
+                            writeTrackCsv(source, csv);
+                            toast(context.getString(R.string.track_exported, csv.getPath()));
+                        } catch (IOException e) {
+                            toast(context.getString(R.string.track_export_failed,
+                                    e.getMessage()));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Delete all but the latest tracks of earlier sessions, making room for this session's.
+     * Their names sort by the time the session started.
+     */
+    private static void deleteOldTracks(File dir, final File current) {
+        File[] old = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.equals(current);
+            }
+        });
+        if (old == null) {
+            return;
+        }
+        Arrays.sort(old);
+        for (int i = 0; i < old.length - (MAX_TRACKS - 1); i++) {
+            if (!old[i].delete()) {
+                Log.w(TAG, "Could not delete " + old[i]);
+            }
+        }
+    }
+
+
+    private static void writeTrackCsv(File source, File csv) throws IOException {
+        TrackLogReader reader = new TrackLogReader(source);
+        try {
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(csv), "UTF-8"));
+            try {
+                reader.exportCsv(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    /**
+     * Stop logging headings and close the track log off the main thread.
+     */
+    private void closeTrackLog() {
+        if (trackLog == null) {
+            return;
+        }
+        trackHeadings.close();
+        final TrackLog finished = trackLog;
+        trackLog = null;
+        trackHeadings = null;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finished.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Heading track could not be written", e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Show a message from any thread.
+     *
+     * @param message the message
+     */
+    private void toast(final String message) {
+        final Context context = getApplicationContext();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+
+    private Notification buildNotification() {
+        NotificationManager manager =
+                (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && manager.getNotificationChannel(CHANNEL_ID) == null) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.recording_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_stat_recording)
+                .setContentTitle(getString(R.string.recording_notification))
+                .setContentIntent(open)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,93 @@
+package com.bcampbelldev.compassapp;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+/**
+ * The sensors a {@link HeadingTracker} can take the device's attitude from, and the choice
+ * between them. Not every device has every virtual sensor, and they differ in cost:
+ * <ul>
+ * <li>{@link #ROTATION_VECTOR} fuses the gyroscope in, so it follows quick turns, but the
+ * gyroscope draws the most power.</li>
+ * <li>{@link #GEOMAGNETIC_ROTATION_VECTOR} is fused on the sensor hub without the gyroscope. It
+ * is slower to follow, which does not matter while the device is mostly held still.</li>
+ * <li>{@link #ACCEL_MAG} is the app's own fusion of the accelerometer and the magnetometer, for
+ * devices with neither virtual sensor.</li>
+ * </ul>
+ */
+final class HeadingSource {
+
+    /**
+     * No source: the device lacks the accelerometer or the magnetometer.
+     */
+    static final int NONE = 0;
+    static final int ROTATION_VECTOR = 1;
+    static final int GEOMAGNETIC_ROTATION_VECTOR = 2;
+    static final int ACCEL_MAG = 3;
+
+    // Preferred order when quick turns must be followed, and when they need not be.
+    private static final int[] RESPONSIVE = {
+            ROTATION_VECTOR, GEOMAGNETIC_ROTATION_VECTOR, ACCEL_MAG};
+    private static final int[] LOW_POWER = {
+            GEOMAGNETIC_ROTATION_VECTOR, ACCEL_MAG, ROTATION_VECTOR};
+
+
+    private HeadingSource() {}
+
+
+    /**
+     * Pick the cheapest source that is good enough and that the device has.
+     *
+     * @param sensorManager the system sensor service
+     * @param responsive whether the heading must follow quick turns, e.g. for a camera view
+     * @return one of the source constants, {@link #NONE} if the device has none
+     */
+    static int select(SensorManager sensorManager, boolean responsive) {
+        for (int source : responsive ? RESPONSIVE : LOW_POWER) {
+            if (isAvailable(sensorManager, source)) {
+                return source;
+            }
+        }
+        return NONE;
+    }
+
+
+    /**
+     * @param sensorManager the system sensor service
+     * @param source one of the source constants
+     * @return <code>true</code> if the device has the sensors of the source;
+     *         <code>false</code> otherwise.
+     */
+    static boolean isAvailable(SensorManager sensorManager, int source) {
+        switch (source) {
+            case ROTATION_VECTOR:
+                return sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR) != null;
+            case GEOMAGNETIC_ROTATION_VECTOR:
+                return sensorManager.getDefaultSensor(Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR)
+                        != null;
+            case ACCEL_MAG:
+                return sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null
+                        && sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD) != null;
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * @param source one of the source constants
+     * @return name of the source, for logs and dumps
+     */
+    static String getName(int source) {
+        switch (source) {
+            case ROTATION_VECTOR:
+                return "rotation vector";
+            case GEOMAGNETIC_ROTATION_VECTOR:
+                return "geomagnetic rotation vector";
+            case ACCEL_MAG:
+                return "accelerometer + magnetometer";
+            default:
+                return "none";
+        }
+    }
+}
@@ -0,0 +1,836 @@
+package com.bcampbelldev.compassapp;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.bcampbelldev.compassapp.heading.AccelMagFusion;
+import com.bcampbelldev.compassapp.heading.AdaptiveRateController;
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.HeadingEngine;
+import com.bcampbelldev.compassapp.heading.HeadingFilter;
+import com.bcampbelldev.compassapp.heading.HeadingMailbox;
+import com.bcampbelldev.compassapp.heading.HeadingSample;
+import com.bcampbelldev.compassapp.heading.MagneticAnomalyDetector;
+import com.bcampbelldev.compassapp.heading.MagneticCalibrator;
+import com.bcampbelldev.compassapp.heading.PipelineStats;
+import com.bcampbelldev.compassapp.heading.PowerModeController;
+import com.bcampbelldev.compassapp.heading.RangeMap;
+import com.bcampbelldev.compassapp.heading.RotationMath;
+import com.bcampbelldev.compassapp.heading.RotationVectorBatch;
+import com.bcampbelldev.compassapp.heading.SensorRecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the heading pipeline off the main thread, for the {@link HeadingService}.
+ * <p>
+ * Rotation vector events are delivered to a dedicated {@link HandlerThread}, where the
+ * {@link HeadingEngine} turns them into a heading. Only the latest result is handed to the main
+ * thread through a {@link HeadingMailbox}; when the UI falls behind, older results are dropped
+ * rather than queued, so the main thread does at most one update per message it handles.
+ * <p>
+ * Where the attitude comes from is a {@link HeadingSource}: one of the rotation vector sensors,
+ * or on devices with neither, the accelerometer fused with the magnetometer by an
+ * {@link AccelMagFusion} on the sensor thread. Either way the engine is fed rotation vectors.
+ * <p>
+ * The sampling rate adapts to how fast the heading changes: an {@link AdaptiveRateController}
+ * drops the sensor to a slow rate while the device is still and back to the fast rate on the
+ * first sample that shows motion, within one slow period of 50 ms and the time to register the
+ * sensor again. Once the device has been still for a while longer, e.g. lying on a table, a
+ * {@link PowerModeController} switches the heading sensor off altogether. The accelerometer, at a
+ * low rate, and the significant motion sensor, where there is one, wake it up again, with
+ * headings at the fast rate within a few tenths of a second of the device moving.
+ * <p>
+ * In batched mode (see {@link #setMaxReportLatencyUs(int)}) the sensor hub collects samples in its
+ * FIFO and delivers them in bursts, so the application processor is not woken for every sample.
+ * A burst is gathered into a {@link RotationVectorBatch} and processed in one pass once it has
+ * been delivered: every sample goes through the engine, but only the newest is published.
+ * <p>
+ * The magnetometer is read alongside, at a low rate, to tell whether the heading can be trusted:
+ * a {@link MagneticCalibrator} fits its hard- and soft-iron distortion as the device is turned,
+ * and a {@link MagneticAnomalyDetector} flags readings that do not look like the Earth's field.
+ * The result, together with the accuracy the sensors report, is published with every heading,
+ * see {@link HeadingSample#getMagneticState()}.
+ * <p>
+ * The raw sensor events can be logged with a {@link SensorRecorder} for later replay, see
+ * {@link #setRecorder(SensorRecorder)}.
+ * <p>
+ * Every stage is timed and counted in the tracker's {@link PipelineStats}. Published samples carry
+ * the time of their sensor event, so the main thread can measure the rest of the way to the
+ * screen, see {@link LatencyMonitor}.
+ */
+class HeadingTracker implements SensorEventListener2, Runnable {
+
+    // Samples processed in one pass. A longer burst is processed in several passes.
+    private static final int BATCH_CAPACITY = 256;
+
+    // Sampling period of the magnetometer while the field is only checked, not fused into the
+    // heading, for which a low rate will do.
+    private static final int MAGNETIC_PERIOD_US = 50_000;
+
+    // Magnetometer readings the calibration mostly remembers, about a minute's worth.
+    private static final int CALIBRATION_MEMORY = 1200;
+
+    // Still time after which the heading sensor is switched off, the change of the acceleration
+    // in m/s^2 that wakes it up again, and the sampling period of the accelerometer meanwhile.
+    private static final long DORMANT_AFTER_NANOS = 30_000_000_000L;
+    private static final float WAKE_ACCELERATION = 0.6f;
+    private static final int WAKE_PERIOD_US = 100_000;
+
+    /**
+     * Receives heading updates on the main thread.
+     */
+    interface Listener {
+
+        /**
+         * Called on the main thread with the latest heading.
+         *
+         * @param sample the latest heading, only valid for the duration of the call
+         */
+        void onHeadingChanged(HeadingSample sample);
+    }
+
+
+    private final SensorManager sensorManager;
+    private final Sensor magneticSensor;
+    private final Sensor accelerometer;
+    private final Sensor significantMotion;
+    // Only changed under the tracker's lock.
+    private volatile int source;
+    private volatile Sensor headingSensor;
+    private final Listener listener;
+
+    // Only used on the sensor thread.
+    private final HeadingEngine engine;
+    private final AdaptiveRateController rateController;
+    private final RotationVectorBatch batch = new RotationVectorBatch(BATCH_CAPACITY);
+    private final AccelMagFusion fusion = new AccelMagFusion();
+    private final float[] fusedVector = new float[4];
+    private boolean fusing;
+    private boolean drainScheduled;
+    private long lastTimestamp;
+
+    // Also only used on the sensor thread. The calibration is kept while the tracker is stopped.
+    private final MagneticCalibrator calibrator = new MagneticCalibrator(CALIBRATION_MEMORY);
+    private final MagneticAnomalyDetector anomalyDetector = new MagneticAnomalyDetector();
+    private final float[] field = new float[3];
+    private final float[] up = new float[3];
+    private int rotationAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+    private volatile int magneticState = MagneticAnomalyDetector.OK;
+
+    private final PowerModeController powerMode =
+            new PowerModeController(DORMANT_AFTER_NANOS, WAKE_ACCELERATION);
+
+    // Whether the heading sensor is off until the device moves. Only changed under the
+    // tracker's lock, and otherwise only read on the sensor thread.
+    private boolean dormant;
+
+    // Changed on the main thread under the tracker's lock, read on the sensor thread.
+    private volatile int maxReportLatencyUs;
+    private volatile boolean batching;
+
+    // Run on the main thread once the sensor hub has delivered the samples flushed for them.
+    private final List<Runnable> flushCallbacks = new ArrayList<>();
+
+    private final PipelineStats stats = new PipelineStats();
+    private final HeadingMailbox mailbox = new HeadingMailbox();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread sensorThread;
+    private Handler sensorHandler;
+    private boolean running;
+    private volatile SensorRecorder recorder;
+    private volatile float declination;
+    private volatile RangeMap compassPoints = CompassPoints.THIRTY_TWO_POINT;
+
+    // Requested axis remap, guarded by the tracker's lock, and the one the engine uses, which
+    // only the sensor thread changes.
+    private int axisX;
+    private int axisY;
+    private int engineAxisX;
+    private int engineAxisY;
+
+    // Requested reference of the Earth's field, guarded by the tracker's lock, handed to the
+    // anomaly detector on the sensor thread once the flag is set.
+    private float referenceStrength;
+    private float referenceInclination;
+    private volatile boolean referenceChanged;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param sensorManager the system sensor service
+     * @param axisX world axis the device x axis is mapped onto, see
+     *              {@link HeadingEngine#setAxisRemap(int, int)}
+     * @param axisY world axis the device y axis is mapped onto
+     * @param rateConfig fast and slow sampling periods and the thresholds to switch between them
+     * @param listener receives heading updates on the main thread
+     */
+    HeadingTracker(SensorManager sensorManager, int axisX, int axisY,
+                   AdaptiveRateController.Config rateConfig, Listener listener) {
+        this.sensorManager = sensorManager;
+
+        // The uncalibrated readings are the raw ones the calibration needs. Devices without
+        // them only offer readings the system has already calibrated, which fit just as well.
+        Sensor magnetic = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED);
+        this.magneticSensor = magnetic != null
+                ? magnetic : sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        this.accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        this.significantMotion = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+
+        // Until told otherwise, the source that follows quick turns best.
+        this.source = HeadingSource.select(sensorManager, true);
+        this.headingSensor = getSensor(source);
+        this.engine = new HeadingEngine(axisX, axisY, CompassPoints.THIRTY_TWO_POINT);
+        this.axisX = this.engineAxisX = axisX;
+        this.axisY = this.engineAxisY = axisY;
+        this.rateController = new AdaptiveRateController(rateConfig);
+        this.listener = listener;
+    }
+
+
+    // Processes the samples gathered from a burst once the whole burst has been delivered.
+    private final Runnable drainBatch = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled = false;
+            processBatch();
+        }
+    };
+
+
+    // Fires once on the main thread when the device is carried away while dormant. Unlike the
+    // accelerometer, it also wakes the application processor from suspend.
+    private final TriggerEventListener wakeTrigger = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            if (sensorHandler != null) {
+                sensorHandler.post(wakeUp);
+            }
+        }
+    };
+
+
+    private final Runnable wakeUp = new Runnable() {
+        @Override
+        public void run() {
+            wake(SystemClock.elapsedRealtimeNanos());
+        }
+    };
+
+
+    /**
+     * Set the filter used to smooth the heading. Must be called while the tracker is stopped,
+     * since the filter runs on the sensor thread.
+     *
+     * @param filter the filter, or <code>null</code> to show the raw heading
+     */
+    void setFilter(HeadingFilter filter) {
+        engine.setFilter(filter);
+    }
+
+
+    /**
+     * Set how long the sensor hub may hold samples in its FIFO before delivering them, e.g. while
+     * headings are only logged and nothing shows them. Can be changed while the tracker is
+     * running; the sensors are registered again with the new latency. Batching only happens on
+     * sensors with a FIFO; on others every sample is delivered and processed straight away.
+     *
+     * @param maxReportLatencyUs maximum delay of a sample in microseconds, or 0 to deliver every
+     *                           sample as soon as it is measured
+     */
+    void setMaxReportLatencyUs(int maxReportLatencyUs) {
+        if (maxReportLatencyUs == this.maxReportLatencyUs) {
+            return;
+        }
+        synchronized (this) {
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            if (running) {
+                batching = isBatching();
+                // A dormant tracker picks the latency up when it wakes.
+                if (!dormant) {
+                    unregisterSensors();
+                    registerSensor();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Unregister every sensor. Whatever is left in the FIFO is dropped, and with it the report
+     * of a flush, so a pending flush is as done as it gets.
+     */
+    private void unregisterSensors() {
+        sensorManager.unregisterListener(this);
+        mainHandler.post(flushCompleted);
+    }
+
+
+    private boolean isBatching() {
+        return maxReportLatencyUs > 0 && headingSensor.getFifoMaxEventCount() > 0;
+    }
+
+
+    /**
+     * Set the magnetic declination added to the heading, to show true north. Can be changed while
+     * the tracker is running; it applies from the next batch.
+     *
+     * @param declination declination in degrees, positive when magnetic north is east of true
+     *                    north, or 0 for magnetic headings
+     */
+    void setDeclination(float declination) {
+        this.declination = declination;
+    }
+
+
+    /**
+     * Set the Earth's field at the device's location, from a model, for telling magnetic
+     * interference from it. Until this is called the detector learns the field from the first
+     * readings after each start, which goes wrong if those are already disturbed. Can be
+     * changed while the tracker is running; it applies from the next magnetometer reading.
+     *
+     * @param strength strength of the field in microtesla
+     * @param inclination inclination of the field in degrees, positive downwards
+     */
+    void setMagneticReference(float strength, float inclination) {
+        synchronized (this) {
+            referenceStrength = strength;
+            referenceInclination = inclination;
+        }
+        referenceChanged = true;
+    }
+
+
+    /**
+     * Change how the device is assumed to be held, e.g. flat or upright. Can be changed while the
+     * tracker is running; it applies from the next batch, which starts the filter afresh since
+     * the heading jumps.
+     *
+     * @param axisX world axis the device x axis is mapped onto, see
+     *              {@link HeadingEngine#setAxisRemap(int, int)}
+     * @param axisY world axis the device y axis is mapped onto
+     * @throws IllegalArgumentException if the axes are not a valid remapping
+     */
+    void setAxisRemap(int axisX, int axisY) {
+        if (!RotationMath.isValidRemap(axisX, axisY)) {
+            throw new IllegalArgumentException("Invalid axis remapping " + axisX + ", " + axisY);
+        }
+        synchronized (this) {
+            this.axisX = axisX;
+            this.axisY = axisY;
+        }
+    }
+
+
+    /**
+     * Set the compass points headings are named with. Can be changed while the tracker is
+     * running; it applies from the next batch.
+     *
+     * @param compassPoints precompiled map from heading in whole degrees to compass point text,
+     *                      see {@link CompassPointTables}
+     */
+    void setCompassPoints(RangeMap compassPoints) {
+        this.compassPoints = compassPoints;
+    }
+
+
+    /**
+     * Change where the attitude comes from. Can be changed while the tracker is running: the
+     * new sensor is registered in place of the old one on the running sensor thread, and the
+     * filter carries on from the last heading rather than starting over.
+     *
+     * @param source one of the sources of {@link HeadingSource}, see
+     *               {@link HeadingSource#select(SensorManager, boolean)}
+     */
+    void setSource(int source) {
+        if (source == this.source) {
+            return;
+        }
+        Sensor sensor = getSensor(source);
+        if (sensor == null) {
+            stop();
+        }
+        synchronized (this) {
+            this.source = source;
+            this.headingSensor = sensor;
+            if (running) {
+                batching = isBatching();
+                // A dormant tracker registers the new sensor when it wakes.
+                if (!dormant) {
+                    unregisterSensors();
+                    registerSensor();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return where the attitude comes from, one of the sources of {@link HeadingSource}
+     */
+    int getSource() {
+        return source;
+    }
+
+
+    private Sensor getSensor(int source) {
+        switch (source) {
+            case HeadingSource.ROTATION_VECTOR:
+                return sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+            case HeadingSource.GEOMAGNETIC_ROTATION_VECTOR:
+                return sensorManager.getDefaultSensor(Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR);
+            case HeadingSource.ACCEL_MAG:
+                return sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Log every rotation vector event the tracker receives, before it is processed. Can be changed
+     * while the tracker is running.
+     *
+     * @param recorder started recorder to log to, or <code>null</code> to stop logging. The caller
+     *                 closes the recorder once it has been detached
+     */
+    void setRecorder(SensorRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+
+    /**
+     * Say whether the heading sensor may be switched off while the device is still. Can be
+     * changed while the tracker is running; a dormant sensor stays off until the device moves.
+     *
+     * @param allowed <code>false</code> while headings must follow the first movement without
+     *                delay, e.g. for a camera view
+     */
+    void setDormantAllowed(boolean allowed) {
+        powerMode.setDormantAllowed(allowed);
+    }
+
+
+    /**
+     * @return power state of the heading sensor and the time spent in each state, kept across
+     *         {@link #start()}s
+     */
+    PowerModeController getPowerMode() {
+        return powerMode;
+    }
+
+
+    /**
+     * @return latency and throughput counters of the tracker, reset on every {@link #start()}
+     */
+    PipelineStats getStats() {
+        return stats;
+    }
+
+
+    /**
+     * Ask the sensor hub to deliver the samples waiting in its FIFO right away, e.g. before a log
+     * is closed or exported.
+     *
+     * @param done run on the main thread once the samples have been processed and the heading
+     *             they led to has been handed to the listener; straight away if nothing is
+     *             batched, which includes while the heading sensor is off until the device moves
+     */
+    void flush(Runnable done) {
+        boolean batched;
+        synchronized (this) {
+            batched = sensorThread != null && batching && !dormant;
+        }
+        if (!batched) {
+            done.run();
+            return;
+        }
+        flushCallbacks.add(done);
+        if (flushCallbacks.size() == 1 && !sensorManager.flush(this)) {
+            flushCompleted.run();
+        }
+    }
+
+
+    // Posted after the heading of the flushed samples, so it runs once that has been delivered.
+    private final Runnable flushCompleted = new Runnable() {
+        @Override
+        public void run() {
+            if (flushCallbacks.isEmpty()) {
+                return;
+            }
+            Runnable[] callbacks = flushCallbacks.toArray(new Runnable[flushCallbacks.size()]);
+            flushCallbacks.clear();
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    };
+
+
+    /**
+     * Start the sensor thread and register the rotation vector sensor listener on it.
+     */
+    void start() {
+        if (sensorThread != null || headingSensor == null) {
+            return;
+        }
+        sensorThread = new HandlerThread("HeadingSensor", Process.THREAD_PRIORITY_DISPLAY);
+        sensorThread.start();
+
+        sensorHandler = new Handler(sensorThread.getLooper());
+
+        lastTimestamp = 0;
+        engine.reset();
+        batch.clear();
+        drainScheduled = false;
+        // A heading the last run published may never have been delivered.
+        mailbox.clear();
+        rateController.reset();
+        stats.reset();
+        anomalyDetector.reset();
+        fusion.reset();
+        fusing = source == HeadingSource.ACCEL_MAG;
+        rotationAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+        magneticState = MagneticAnomalyDetector.OK;
+        batching = isBatching();
+
+        running = true;
+        dormant = false;
+        registerSensor();
+        powerMode.start(SystemClock.elapsedRealtimeNanos());
+    }
+
+
+    /**
+     * Register the listener at the sampling period chosen by the rate controller, batched if
+     * batching is enabled, and for the magnetometer at its own low rate, unless the attitude is
+     * fused from it.
+     */
+    private void registerSensor() {
+        int samplingPeriodUs = rateController.getSamplingPeriodUs();
+        if (batching) {
+            sensorManager.registerListener(this, headingSensor, samplingPeriodUs,
+                    maxReportLatencyUs, sensorHandler);
+        } else {
+            sensorManager.registerListener(this, headingSensor, samplingPeriodUs, sensorHandler);
+        }
+        if (magneticSensor != null) {
+            sensorManager.registerListener(this, magneticSensor,
+                    source == HeadingSource.ACCEL_MAG ? samplingPeriodUs : MAGNETIC_PERIOD_US,
+                    batching ? maxReportLatencyUs : 0, sensorHandler);
+        }
+    }
+
+
+    /**
+     * Unregister the sensor listener and stop the sensor thread to save battery.
+     */
+    void stop() {
+        if (sensorThread == null) {
+            return;
+        }
+        // Locked so the sensor thread cannot register again at a new rate after this.
+        synchronized (this) {
+            running = false;
+            sensorManager.unregisterListener(this);
+            if (dormant && significantMotion != null) {
+                sensorManager.cancelTriggerSensor(wakeTrigger, significantMotion);
+            }
+            dormant = false;
+        }
+        powerMode.stop(SystemClock.elapsedRealtimeNanos());
+        sensorThread.quitSafely();
+        sensorThread = null;
+        mainHandler.removeCallbacks(this);
+        mailbox.clear();
+
+        // Nothing more will be delivered, so a pending flush is as done as it gets.
+        mainHandler.post(flushCompleted);
+    }
+
+
+    /**
+     * Called on the sensor thread on a new reading from the sensor. Events that are not newer than
+     * the last one processed are dropped.
+     *
+     * @param event holds information such as the sensor's type, the time-stamp, accuracy, and
+     *              the sensor's data
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (dormant) {
+            // Only the wake trigger is registered, apart from events still on their way.
+            if (event.sensor == accelerometer && powerMode.onAcceleration(event.timestamp,
+                    event.values[0], event.values[1], event.values[2])) {
+                wake(event.timestamp);
+            }
+            return;
+        }
+        if (event.sensor == magneticSensor) {
+            onMagneticField(event);
+            return;
+        }
+        // Only do work on events of the heading source.
+        if (event.sensor != headingSensor) {
+            return;
+        }
+        boolean fused = source == HeadingSource.ACCEL_MAG;
+        if (fused != fusing) {
+            // The source has changed: fuse from fresh readings only.
+            fusing = fused;
+            fusion.reset();
+        }
+        float[] values = event.values;
+        if (fused) {
+            fusion.updateAccelerometer(event.timestamp, values);
+            if (!fusion.getRotationVector(fusedVector)) {
+                return;
+            }
+            values = fusedVector;
+        }
+
+        boolean stale = event.timestamp <= lastTimestamp;
+        stats.onEventReceived(SystemClock.elapsedRealtimeNanos() - event.timestamp, stale);
+        if (stale) {
+            return;
+        }
+        lastTimestamp = event.timestamp;
+
+        // Recording only copies the event into the recorder's ring; it never blocks.
+        SensorRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.record(event.timestamp, values, event.accuracy);
+        }
+
+        if (!batch.add(event.timestamp, values)) {
+            processBatch();
+            batch.add(event.timestamp, values);
+        }
+
+        if (!batching) {
+            processBatch();
+        } else if (!drainScheduled) {
+            // The rest of the burst is delivered before the looper gets to this message.
+            drainScheduled = true;
+            sensorHandler.post(drainBatch);
+        }
+    }
+
+
+    /**
+     * Called on the sensor thread once a flush requested through {@link #flush(Runnable)} has
+     * delivered all samples that were waiting in the FIFO.
+     *
+     * @param sensor the sensor that was flushed
+     */
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        processBatch();
+        // While dormant only the accelerometer is registered, so it is the only one to report.
+        if (sensor == headingSensor || dormant) {
+            mainHandler.post(flushCompleted);
+        }
+    }
+
+
+    /**
+     * Run every gathered sample through the engine and the rate controller, oldest first, then
+     * publish the newest heading.
+     */
+    private void processBatch() {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        engine.setDeclination(declination);
+        engine.setCompassPoints(compassPoints);
+        synchronized (this) {
+            if (axisX != engineAxisX || axisY != engineAxisY) {
+                engineAxisX = axisX;
+                engineAxisY = axisY;
+                engine.setAxisRemap(engineAxisX, engineAxisY);
+                engine.reset();
+            }
+        }
+        boolean rateChanged = false;
+        for (int i = 0; i < size; i++) {
+            engine.update(batch, i);
+            // The raw heading, so the filter's lag does not delay noticing motion.
+            rateChanged |= rateController.update(batch.getTimestamp(i),
+                    engine.getRawAzimuth());
+        }
+        long newest = batch.getTimestamp(size - 1);
+        batch.clear();
+        stats.onBatchProcessed(size, System.nanoTime() - start);
+
+        // Switch the sensor off once the device has been still for long enough, otherwise
+        // register again at the new rate when the device starts or stops moving.
+        if (powerMode.update(newest, rateController.isStill())) {
+            sleep();
+        } else if (rateChanged) {
+            synchronized (this) {
+                if (running) {
+                    unregisterSensors();
+                    registerSensor();
+                }
+            }
+        }
+
+        HeadingSample sample = mailbox.edit();
+        sample.set(engine);
+        sample.setMagneticState(magneticState);
+
+        // Sensor timestamps are on the elapsed realtime clock, frame times on System.nanoTime().
+        long now = System.nanoTime();
+        long eventAge = SystemClock.elapsedRealtimeNanos() - engine.getTimestamp();
+        sample.setTiming(now - eventAge, now);
+
+        // Only wake the main thread if it has taken the previous heading. Otherwise the pending
+        // message will pick up this one instead.
+        boolean taken = mailbox.publish();
+        stats.onPublished(!taken);
+        if (taken) {
+            mainHandler.post(this);
+        }
+    }
+
+
+    /**
+     * Called on the sensor thread to swap the heading sensor, and the magnetometer, for the wake
+     * trigger.
+     */
+    private void sleep() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            dormant = true;
+            unregisterSensors();
+            if (accelerometer != null) {
+                sensorManager.registerListener(this, accelerometer, WAKE_PERIOD_US,
+                        sensorHandler);
+            }
+            if (significantMotion != null) {
+                sensorManager.requestTriggerSensor(wakeTrigger, significantMotion);
+            }
+        }
+    }
+
+
+    /**
+     * Called on the sensor thread when the device moves while dormant, to register the heading
+     * sensor again at the fast rate. The heading has likely changed, so the engine starts afresh
+     * rather than filtering from the heading before.
+     *
+     * @param now time the movement was noticed, on the clock of the sensor events
+     */
+    private void wake(long now) {
+        synchronized (this) {
+            if (!running || !dormant) {
+                return;
+            }
+            dormant = false;
+            sensorManager.unregisterListener(this);
+            if (significantMotion != null) {
+                sensorManager.cancelTriggerSensor(wakeTrigger, significantMotion);
+            }
+            engine.reset();
+            fusion.reset();
+            rateController.reset();
+            registerSensor();
+        }
+        powerMode.wake(now);
+    }
+
+
+    /**
+     * Called on the sensor thread with a magnetometer reading. Feeds the calibration and checks
+     * the calibrated field against the Earth's, using the attitude of the latest heading. The
+     * calibrated field also feeds the fusion when the attitude is fused in the app.
+     *
+     * @param event the magnetometer reading
+     */
+    private void onMagneticField(SensorEvent event) {
+        float[] values = event.values;
+        calibrator.add(values[0], values[1], values[2]);
+        if (calibrator.isCalibrated()) {
+            calibrator.calibrate(values[0], values[1], values[2], field);
+        } else if (values.length >= 6) {
+            // Uncalibrated readings come with the system's own estimate of the hard iron.
+            field[0] = values[0] - values[3];
+            field[1] = values[1] - values[4];
+            field[2] = values[2] - values[5];
+        } else {
+            System.arraycopy(values, 0, field, 0, 3);
+        }
+        anomalyDetector.setCalibrated(calibrator.isCalibrated()
+                || event.accuracy >= SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM);
+        if (fusing) {
+            fusion.updateMagneticField(event.timestamp, field);
+        }
+
+        if (lastTimestamp == 0) {
+            // No heading yet, so the attitude is unknown.
+            return;
+        }
+        if (referenceChanged) {
+            synchronized (this) {
+                referenceChanged = false;
+                anomalyDetector.setReference(referenceStrength, referenceInclination);
+            }
+        }
+        float[] rotation = engine.getDeviceRotationMatrix();
+        up[0] = rotation[6];
+        up[1] = rotation[7];
+        up[2] = rotation[8];
+        int state = anomalyDetector.update(field, up);
+        if (state == MagneticAnomalyDetector.OK
+                && rotationAccuracy == SensorManager.SENSOR_STATUS_UNRELIABLE) {
+            // The fusion itself does not trust its heading.
+            state = MagneticAnomalyDetector.UNCALIBRATED;
+        }
+        magneticState = state;
+    }
+
+
+    /**
+     * Called on the sensor thread when the accuracy of a sensor changes. The rotation vector's
+     * accuracy is folded into the magnetic state published with the headings; the
+     * magnetometer's comes with each of its readings.
+     *
+     * @param sensor the sensor whose accuracy changed
+     * @param accuracy new accuracy of the sensor
+     */
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        if (sensor == headingSensor && source != HeadingSource.ACCEL_MAG) {
+            rotationAccuracy = accuracy;
+        }
+    }
+
+
+    /**
+     * Deliver the latest heading to the listener on the main thread.
+     */
+    @Override
+    public void run() {
+        HeadingSample sample = mailbox.poll();
+        if (sample != null) {
+            listener.onHeadingChanged(sample);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.bcampbelldev.compassapp;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.RequiresApi;
+import android.view.Choreographer;
+import android.view.FrameMetrics;
+import android.view.View;
+import android.view.Window;
+import android.widget.TextView;
+
+import com.bcampbelldev.compassapp.heading.HeadingSample;
+import com.bcampbelldev.compassapp.heading.LatencyHistogram;
+import com.bcampbelldev.compassapp.heading.PipelineStats;
+
+/**
+ * Main thread end of the latency instrumentation of the {@link HeadingService}. Measures how long
+ * a heading takes from the sensor event to the display frame of the activity that draws it, and
+ * optionally shows a live summary of the pipeline's {@link PipelineStats} in a debug overlay.
+ * <p>
+ * The frame is found with a {@link Choreographer} callback, which runs in the same frame as the
+ * views drawing the heading. While the overlay is shown, on API 26 and up the frame's
+ * {@link FrameMetrics} are also used to time the heading to the end of rendering.
+ */
+class LatencyMonitor implements Choreographer.FrameCallback, Runnable {
+
+    // How often the overlay is refreshed.
+    private static final long OVERLAY_PERIOD_MILLIS = 500;
+
+    // Frames waiting for their metrics. Metrics arrive a frame or two after the frame started.
+    private static final int PENDING_FRAMES = 8;
+
+    private PipelineStats stats;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Sensor time of the latest heading that has not been drawn yet, 0 if there is none.
+    private long undrawnEventNanoTime;
+    private boolean frameScheduled;
+
+    // Frame start times and the sensor times of the headings they drew, used as a ring.
+    private final long[] frameTimes = new long[PENDING_FRAMES];
+    private final long[] frameEventTimes = new long[PENDING_FRAMES];
+    private int nextFrame;
+
+    private TextView overlay;
+    private Window overlayWindow;
+    private Object frameMetricsListener;
+    private final StringBuilder overlayText = new StringBuilder();
+
+
+    /**
+     * Set the stats to record into, once the service is connected. Headings only arrive after
+     * that; until then the overlay stays empty.
+     *
+     * @param stats stats of the pipeline whose headings are monitored
+     */
+    void setStats(PipelineStats stats) {
+        this.stats = stats;
+    }
+
+
+    /**
+     * Call on the main thread when a heading has been handed to the views.
+     *
+     * @param sample the heading
+     */
+    void onHeadingDelivered(HeadingSample sample) {
+        stats.onDelivered(System.nanoTime() - sample.getPublishNanoTime(),
+                undrawnEventNanoTime != 0);
+        undrawnEventNanoTime = sample.getEventNanoTime();
+
+        if (!frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+
+    /**
+     * Runs in the frame that draws the latest heading.
+     *
+     * @param frameTimeNanos time at which the frame started rendering
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        if (undrawnEventNanoTime == 0) {
+            return;
+        }
+        stats.onFrame(frameTimeNanos - undrawnEventNanoTime);
+
+        frameTimes[nextFrame] = frameTimeNanos;
+        frameEventTimes[nextFrame] = undrawnEventNanoTime;
+        nextFrame = (nextFrame + 1) % PENDING_FRAMES;
+        undrawnEventNanoTime = 0;
+    }
+
+
+    /**
+     * Record the end-to-end latency of a rendered frame, if it drew a heading.
+     *
+     * @param vsyncNanos start time of the frame
+     * @param renderedNanos time the frame finished rendering
+     */
+    private void onFrameRendered(long vsyncNanos, long renderedNanos) {
+        for (int i = 0; i < PENDING_FRAMES; i++) {
+            if (frameTimes[i] == vsyncNanos) {
+                stats.onFrameRendered(renderedNanos - frameEventTimes[i]);
+                frameTimes[i] = 0;
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Show the debug overlay and start refreshing it.
+     *
+     * @param window window of the activity, used for frame timings
+     * @param overlay view to show the summary in
+     */
+    void showOverlay(Window window, TextView overlay) {
+        if (this.overlay != null) {
+            return;
+        }
+        this.overlay = overlay;
+        overlay.setVisibility(View.VISIBLE);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            overlayWindow = window;
+            frameMetricsListener = FrameMetricsListener.attach(this, window, mainHandler);
+        }
+        mainHandler.post(this);
+    }
+
+
+    /**
+     * Hide the debug overlay and stop collecting frame timings. Also call when the activity
+     * pauses.
+     */
+    void hideOverlay() {
+        if (overlay == null) {
+            return;
+        }
+        overlay.setVisibility(View.GONE);
+        overlay = null;
+        mainHandler.removeCallbacks(this);
+
+        if (frameMetricsListener != null) {
+            FrameMetricsListener.detach(frameMetricsListener, overlayWindow);
+            frameMetricsListener = null;
+            overlayWindow = null;
+        }
+    }
+
+
+    /**
+     * Stop waiting for a frame, e.g. when the activity pauses.
+     */
+    void stop() {
+        hideOverlay();
+        Choreographer.getInstance().removeFrameCallback(this);
+        frameScheduled = false;
+        undrawnEventNanoTime = 0;
+    }
+
+
+    /**
+     * Refresh the debug overlay.
+     */
+    @Override
+    public void run() {
+        if (overlay == null) {
+            return;
+        }
+        if (stats == null) {
+            mainHandler.postDelayed(this, OVERLAY_PERIOD_MILLIS);
+            return;
+        }
+        overlayText.setLength(0);
+        appendLatency("frame ", stats.getFrameLatency());
+        if (frameMetricsListener != null) {
+            overlayText.append('\n');
+            appendLatency("e2e   ", stats.getEndToEndLatency());
+        }
+        overlayText.append("\ndropped ").append(stats.getDroppedCount())
+                .append(" of ").append(stats.getReceivedCount());
+        overlay.setText(overlayText);
+
+        mainHandler.postDelayed(this, OVERLAY_PERIOD_MILLIS);
+    }
+
+
+    private void appendLatency(String label, LatencyHistogram histogram) {
+        overlayText.append(label)
+                .append("p50 ").append(histogram.getPercentileMicros(50) / 1000)
+                .append(" p99 ").append(histogram.getPercentileMicros(99) / 1000)
+                .append(" jitter ").append(histogram.getJitterMicros() / 1000)
+                .append(" ms");
+    }
+
+
+    /**
+     * Frame timings from {@link FrameMetrics}. Kept in its own class so the listener interface is
+     * only loaded where it exists.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private static final class FrameMetricsListener
+            implements Window.OnFrameMetricsAvailableListener {
+
+        private final LatencyMonitor monitor;
+
+
+        private FrameMetricsListener(LatencyMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+
+        static Object attach(LatencyMonitor monitor, Window window, Handler handler) {
+            FrameMetricsListener listener = new FrameMetricsListener(monitor);
+            window.addOnFrameMetricsAvailableListener(listener, handler);
+            return listener;
+        }
+
+
+        static void detach(Object listener, Window window) {
+            window.removeOnFrameMetricsAvailableListener((FrameMetricsListener)listener);
+        }
+
+
+        /**
+         * Called on the main thread once a frame has been rendered.
+         */
+        @Override
+        public void onFrameMetricsAvailable(Window window, FrameMetrics frameMetrics,
+                                            int dropCountSinceLastInvocation) {
+            // The total duration is counted from the intended vsync, which the frame start
+            // time may lag if the main thread was late.
+            long rendered = frameMetrics.getMetric(FrameMetrics.INTENDED_VSYNC_TIMESTAMP)
+                    + frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+            monitor.onFrameRendered(frameMetrics.getMetric(FrameMetrics.VSYNC_TIMESTAMP),
+                    rendered);
+        }
+    }
+}
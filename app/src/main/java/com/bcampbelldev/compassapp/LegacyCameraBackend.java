@@ -0,0 +1,133 @@
+package com.bcampbelldev.compassapp;
+
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import android.os.Handler;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.util.List;
+
+/**
+ * {@link CameraBackend} on the legacy <code>android.hardware.Camera</code> API, for devices whose
+ * Camera2 support is only a shim over it.
+ */
+@SuppressWarnings("deprecation")
+class LegacyCameraBackend implements CameraBackend {
+
+    private static final String TAG = "LegacyCameraBackend";
+
+    private Camera camera;
+    private float viewAngle;
+
+
+    @Override
+    public void open(Handler handler, Callback callback) {
+        int cameraId = getBackCamId();
+        if (cameraId < 0) {
+            callback.onFailed(true);
+            return;
+        }
+        try {
+            camera = Camera.open(cameraId);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error opening camera: " + e.getMessage());
+            callback.onFailed(false);
+            return;
+        }
+        callback.onOpened();
+    }
+
+
+    @Override
+    public void configure(int viewWidth, int viewHeight, boolean powerSave, int[] outSize) {
+        Camera.Parameters params = camera.getParameters();
+
+        List<Camera.Size> sizes = params.getSupportedPreviewSizes();
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        int size = PreviewConfig.chooseSize(widths, heights, viewWidth, viewHeight);
+        params.setPreviewSize(widths[size], heights[size]);
+        outSize[0] = widths[size];
+        outSize[1] = heights[size];
+        viewAngle = params.getHorizontalViewAngle();
+
+        // Frame rates are in frames per 1000 seconds.
+        if (powerSave) {
+            List<int[]> ranges = params.getSupportedPreviewFpsRange();
+            int[] mins = new int[ranges.size()];
+            int[] maxes = new int[ranges.size()];
+            for (int i = 0; i < mins.length; i++) {
+                mins[i] = ranges.get(i)[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+                maxes[i] = ranges.get(i)[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            }
+            int range = PreviewConfig.choosePowerSaveFpsRange(
+                    mins, maxes, PreviewConfig.POWER_SAVE_MIN_FPS * 1000);
+            if (range >= 0) {
+                params.setPreviewFpsRange(mins[range], maxes[range]);
+            }
+        }
+
+        if (params.getSupportedFocusModes()
+                .contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            params.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+        }
+        camera.setParameters(params);
+    }
+
+
+    @Override
+    public float getViewAngle() {
+        return viewAngle;
+    }
+
+
+    @Override
+    public void startPreview(SurfaceHolder holder) throws Exception {
+        camera.setPreviewDisplay(holder);
+        camera.startPreview();
+    }
+
+
+    @Override
+    public void stopPreview() {
+        if (camera != null) {
+            camera.stopPreview();
+        }
+    }
+
+
+    @Override
+    public void close() {
+        if (camera != null) {
+            camera.stopPreview();
+            camera.release();
+            camera = null;
+        }
+    }
+
+
+    /**
+     * Method to determine the ID of the rear-facing camera. Loops through the device's cameras
+     * and checks their orientation using {@link CameraInfo}.
+     *
+     * @return cameraID the integer ID of the rear-facing camera, or -1 if the device does not have
+     *                  a rear-facing camera
+     */
+    private static int getBackCamId() {
+        int numCameras = Camera.getNumberOfCameras();
+        CameraInfo info = new CameraInfo();
+
+        for (int i = 0; i < numCameras; i++) {
+            Camera.getCameraInfo(i, info);
+            if (info.facing == CameraInfo.CAMERA_FACING_BACK) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
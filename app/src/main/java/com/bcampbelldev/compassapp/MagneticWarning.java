@@ -0,0 +1,53 @@
+package com.bcampbelldev.compassapp;
+
+import android.view.View;
+import android.widget.TextView;
+
+import com.bcampbelldev.compassapp.heading.MagneticAnomalyDetector;
+
+/**
+ * Tells the user when the heading cannot be trusted: while the compass needs calibrating, or
+ * while the field is disturbed by metal or electronics nearby. Hidden otherwise.
+ */
+class MagneticWarning {
+
+    private final TextView view;
+    private int shownState = MagneticAnomalyDetector.OK;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param view view to show the warning in, initially hidden
+     */
+    MagneticWarning(TextView view) {
+        this.view = view;
+    }
+
+
+    /**
+     * Show the warning for the state of the latest heading. Only touches the view when the
+     * state changes, so it can be called with every heading.
+     *
+     * @param state one of the states of {@link MagneticAnomalyDetector}
+     */
+    void update(int state) {
+        if (state == shownState) {
+            return;
+        }
+        shownState = state;
+        switch (state) {
+            case MagneticAnomalyDetector.UNCALIBRATED:
+                view.setText(R.string.magnetic_uncalibrated);
+                view.setVisibility(View.VISIBLE);
+                break;
+            case MagneticAnomalyDetector.INTERFERENCE:
+                view.setText(R.string.magnetic_interference);
+                view.setVisibility(View.VISIBLE);
+                break;
+            default:
+                view.setVisibility(View.GONE);
+                break;
+        }
+    }
+}
@@ -1,58 +1,91 @@
 package com.bcampbelldev.compassapp;
 
-import android.content.Context;
+import android.Manifest;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.graphics.Color;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.os.TraceCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.app.AppCompatDelegate;
 import android.support.v7.widget.Toolbar;
-import android.text.SpannableString;
+import android.text.Editable;
+import android.text.Spanned;
 import android.text.style.RelativeSizeSpan;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.animation.Animation;
-import android.view.animation.RotateAnimation;
 import android.widget.CheckBox;
-import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.HeadingFormatter;
+import com.bcampbelldev.compassapp.heading.HeadingSample;
+import com.bcampbelldev.compassapp.heading.HeadingStream;
+import com.bcampbelldev.compassapp.heading.RotationMath;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 
 /**
  * MainActivity of the application. It will display a compass image and the heading based on the
  * orientation of the device compared to magnetic north.
  */
-public class MainActivity extends AppCompatActivity implements SensorEventListener {
+public class MainActivity extends AppCompatActivity
+        implements HeadingTracker.Listener, HeadingConnection.Callback {
+
+    static {
+        // Set once per process, before the first activity is created, so AppCompat applies it
+        // while creating the activity rather than on a later recreate.
+        AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM);
+    }
+
+    private static final int LOCATION_PERMISSIONS = 1;
+    private static final int WAYPOINT_PERMISSIONS = 2;
+
+    private HeadingConnection connection;
 
-    private SensorManager sm;
+    // The headings shown, for the parts of the screen that follow them.
+    private final HeadingStream headings = new HeadingStream();
+    private LatencyMonitor latencyMonitor;
+    private TextView latencyOverlay;
+    private WaypointSource waypointSource;
 
-    protected float[] rotationMatrixFromEvent = new float[16];
-    protected float[] transformedRotationMatrix = new float[16];
-    protected float[] orientation = new float[3];
-    protected float currentDegree = 0f;
     protected int currentNightMode;
-    protected RangeMap map = new RangeMap();
+
+    private AlertDialog calibrationDialog;
+    private boolean fullyDrawnReported;
+    private boolean noSensorsShown;
+    private boolean resumed;
 
     private TextView headingView;
     private TextView arrowView;
-    private ImageView compassView;
+    private MagneticWarning magneticWarning;
+    private CompassRoseView compassView;
+
+    // Heading text is written in place into the TextView's Editable buffer, with one reused span
+    // making the degree heading larger than the compass point text.
+    private final HeadingFormatter headingFormatter = new HeadingFormatter();
+    private final RelativeSizeSpan headingSpan = new RelativeSizeSpan(2f);
+    private Editable headingText;
 
 
     /**
      * Set the ContentView for the activity and initialize the App Bar, the two Views of the
-     * activity, and the SensorManager.
+     * activity, and the SensorManager. Only what the first compass frame needs is done here;
+     * the preferences are loaded in the background and the calibration dialog is only built
+     * once they are.
+     * <p>
+     * Each phase is a trace section, see <code>scripts/cold-start.sh</code>.
      *
      * @param savedInstanceState saved state of the activity. <code>null</code> if state has not
      *                           been saved
@@ -60,167 +93,281 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
 
-        AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM);
+        // Start reading the preferences file while the layout is inflated.
+        AppPreferences.load(this, preferencesLoaded);
+
+        TraceCompat.beginSection("MainActivity.inflate");
+        try {
+            setContentView(R.layout.activity_main);
+
+            // Get current Day/Night mode.
+            currentNightMode = getResources().getConfiguration().uiMode
+                    & Configuration.UI_MODE_NIGHT_MASK;
+
+            // The title color is set in the layout.
+            Toolbar myToolbar = (Toolbar) findViewById(R.id.my_toolbar);
+            setSupportActionBar(myToolbar);
+        } finally {
+            TraceCompat.endSection();
+        }
 
-        // Get current Day/Night mode.
-        currentNightMode = getResources().getConfiguration().uiMode
-                & Configuration.UI_MODE_NIGHT_MASK;
+        TraceCompat.beginSection("MainActivity.connection");
+        try {
+            // The device is held flat in portrait mode with the screen facing upwards, and
+            // mostly held still, so the gyroscope is not needed. Every heading is drawn, on the
+            // main thread.
+            connection = new HeadingConnection(this, new HeadingService.Client(this,
+                    RotationMath.AXIS_X, RotationMath.AXIS_Y, 0, false, null), this);
+            latencyMonitor = new LatencyMonitor();
+        } finally {
+            TraceCompat.endSection();
+        }
 
-        Toolbar myToolbar = (Toolbar) findViewById(R.id.my_toolbar);
-        myToolbar.setTitleTextColor(Color.parseColor("#ffffff"));
-        setSupportActionBar(myToolbar);
+        TraceCompat.beginSection("MainActivity.views");
+        try {
+            compassView = (CompassRoseView)findViewById(R.id.imageViewCompass);
+            headingView = (TextView)findViewById(R.id.heading);
+            headingView.setText("", TextView.BufferType.EDITABLE);
+            headingText = headingView.getEditableText();
+            arrowView = (TextView)findViewById(R.id.arrow);
+            arrowView.setText("\u0394");
+            magneticWarning = new MagneticWarning((TextView)findViewById(R.id.magnetic_warning));
+            latencyOverlay = (TextView)findViewById(R.id.latency_overlay);
+            waypointSource = new WaypointSource(this, (TextView)findViewById(R.id.waypoints),
+                    null);
+            headings.distinctUntilChanged().subscribe(waypointSource);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
 
-        sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        compassView = (ImageView)findViewById(R.id.imageViewCompass);
-        headingView = (TextView)findViewById(R.id.heading);
-        arrowView = (TextView)findViewById(R.id.arrow);
-        arrowView.setText("\u0394");
 
-        // Populate compass RangeMap
-        fillMap(map);
+    /**
+     * Bind to the heading service. Done here rather than in {@link #onResume()} so that coming
+     * back from the camera screen finds the service, and its sensor, still running.
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        TraceCompat.beginSection("MainActivity.bindService");
+        try {
+            connection.bind();
+        } finally {
+            TraceCompat.endSection();
+        }
     }
 
 
     /**
-     * Register the rotation vector sensor listener and display dialog if not previously dismissed.
+     * Start receiving headings and display dialog if not previously dismissed. Headings are
+     * subscribed to first, so the first heading is on its way while the rest of the work is done.
      */
     @Override
     protected void onResume() {
-        // Determine if the user has opted to not show the dialog.
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
-        boolean dialog_status = prefs.getBoolean("dialog_status", false);
-
-        // Show the dialog and save the user's selection on whether or not to show it again.
-        if (!dialog_status) {
-            View dialog = getLayoutInflater().inflate(R.layout.dialog, null);
-            final CheckBox userCheck = (CheckBox) dialog.findViewById(R.id.dialog_layout);
-
-            new AlertDialog.Builder(MainActivity.this)
-                    .setMessage(R.string.dialog_message)
-                    .setTitle(R.string.dialog_title)
-                    .setView(dialog)
-                    .setPositiveButton(R.string.got_it_button, new DialogInterface.OnClickListener() {
-                        public void onClick(DialogInterface dialog, int id) {
-                            SharedPreferences prefs = PreferenceManager
-                                    .getDefaultSharedPreferences(MainActivity.this);
-
-                            SharedPreferences.Editor editor = prefs.edit();
-                            editor.putBoolean("dialog_status", userCheck.isChecked());
-                            editor.apply();
-                            dialog.dismiss();
-                        }
-                    })
-                    .show();
-        }
+        super.onResume();
+        resumed = true;
+        connection.resume();
 
         // Remind the user to keep their device screen parallel to the ground
         String reminder = "Keep device screen parallel to the ground";
         Toast.makeText(this, reminder, Toast.LENGTH_SHORT).show();
 
-        super.onResume();
+        AppPreferences.load(this, preferencesLoaded);
+    }
+
+
+    // Applies the preferences once they are loaded, straight away on later resumes.
+    private final Runnable preferencesLoaded = new Runnable() {
+        @Override
+        public void run() {
+            if (!resumed) {
+                return;
+            }
+            if (!AppPreferences.isDialogDismissed()) {
+                showCalibrationDialog();
+            }
+            if (AppPreferences.isLatencyOverlayShown()) {
+                latencyMonitor.showOverlay(getWindow(), latencyOverlay);
+            }
+            HeadingService service = connection.getService();
+            if (service != null) {
+                onHeadingServiceConnected(service);
+            }
+            waypointSource.start();
+        }
+    };
+
+
+    /**
+     * Show the calibration tip and save the user's selection on whether or not to show it again.
+     * The dialog layout is only inflated when the dialog is actually shown.
+     */
+    private void showCalibrationDialog() {
+        if (calibrationDialog != null && calibrationDialog.isShowing()) {
+            return;
+        }
+        View dialog = getLayoutInflater().inflate(R.layout.dialog, null);
+        final CheckBox userCheck = (CheckBox) dialog.findViewById(R.id.dialog_layout);
+
+        calibrationDialog = new AlertDialog.Builder(MainActivity.this)
+                .setMessage(R.string.dialog_message)
+                .setTitle(R.string.dialog_title)
+                .setView(dialog)
+                .setPositiveButton(R.string.got_it_button, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        AppPreferences.setDialogDismissed(MainActivity.this,
+                                userCheck.isChecked());
+                        dialog.dismiss();
+                    }
+                })
+                .show();
+    }
+
 
-        sm.registerListener(
-                this,
-                sm.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR),
-                SensorManager.SENSOR_DELAY_FASTEST);
+    /**
+     * Let the user choose how many points of the compass the heading is named with. The choice
+     * applies from the next heading.
+     */
+    private void showCompassPointsDialog() {
+        // 4, 8, 16 and 32 points in order.
+        int checked = Integer.numberOfTrailingZeros(AppPreferences.getCompassPoints()) - 2;
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.compass_points_menu_item)
+                .setSingleChoiceItems(R.array.compass_point_modes, checked,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                int points = CompassPoints.FOUR << which;
+                                AppPreferences.setCompassPoints(MainActivity.this, points);
+                                HeadingService service = connection.getService();
+                                if (service != null) {
+                                    service.setCompassPoints(
+                                            CompassPointTables.get(MainActivity.this, points));
+                                }
+                                dialog.dismiss();
+                            }
+                        })
+                .show();
     }
 
 
     /**
-     * Unregister the sensor listener to save battery.
+     * Stop receiving headings. The service releases the sensor shortly afterwards unless another
+     * screen takes over, or a sensor log is being recorded.
      */
     @Override
     protected void onPause() {
         super.onPause();
+        resumed = false;
+        waypointSource.stop();
 
-        sm.unregisterListener(this);
+        connection.pause();
+        latencyMonitor.stop();
     }
 
 
     /**
-     * Called on new reading from sensor. We will use the sensor data to determine the orientation
-     * of the device.
-     *
-     * @param event holds information such as the sensor's type, the time-stamp, accuracy, and
-     *              the sensor's data
+     * Unbind from the heading service.
      */
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        // Only do work on rotation vector sensor events.
-        if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR){
-
-            // Helper function to convert a rotation vector to a rotation matrix: converts device
-            // coordinate to world coordinate.
-            SensorManager.getRotationMatrixFromVector(rotationMatrixFromEvent, event.values);
-
-            // Rotates the given matrix (rotationMatrixFromEvent) so that it is expressed in a
-            // different coordinate system.
-            SensorManager.remapCoordinateSystem(
-                    rotationMatrixFromEvent,
-                    SensorManager.AXIS_X,
-                    SensorManager.AXIS_Y,
-                    transformedRotationMatrix);
-
-            // Compute the three orientation angles of the device (in radians):
-            //    azimuth = orientation[0]
-            //    pitch = orientation[1]
-            //    roll = orientation[2]
-            SensorManager.getOrientation(transformedRotationMatrix, orientation);
-
-            // Get the azimuth in degrees and set the heading TextView. The azimuth (in this
-            // orientation, i.e. the device held flat in portrait mode with the screen facing
-            // upwards and parallel to the ground) is the angle between the y-axis and magnetic
-            // north, rotated around the z-axis.
-            int azimuth = (int)Math.toDegrees(orientation[0]);
-
-            // Azimuth ranges from -180 to 180. Convert to 0-360 range to match compass image.
-            if (azimuth < 0) {
-                azimuth += 360;
-            }
+    protected void onStop() {
+        super.onStop();
+        connection.unbind();
+    }
 
-            // Determine compass point text.
-            String compassPoint = map.getValueForKey(azimuth);
 
-            String heading = String.format("%1$d\u00B0 %2$s", azimuth, compassPoint);
+    /**
+     * Drop the cached compass roses once the app is in the background and memory runs low. The
+     * views keep the roses they show.
+     *
+     * @param level how much memory the system needs back
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            RoseBitmapCache.clear();
+        }
+    }
 
-            // Make the degree heading larger than the compass point text.
-            SpannableString ss = new SpannableString(heading);
-            int spanEnd = 2;
-            if (azimuth != 0) spanEnd = (int)(Math.log10(azimuth)+2);
-            ss.setSpan(new RelativeSizeSpan(2f), 0, spanEnd, 0);
-            headingView.setText(ss);
 
-            // Create a rotation animation.
-            RotateAnimation ra = new RotateAnimation(
-                    currentDegree,
-                    -azimuth,
-                    Animation.RELATIVE_TO_SELF, 0.5f,
-                    Animation.RELATIVE_TO_SELF, 0.5f);
+    /**
+     * Pass the settings on to the heading service once it is connected, and again whenever the
+     * preferences are loaded.
+     *
+     * @param service the heading service
+     */
+    @Override
+    public void onHeadingServiceConnected(HeadingService service) {
+        latencyMonitor.setStats(service.getStats());
+
+        // Name headings in the user's language, on the default compass until the preferences
+        // say otherwise.
+        service.setCompassPoints(CompassPointTables.get(this,
+                AppPreferences.getCompassPoints()));
+        service.updateDeclination();
+
+        if (service.getSource() == HeadingSource.NONE && !noSensorsShown) {
+            noSensorsShown = true;
+            Toast.makeText(this, R.string.no_heading_sensors, Toast.LENGTH_LONG).show();
+        }
+    }
 
-            // How long the animation will take place.
-            ra.setDuration(210);
 
-            // Set the animation after the end of the reservation status.
-            ra.setFillAfter(true);
+    /**
+     * Called on the main thread with the latest heading computed by the {@link HeadingService}.
+     * The azimuth (in this orientation, i.e. the device held flat in portrait mode with the screen
+     * facing upwards and parallel to the ground) is the angle between the y-axis and magnetic
+     * north, rotated around the z-axis.
+     *
+     * @param sample the latest heading
+     */
+    @Override
+    public void onHeadingChanged(HeadingSample sample) {
+        // Only touch the TextView when the displayed text changes. The heading is rewritten in
+        // place and the size span moved over the new degree heading, so that it stays larger than
+        // the compass point text.
+        if (headingFormatter.update(sample.getHeading(), sample.getCompassPoint())) {
+            headingText.replace(0, headingText.length(), headingFormatter);
+            headingText.setSpan(headingSpan, 0, headingFormatter.getDegreesEnd(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        // Turn the compass rose. It catches up with the heading on the next display frame.
+        compassView.setHeading(sample.getAzimuth());
+        headings.publish(sample);
+        magneticWarning.update(sample.getMagneticState());
 
-            // Start the animation.
-            compassView.startAnimation(ra);
+        latencyMonitor.onHeadingDelivered(sample);
 
-            // Update the new current degree.
-            currentDegree = -azimuth;
+        // Startup is complete once the first heading is shown. Measured by
+        // scripts/cold-start.sh from the "Fully drawn" log line.
+        if (!fullyDrawnReported) {
+            fullyDrawnReported = true;
+            reportFullyDrawn();
         }
     }
 
+
     /**
-     * Required by {@link SensorEventListener}, but not used here.
-     *
-     * @param sensor ID of the sensor being monitored
-     * @param accuracy new accuracy of the sensor
+     * Add the heading pipeline's latency stats and the time its sensor spent in each power state
+     * to the activity's state dump, e.g.
+     * <code>adb shell dumpsys activity com.bcampbelldev.compassapp/.MainActivity</code>.
      */
     @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        HeadingService service = connection != null ? connection.getService() : null;
+        if (service != null) {
+            writer.print(prefix);
+            writer.println("Heading pipeline, from the "
+                    + HeadingSource.getName(service.getSource()) + ":");
+            service.getStats().dump(prefix + "  ", writer);
+            service.getPowerMode().dump(prefix + "  ", SystemClock.elapsedRealtimeNanos(), writer);
+        }
+    }
 
 
     /**
@@ -238,9 +385,42 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     }
 
 
+    /**
+     * Update the recording menu item to whether a sensor log is being recorded, and offer the
+     * heading track for export while there is one. The latency overlay toggle is only offered in
+     * debug builds.
+     *
+     * @param menu the options {@link Menu} as last shown
+     * @return <code>true</code> if you want to display the menu;
+     *         <code>false</code> otherwise.
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        HeadingService service = connection.getService();
+        MenuItem recordItem = menu.findItem(R.id.record_menu_item);
+        recordItem.setEnabled(service != null);
+        recordItem.setTitle(service == null || !service.isRecording()
+                ? R.string.record_menu_item : R.string.stop_record_menu_item);
+        menu.findItem(R.id.export_track_menu_item)
+                .setEnabled(service != null && service.hasTrack());
+
+        MenuItem latencyItem = menu.findItem(R.id.latency_menu_item);
+        latencyItem.setVisible(BuildConfig.DEBUG);
+        latencyItem.setChecked(latencyOverlay.getVisibility() == View.VISIBLE);
+
+        menu.findItem(R.id.legacy_camera_menu_item).setChecked(AppPreferences.isLegacyCamera());
+        menu.findItem(R.id.true_north_menu_item).setChecked(AppPreferences.isTrueNorth());
+        menu.findItem(R.id.waypoints_menu_item).setChecked(AppPreferences.isWaypointsShown());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+
     /**
      * Start {@link CameraCompassActivity} on user selection of the camera activity in the App Bar.
-     * Toggle between day and night mode on user selection in the options menu.
+     * Toggle between day and night mode on user selection in the options menu, start or stop
+     * recording a sensor log, export the heading track, show or hide the latency overlay, switch
+     * between magnetic and true north, show or hide the nearest waypoints, choose the compass
+     * points and the camera API.
      *
      * @param item {@link MenuItem} item that the user selected.
      * @return <code>true</code> on code completion on item selection;
@@ -257,12 +437,126 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
             case R.id.mode_menu_item:
                 modeChange(currentNightMode);
                 return true;
+            case R.id.record_menu_item:
+                HeadingService service = connection.getService();
+                if (service == null) {
+                    return true;
+                }
+                if (service.isRecording()) {
+                    service.stopRecording();
+                } else {
+                    service.startRecording();
+                }
+                return true;
+            case R.id.export_track_menu_item:
+                if (connection.getService() != null) {
+                    connection.getService().exportTrack();
+                }
+                return true;
+            case R.id.latency_menu_item:
+                boolean show = !item.isChecked();
+                if (show) {
+                    latencyMonitor.showOverlay(getWindow(), latencyOverlay);
+                } else {
+                    latencyMonitor.hideOverlay();
+                }
+                AppPreferences.setLatencyOverlayShown(this, show);
+                return true;
+            case R.id.compass_points_menu_item:
+                showCompassPointsDialog();
+                return true;
+            case R.id.true_north_menu_item:
+                if (!item.isChecked() && !DeclinationSource.hasPermission(this)) {
+                    // True north is turned on once the permission is granted.
+                    ActivityCompat.requestPermissions(this,
+                            new String[]{Manifest.permission.ACCESS_COARSE_LOCATION},
+                            LOCATION_PERMISSIONS);
+                } else {
+                    AppPreferences.setTrueNorth(this, !item.isChecked());
+                    updateDeclination();
+                }
+                return true;
+            case R.id.waypoints_menu_item:
+                if (!item.isChecked() && !WaypointSource.hasPermission(this)) {
+                    // Waypoints are shown once the permission is granted.
+                    ActivityCompat.requestPermissions(this,
+                            new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
+                            WAYPOINT_PERMISSIONS);
+                } else {
+                    setWaypointsShown(!item.isChecked());
+                }
+                return true;
+            case R.id.legacy_camera_menu_item:
+                AppPreferences.setLegacyCamera(this, !item.isChecked());
+                return true;
             default:
                 return false;
         }
     }
 
 
+    /**
+     * Turn on true north or the waypoints once the location permission they need has been
+     * granted.
+     *
+     * @param requestCode int id of the permissions we're requesting
+     * @param permissions the requested permissions
+     * @param grantResults the results of asking for permissions
+     */
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+                                           @NonNull int[] grantResults) {
+        if (requestCode != LOCATION_PERMISSIONS && requestCode != WAYPOINT_PERMISSIONS) {
+            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+            return;
+        }
+        boolean granted = grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED;
+        if (requestCode == WAYPOINT_PERMISSIONS) {
+            if (granted) {
+                setWaypointsShown(true);
+            } else {
+                Toast.makeText(this, R.string.waypoints_need_location, Toast.LENGTH_SHORT).show();
+            }
+        } else if (granted) {
+            AppPreferences.setTrueNorth(this, true);
+            updateDeclination();
+        } else {
+            Toast.makeText(this, R.string.true_north_needs_location, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+
+    /**
+     * Show or hide the nearest waypoints, telling the user where to put the waypoint file if
+     * there is none yet.
+     *
+     * @param shown whether the waypoints are shown
+     */
+    private void setWaypointsShown(boolean shown) {
+        AppPreferences.setWaypointsShown(this, shown);
+        waypointSource.start();
+
+        File file = WaypointSource.getFile(this);
+        if (shown && (file == null || !file.exists())) {
+            Toast.makeText(this, getString(R.string.waypoints_missing,
+                    file != null ? file.getPath() : WaypointSource.FILE_NAME),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+
+    /**
+     * Apply a change of the true north setting to the headings.
+     */
+    private void updateDeclination() {
+        HeadingService service = connection.getService();
+        if (service != null) {
+            service.updateDeclination();
+        }
+    }
+
+
     /**
      * Method that changes the Night Mode parameter and recreates the app to make the change.
      *
@@ -286,47 +580,4 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
                 return true;
         }
     }
-
-
-    /**
-     * Method that populates the RangeMap so that a range of compass headings corresponds to a
-     * compass point. E.g. 42 degree heading corresponds to "NE".
-     *
-     * @param map the RangeMap to populate.
-     */
-    public void fillMap(RangeMap map) {
-        map.put(0, 5, "N");
-        map.put(6, 16, "NbE");
-        map.put(17, 28, "NNE");
-        map.put(29, 39, "NEbN");
-        map.put(40, 50, "NE");
-        map.put(51, 61, "NEbE");
-        map.put(62, 73, "ENE");
-        map.put(74, 84, "EbN");
-        map.put(85, 95, "E");
-        map.put(96, 106, "EbS");
-        map.put(107, 118, "ESE");
-        map.put(119, 129, "SEbE");
-        map.put(130, 140, "SE");
-        map.put(141, 151, "SEbS");
-        map.put(152, 163, "SSE");
-        map.put(164, 174, "SbE");
-        map.put(175, 185, "S");
-        map.put(186, 196, "SbW");
-        map.put(197, 208, "SSW");
-        map.put(209, 219, "SWbS");
-        map.put(220, 230, "SW");
-        map.put(231, 241, "SWbW");
-        map.put(242, 253, "WSW");
-        map.put(254, 264, "WbS");
-        map.put(265, 275, "W");
-        map.put(276, 286, "WbN");
-        map.put(287, 298, "WNW");
-        map.put(299, 309, "NWbW");
-        map.put(310, 320, "NW");
-        map.put(321, 331, "NWbN");
-        map.put(332, 343, "NNW");
-        map.put(344, 354, "NbW");
-        map.put(355, 359, "N");
-    }
 }
\ No newline at end of file
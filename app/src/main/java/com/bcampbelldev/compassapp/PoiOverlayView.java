@@ -0,0 +1,176 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.Display;
+import android.view.View;
+
+import com.bcampbelldev.compassapp.heading.PoiProjector;
+import com.bcampbelldev.compassapp.heading.WaypointIndex;
+
+/**
+ * View that marks waypoints where they appear in the camera preview behind it.
+ * <p>
+ * New orientations only copy the rotation matrix and invalidate the view, so the points are
+ * projected at most once per display frame, in {@link #onDraw(Canvas)}. All points in view are
+ * drawn with a single <code>drawPoints</code> call; only the nearest get a text label, which is
+ * built once per location rather than per frame.
+ */
+public class PoiOverlayView extends View {
+
+    // Most waypoints considered at once, and how far away they may be.
+    private static final int CAPACITY = 5000;
+    private static final float RANGE_METERS = 25_000f;
+
+    // Labels beyond the nearest few would only clutter the preview.
+    private static final int MAX_LABELS = 12;
+
+    // Used until the camera reports its own field of view.
+    private static final float DEFAULT_VIEW_ANGLE = 60f;
+
+    private final PoiProjector projector = new PoiProjector(CAPACITY);
+    private final float[] rotationMatrix = new float[9];
+    private boolean hasRotation;
+    private float viewAngle = DEFAULT_VIEW_ANGLE;
+
+    private final Paint pointPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float labelOffset;
+
+    // Labels of the waypoints in range, built when first shown.
+    private String[] labels = new String[0];
+
+
+    /**
+     * Class constructors.
+     *
+     * @param context context the view is running in
+     */
+    public PoiOverlayView(Context context) {
+        this(context, null);
+    }
+
+
+    public PoiOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        float density = getResources().getDisplayMetrics().density;
+        pointPaint.setColor(Color.YELLOW);
+        pointPaint.setStrokeWidth(8 * density);
+        pointPaint.setStrokeCap(Paint.Cap.ROUND);
+
+        labelPaint.setColor(Color.WHITE);
+        labelPaint.setTextAlign(Paint.Align.CENTER);
+        labelPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 12,
+                getResources().getDisplayMetrics()));
+        labelPaint.setShadowLayer(2 * density, density, density, Color.BLACK);
+        labelOffset = 10 * density;
+    }
+
+
+    /**
+     * Set the horizontal field of view of the camera preview behind the view.
+     *
+     * @param degrees field of view across the width of the view
+     */
+    public void setViewAngle(float degrees) {
+        viewAngle = degrees;
+        updateView(getWidth(), getHeight());
+        invalidate();
+    }
+
+
+    /**
+     * Choose the waypoints to show from a new location. Call when the location has moved enough
+     * to matter, not on every fix.
+     *
+     * @param index waypoints to choose from
+     * @param latitude latitude of the device in degrees
+     * @param longitude longitude of the device in degrees
+     * @param declination magnetic declination at the device in degrees, see
+     *                    {@link DeclinationSource#getDeclination(double, double)}
+     */
+    public void setPoints(WaypointIndex index, double latitude, double longitude,
+                          float declination) {
+        int count = projector.setPoints(index, latitude, longitude, RANGE_METERS, declination);
+        labels = new String[count];
+        invalidate();
+    }
+
+
+    /**
+     * Set the device orientation. Cheap enough to call on every heading; the points are only
+     * projected when the view is drawn.
+     *
+     * @param matrix remapped rotation matrix of the heading, see
+     *               {@link com.bcampbelldev.compassapp.heading.HeadingSample#getRotationMatrix()}
+     */
+    public void setRotationMatrix(float[] matrix) {
+        System.arraycopy(matrix, 0, rotationMatrix, 0, 9);
+        hasRotation = true;
+        if (projector.size() > 0) {
+            invalidate();
+        }
+    }
+
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        Display display = getDisplay();
+        if (display != null) {
+            projector.setDisplayRotation(display.getRotation() * 90);
+        }
+    }
+
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateView(w, h);
+    }
+
+
+    private void updateView(int width, int height) {
+        if (width > 0 && height > 0) {
+            projector.setView(width, height, viewAngle, pointPaint.getStrokeWidth());
+        }
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!hasRotation || projector.size() == 0) {
+            return;
+        }
+        int visible = projector.project(rotationMatrix);
+        if (visible == 0) {
+            return;
+        }
+        float[] screen = projector.getScreenPositions();
+        canvas.drawPoints(screen, 0, visible * 2, pointPaint);
+
+        // The nearest come first.
+        for (int i = 0; i < Math.min(visible, MAX_LABELS); i++) {
+            int point = projector.getVisiblePoint(i);
+            String label = labels[point];
+            if (label == null) {
+                label = labels[point] = formatLabel(projector.getName(point),
+                        projector.getDistance(point));
+            }
+            canvas.drawText(label, screen[i * 2], screen[i * 2 + 1] - labelOffset, labelPaint);
+        }
+    }
+
+
+    private static String formatLabel(String name, float meters) {
+        if (meters < 1000) {
+            return name + "  " + Math.round(meters) + " m";
+        }
+        return name + "  " + Math.round(meters / 100) / 10f + " km";
+    }
+}
@@ -0,0 +1,65 @@
+package com.bcampbelldev.compassapp;
+
+/**
+ * Chooses preview sizes and frame rates for the camera backends. The preview only sits behind the
+ * compass, so it should stream no more pixels and frames than the screen can show.
+ */
+final class PreviewConfig {
+
+    // Lowest frame rate used in battery saver mode, still smooth enough to aim the device.
+    static final int POWER_SAVE_MIN_FPS = 15;
+
+
+    private PreviewConfig() {}
+
+
+    /**
+     * Choose the smallest size that covers the view, so nothing is upscaled. Sizes are compared
+     * by area.
+     *
+     * @param widths widths of the supported sizes
+     * @param heights heights of the supported sizes
+     * @param viewWidth width of the view
+     * @param viewHeight height of the view
+     * @return index of the chosen size. The largest size if none covers the view
+     */
+    static int chooseSize(int[] widths, int[] heights, int viewWidth, int viewHeight) {
+        int best = -1;
+        int largest = 0;
+        for (int i = 0; i < widths.length; i++) {
+            long area = (long)widths[i] * heights[i];
+            if (area > (long)widths[largest] * heights[largest]) {
+                largest = i;
+            }
+            if (widths[i] >= viewWidth && heights[i] >= viewHeight
+                    && (best < 0 || area < (long)widths[best] * heights[best])) {
+                best = i;
+            }
+        }
+        return best >= 0 ? best : largest;
+    }
+
+
+    /**
+     * Choose a frame rate range for battery saver mode: the one with the lowest maximum of at
+     * least {@link #POWER_SAVE_MIN_FPS}, preferring the lowest minimum.
+     *
+     * @param mins minimum frame rates of the supported ranges
+     * @param maxes maximum frame rates of the supported ranges, in the same unit
+     * @param minFps {@link #POWER_SAVE_MIN_FPS} in the unit of the ranges
+     * @return index of the chosen range, or -1 to keep the default
+     */
+    static int choosePowerSaveFpsRange(int[] mins, int[] maxes, int minFps) {
+        int best = -1;
+        for (int i = 0; i < maxes.length; i++) {
+            if (maxes[i] < minFps) {
+                continue;
+            }
+            if (best < 0 || maxes[i] < maxes[best]
+                    || (maxes[i] == maxes[best] && mins[i] < mins[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,113 @@
+package com.bcampbelldev.compassapp;
+
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.LruCache;
+
+/**
+ * The compass rose bitmaps, decoded at the size they are drawn at and kept for the life of the
+ * process. Switching between day and night mode recreates the activity, which then finds its
+ * rose here instead of decoding the full resolution image again; each mode has its own entry,
+ * since the rose image differs between them.
+ * <p>
+ * A rose is decoded with the largest power-of-two subsampling that keeps it at least as large as
+ * the view, then scaled the rest of the way by the decoder, so neither the full resolution image
+ * nor an intermediate one is ever on the heap. Where the platform has them, the roses of
+ * hardware accelerated views are hardware bitmaps, which live in graphics memory only.
+ * <p>
+ * Only accessed on the main thread.
+ */
+final class RoseBitmapCache {
+
+    // A rose filling a large screen takes a few megabytes, so this holds both modes of both
+    // screens with room to spare, while staying a small part of the heap.
+    private static final int MAX_BYTES = (int)Math.min(Runtime.getRuntime().maxMemory() / 16,
+            32 * 1024 * 1024);
+
+    // Keyed by the resource, the size, the mode and whether it is a hardware bitmap.
+    private static final LruCache<String, Bitmap> bitmaps =
+            new LruCache<String, Bitmap>(MAX_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+
+    private RoseBitmapCache() {}
+
+
+    /**
+     * @param resources resources of the activity, whose configuration gives the mode
+     * @param resId bitmap resource of the rose
+     * @param maxWidth width available for the rose in pixels
+     * @param maxHeight height available for the rose in pixels
+     * @param hardware whether the rose is drawn on a hardware accelerated canvas only, so it may
+     *                 be a hardware bitmap
+     * @return the rose scaled to fit the size, keeping its aspect ratio but never scaled up, or
+     *         <code>null</code> if the resource cannot be decoded
+     */
+    static Bitmap get(Resources resources, int resId, int maxWidth, int maxHeight,
+                      boolean hardware) {
+        boolean night = (resources.getConfiguration().uiMode
+                & Configuration.UI_MODE_NIGHT_MASK) == Configuration.UI_MODE_NIGHT_YES;
+        String key = resId + "/" + maxWidth + "x" + maxHeight + (night ? "/night" : "/day")
+                + (hardware ? "/hardware" : "");
+
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap == null) {
+            bitmap = decode(resources, resId, maxWidth, maxHeight, hardware);
+            if (bitmap != null) {
+                bitmaps.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Drop every rose, e.g. when the system runs low on memory.
+     */
+    static void clear() {
+        bitmaps.evictAll();
+    }
+
+
+    private static Bitmap decode(Resources resources, int resId, int maxWidth, int maxHeight,
+                                 boolean hardware) {
+        // Only read the size of the image in the resource, as stored.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        BitmapFactory.decodeResource(resources, resId, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0 || maxWidth <= 0 || maxHeight <= 0) {
+            return null;
+        }
+
+        float scale = Math.min(1f, Math.min((float)maxWidth / width, (float)maxHeight / height));
+        int targetWidth = Math.max(1, Math.round(width * scale));
+        int targetHeight = Math.max(1, Math.round(height * scale));
+
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // The decoder scales the subsampled image by the ratio of the two densities.
+        options.inDensity = width / sampleSize;
+        options.inTargetDensity = targetWidth;
+        options.inScaled = options.inDensity != options.inTargetDensity;
+        if (hardware && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            options.inPreferredConfig = Bitmap.Config.HARDWARE;
+        }
+        return BitmapFactory.decodeResource(resources, resId, options);
+    }
+}
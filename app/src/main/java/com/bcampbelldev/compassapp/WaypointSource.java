@@ -0,0 +1,331 @@
+package com.bcampbelldev.compassapp;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.HeadingSample;
+import com.bcampbelldev.compassapp.heading.HeadingStream;
+import com.bcampbelldev.compassapp.heading.NearestWaypoints;
+import com.bcampbelldev.compassapp.heading.WaypointIndex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the waypoints nearest to the device, with the distance, bearing and turn to each of them,
+ * or marks the waypoints around the device in a camera preview, while waypoints are enabled.
+ * <p>
+ * Waypoints are read from <code>waypoints.csv</code> in the app's external files directory, one
+ * <code>name,latitude,longitude</code> per line, into a {@link WaypointIndex} on a background
+ * thread. The index is kept in memory for the life of the process and reread when the file
+ * changes. The nearest waypoints are only searched again when a location fix has moved the
+ * device far enough; each heading only turns their bearings into relative angles. Bearings are
+ * true, so headings are turned into true headings with the declination at the device's location
+ * first, whether or not true north is shown. Subscribe it
+ * to a {@link HeadingStream} of the headings; the turns are shown in whole degrees, so it only
+ * needs those that change the whole-degree heading.
+ */
+class WaypointSource implements LocationListener, HeadingStream.Subscriber {
+
+    private static final String TAG = "WaypointSource";
+
+    static final String FILE_NAME = "waypoints.csv";
+
+    // Number of waypoints shown.
+    private static final int COUNT = 3;
+
+    // The nearest waypoints are searched again once the device has moved this far.
+    private static final float MIN_MOVE_METERS = 10f;
+
+    private static final long MIN_UPDATE_MILLIS = 2000;
+    private static final float MIN_UPDATE_METERS = 5f;
+
+    // Shared by all activities. Only accessed on the main thread.
+    private static WaypointIndex index;
+    private static long indexModified;
+    private static boolean indexLoading;
+    private static final List<WaypointSource> waitingForIndex = new ArrayList<>();
+
+    private final Context context;
+    private final TextView view;
+    private final PoiOverlayView overlay;
+    private final LocationManager locationManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private NearestWaypoints nearest;
+    private Location location;
+    private boolean started;
+
+    // Latest heading relative to magnetic north, if there has been one since the waypoints were
+    // started, and the declination at the device's location.
+    private float magneticAzimuth;
+    private boolean hasAzimuth;
+    private float declination;
+
+    // Text last shown, so the view is only touched when it changes.
+    private final StringBuilder text = new StringBuilder();
+    private String shownText = "";
+
+
+    /**
+     * Class constructor.
+     *
+     * @param context context used to get system services and the external files directory
+     * @param view view the nearest waypoints are listed in, or <code>null</code>. Hidden while
+     *             waypoints are disabled
+     * @param overlay view that marks the waypoints in a camera preview, or <code>null</code>.
+     *                Hidden while waypoints are disabled
+     */
+    WaypointSource(Context context, TextView view, PoiOverlayView overlay) {
+        this.context = context.getApplicationContext();
+        this.view = view;
+        this.overlay = overlay;
+        this.locationManager = (LocationManager)context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+
+    /**
+     * @param context any context of the app
+     * @return <code>true</code> if the app may read the device's precise location;
+     *         <code>false</code> otherwise.
+     */
+    static boolean hasPermission(Context context) {
+        return ContextCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+
+    /**
+     * @param context any context of the app
+     * @return the file waypoints are read from, or <code>null</code> if external storage is not
+     *         available
+     */
+    static File getFile(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        return dir != null ? new File(dir, FILE_NAME) : null;
+    }
+
+
+    /**
+     * Start showing the nearest waypoints if waypoints are enabled, or hide them otherwise. Call
+     * from <code>onResume</code> and whenever the setting changes.
+     */
+    void start() {
+        stop();
+        setVisible(false);
+        if (!AppPreferences.isWaypointsShown() || !hasPermission(context)) {
+            return;
+        }
+        started = true;
+
+        try {
+            for (String provider : locationManager.getProviders(true)) {
+                Location last = locationManager.getLastKnownLocation(provider);
+                if (last != null && (location == null || last.getTime() > location.getTime())) {
+                    location = last;
+                }
+            }
+            for (String provider : new String[]{LocationManager.GPS_PROVIDER,
+                    LocationManager.NETWORK_PROVIDER}) {
+                if (locationManager.isProviderEnabled(provider)) {
+                    locationManager.requestLocationUpdates(provider,
+                            MIN_UPDATE_MILLIS, MIN_UPDATE_METERS, this);
+                }
+            }
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Location unavailable: " + e.getMessage());
+        }
+
+        File file = getFile(context);
+        if (file != null && (index == null || file.lastModified() != indexModified)) {
+            loadIndex(file);
+        }
+        update();
+    }
+
+
+    /**
+     * Stop listening for locations. The waypoints shown stay as they are.
+     */
+    void stop() {
+        if (started) {
+            started = false;
+            locationManager.removeUpdates(this);
+        }
+    }
+
+
+    /**
+     * Update the angles to the waypoints for a new heading. Cheap enough to call on every
+     * heading.
+     *
+     * @param sample the latest heading
+     */
+    @Override
+    public void onHeading(HeadingSample sample) {
+        magneticAzimuth = sample.getAzimuth() - sample.getDeclination();
+        hasAzimuth = true;
+        showNearest();
+    }
+
+
+    private void showNearest() {
+        if (view == null || !started || !hasAzimuth || nearest == null || nearest.size() == 0) {
+            return;
+        }
+        nearest.setHeading(magneticAzimuth + declination);
+
+        text.setLength(0);
+        for (int i = 0; i < nearest.size(); i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            float distance = nearest.getDistance(i);
+            text.append(nearest.getName(i)).append("  ");
+            if (distance < 1000) {
+                text.append(Math.round(distance)).append(" m");
+            } else {
+                text.append(Math.round(distance / 100) / 10f).append(" km");
+            }
+            text.append("  ").append(nearest.getBearingPoint(i)).append("  ");
+
+            int turn = Math.round(nearest.getRelativeAngle(i));
+            text.append(turn < 0 ? "\u2190 " : "\u2192 ")
+                    .append(Math.abs(turn))
+                    .append('\u00b0');
+        }
+        if (!shownText.contentEquals(text)) {
+            shownText = text.toString();
+            view.setText(shownText);
+        }
+    }
+
+
+    /**
+     * Search the nearest waypoints again if the location has moved far enough.
+     */
+    private void update() {
+        if (!started || index == null || location == null) {
+            return;
+        }
+        if (nearest == null) {
+            // Bearings read more easily on a 16 point compass, whatever the heading uses.
+            nearest = new NearestWaypoints(index, COUNT, MIN_MOVE_METERS,
+                    CompassPointTables.get(context, CompassPoints.SIXTEEN));
+        }
+        boolean moved = nearest.setLocation(location.getLatitude(), location.getLongitude());
+        if (moved) {
+            declination = DeclinationSource.getDeclination(
+                    location.getLatitude(), location.getLongitude());
+        }
+        if (moved && overlay != null) {
+            overlay.setPoints(index, location.getLatitude(), location.getLongitude(), declination);
+        }
+        setVisible(nearest.size() > 0);
+        if (moved) {
+            // Headings may not change for a while.
+            showNearest();
+        }
+    }
+
+
+    private void setVisible(boolean visible) {
+        int visibility = visible ? View.VISIBLE : View.GONE;
+        if (view != null) {
+            view.setVisibility(visibility);
+        }
+        if (overlay != null) {
+            overlay.setVisibility(visibility);
+        }
+    }
+
+
+    @Override
+    public void onLocationChanged(Location location) {
+        this.location = location;
+        update();
+    }
+
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+
+    @Override
+    public void onProviderEnabled(String provider) {}
+
+
+    @Override
+    public void onProviderDisabled(String provider) {}
+
+
+    /**
+     * Read the waypoint file into an index on a background thread.
+     */
+    private void loadIndex(final File file) {
+        waitingForIndex.add(this);
+        if (indexLoading) {
+            return;
+        }
+        indexLoading = true;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long modified = file.lastModified();
+                final WaypointIndex loaded = read(file);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        indexLoading = false;
+                        index = loaded;
+                        indexModified = modified;
+                        for (WaypointSource source : waitingForIndex) {
+                            // Searches made in the old index are stale.
+                            source.nearest = null;
+                            source.update();
+                        }
+                        waitingForIndex.clear();
+                    }
+                });
+            }
+        });
+    }
+
+
+    private static WaypointIndex read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                return WaypointIndex.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read waypoints: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.bcampbelldev.compassapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the preview size chosen for a view, including when no size covers it and on ties, and
+ * the frame rate range chosen for battery saver mode.
+ */
+public class PreviewConfigTest {
+
+    private static final int[] WIDTHS = {320, 640, 1280, 1920, 720};
+    private static final int[] HEIGHTS = {240, 480, 720, 1080, 1280};
+
+
+    @Test
+    public void choosesTheSmallestSizeCoveringTheView() {
+        assertEquals(1, PreviewConfig.chooseSize(WIDTHS, HEIGHTS, 600, 400));
+        assertEquals(2, PreviewConfig.chooseSize(WIDTHS, HEIGHTS, 1280, 720));
+        // Portrait: only the tall size covers it.
+        assertEquals(4, PreviewConfig.chooseSize(WIDTHS, HEIGHTS, 700, 1000));
+        assertEquals(0, PreviewConfig.chooseSize(WIDTHS, HEIGHTS, 1, 1));
+    }
+
+
+    @Test
+    public void fallsBackToTheLargestSizeWhenNoneCovers() {
+        assertEquals(3, PreviewConfig.chooseSize(WIDTHS, HEIGHTS, 2560, 1440));
+        assertEquals(3, PreviewConfig.chooseSize(WIDTHS, HEIGHTS, 2000, 100));
+    }
+
+
+    @Test
+    public void keepsTheFirstOfSizesWithEqualArea() {
+        int[] widths = {1600, 1200, 800};
+        int[] heights = {900, 1200, 1800};
+        assertEquals(0, PreviewConfig.chooseSize(widths, heights, 800, 900));
+        assertEquals(1, PreviewConfig.chooseSize(widths, heights, 800, 1000));
+        // None covers it: the first of the equally large sizes.
+        assertEquals(0, PreviewConfig.chooseSize(widths, heights, 2000, 2000));
+    }
+
+
+    @Test
+    public void choosesTheLowestPowerSaveRangeAboveTheMinimum() {
+        // As the legacy camera reports them, in frames per 1000 seconds.
+        int[] mins = {7_000, 15_000, 24_000, 30_000, 10_000};
+        int[] maxes = {7_000, 30_000, 24_000, 30_000, 24_000};
+        assertEquals(4, PreviewConfig.choosePowerSaveFpsRange(mins, maxes, 15_000));
+
+        // Equal maximums prefer the lowest minimum, then the first.
+        assertEquals(1, PreviewConfig.choosePowerSaveFpsRange(
+                new int[] {30, 15, 15}, new int[] {30, 30, 30}, 15));
+    }
+
+
+    @Test
+    public void keepsTheDefaultRangeWhenNoneIsFastEnough() {
+        assertEquals(-1, PreviewConfig.choosePowerSaveFpsRange(
+                new int[] {5, 7, 10}, new int[] {5, 10, 14}, PreviewConfig.POWER_SAVE_MIN_FPS));
+        assertEquals(-1, PreviewConfig.choosePowerSaveFpsRange(
+                new int[0], new int[0], PreviewConfig.POWER_SAVE_MIN_FPS));
+    }
+}
@@ -0,0 +1,61 @@
+package com.bcampbelldev.compassapp.heading.bench;
+
+import com.bcampbelldev.compassapp.heading.HeadingFilter;
+import com.bcampbelldev.compassapp.heading.KalmanHeadingFilter;
+import com.bcampbelldev.compassapp.heading.LowPassHeadingFilter;
+import com.bcampbelldev.compassapp.heading.OneEuroHeadingFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One step of each heading filter on a noisy azimuth that wraps through north.
+ */
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    @Param({"lowpass", "oneeuro", "kalman"})
+    public String filter;
+
+    private HeadingFilter headingFilter;
+    private float[] azimuths;
+    private long timestamp;
+    private int index;
+
+
+    /**
+     * @param name filter name as used in the benchmark parameters
+     * @return the filter with typical settings, or <code>null</code> for "none"
+     */
+    static HeadingFilter create(String name) {
+        switch (name) {
+            case "none":
+                return null;
+            case "lowpass":
+                return new LowPassHeadingFilter(0.2f);
+            case "oneeuro":
+                return new OneEuroHeadingFilter(1f, 4f, 1f);
+            case "kalman":
+                return new KalmanHeadingFilter(50f, 4f);
+            default:
+                throw new IllegalArgumentException("Unknown filter " + name);
+        }
+    }
+
+
+    @Setup
+    public void setUp() {
+        headingFilter = create(filter);
+        azimuths = Samples.noisyAzimuths();
+    }
+
+
+    @Benchmark
+    public float filter() {
+        timestamp += Samples.PERIOD_NANOS;
+        return headingFilter.filter(timestamp, azimuths[index++ & Samples.MASK]);
+    }
+}
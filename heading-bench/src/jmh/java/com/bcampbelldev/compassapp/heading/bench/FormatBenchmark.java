@@ -0,0 +1,53 @@
+package com.bcampbelldev.compassapp.heading.bench;
+
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.HeadingFormatter;
+import com.bcampbelldev.compassapp.heading.RangeMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the heading text for a sensor event whose heading changed. <code>stringFormat</code>
+ * is how <code>MainActivity.onSensorChanged</code> used to do it and is kept as the baseline;
+ * <code>headingFormatter</code> is what the app does now.
+ */
+@State(Scope.Thread)
+public class FormatBenchmark {
+
+    private final RangeMap map = CompassPoints.THIRTY_TWO_POINT;
+    private final HeadingFormatter formatter = new HeadingFormatter();
+    private final String[] compassPoints = new String[360];
+    private int heading;
+
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < 360; i++) {
+            compassPoints[i] = map.getValueForKey(i);
+        }
+    }
+
+
+    private int nextHeading() {
+        heading = heading == 359 ? 0 : heading + 1;
+        return heading;
+    }
+
+
+    @Benchmark
+    public String stringFormat() {
+        int azimuth = nextHeading();
+        return String.format("%1$d\u00B0 %2$s", azimuth, compassPoints[azimuth]);
+    }
+
+
+    @Benchmark
+    public HeadingFormatter headingFormatter() {
+        int azimuth = nextHeading();
+        formatter.update(azimuth, compassPoints[azimuth]);
+        return formatter;
+    }
+}
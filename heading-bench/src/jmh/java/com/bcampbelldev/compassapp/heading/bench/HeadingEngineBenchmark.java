@@ -0,0 +1,48 @@
+package com.bcampbelldev.compassapp.heading.bench;
+
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.HeadingEngine;
+import com.bcampbelldev.compassapp.heading.RotationMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The whole rotation vector to heading pipeline run for one sensor event: rotation matrix, axis
+ * remap, orientation, azimuth, filter and compass point.
+ */
+@State(Scope.Thread)
+public class HeadingEngineBenchmark {
+
+    // Flat for the compass screen, upright for the camera screen.
+    @Param({"flat", "upright"})
+    public String holding;
+
+    @Param({"none", "lowpass", "oneeuro", "kalman"})
+    public String filter;
+
+    private HeadingEngine engine;
+    private float[][] vectors;
+    private long timestamp;
+    private int index;
+
+
+    @Setup
+    public void setUp() {
+        int axisY = "flat".equals(holding) ? RotationMath.AXIS_Y : RotationMath.AXIS_Z;
+        engine = new HeadingEngine(RotationMath.AXIS_X, axisY, CompassPoints.THIRTY_TWO_POINT);
+        engine.setFilter(FilterBenchmark.create(filter));
+        vectors = Samples.rotationVectors();
+    }
+
+
+    @Benchmark
+    public int update() {
+        timestamp += Samples.PERIOD_NANOS;
+        engine.update(timestamp, vectors[index++ & Samples.MASK]);
+        return engine.getHeading();
+    }
+}
@@ -0,0 +1,28 @@
+package com.bcampbelldev.compassapp.heading.bench;
+
+import com.bcampbelldev.compassapp.heading.CompassPoints;
+import com.bcampbelldev.compassapp.heading.RangeMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compass point lookup for every whole-degree heading. Reported per lookup.
+ */
+@State(Scope.Thread)
+public class RangeMapBenchmark {
+
+    private final RangeMap map = CompassPoints.THIRTY_TWO_POINT;
+
+
+    @Benchmark
+    @OperationsPerInvocation(360)
+    public void getValueForKey(Blackhole blackhole) {
+        for (int heading = 0; heading < 360; heading++) {
+            blackhole.consume(map.getValueForKey(heading));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.bcampbelldev.compassapp.heading.bench;
+
+import java.util.Random;
+
+/**
+ * Rotation vector and azimuth inputs shared by the benchmarks, generated once with a fixed seed so
+ * runs are comparable.
+ */
+final class Samples {
+
+    // A power of two, so the benchmarks can cycle through the samples with a mask.
+    static final int COUNT = 1024;
+    static final int MASK = COUNT - 1;
+
+    // Typical sensor event spacing at SENSOR_DELAY_GAME.
+    static final long PERIOD_NANOS = 20_000_000L;
+
+
+    private Samples() {}
+
+
+    /**
+     * @return rotation vectors of a device lying roughly flat and turning through every heading,
+     *         with a little tilt, as delivered by the sensor (x, y, z, w)
+     */
+    static float[][] rotationVectors() {
+        Random random = new Random(42);
+        float[][] vectors = new float[COUNT][];
+        for (int i = 0; i < COUNT; i++) {
+            double yaw = 2 * Math.PI * i / COUNT;
+            double tilt = Math.toRadians(random.nextGaussian() * 5);
+
+            // Rotation about an axis close to z, normalized.
+            double ax = Math.sin(tilt);
+            double az = Math.cos(tilt);
+            double s = Math.sin(yaw / 2);
+            vectors[i] = new float[] {
+                    (float)(ax * s), 0f, (float)(az * s), (float)Math.cos(yaw / 2)};
+        }
+        return vectors;
+    }
+
+
+    /**
+     * @return azimuths in degrees of a slow turn with sensor noise, wrapping through north
+     */
+    static float[] noisyAzimuths() {
+        Random random = new Random(42);
+        float[] azimuths = new float[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            double azimuth = (350 + i * 0.05 + random.nextGaussian() * 2) % 360;
+            azimuths[i] = (float)(azimuth < 0 ? azimuth + 360 : azimuth);
+        }
+        return azimuths;
+    }
+}
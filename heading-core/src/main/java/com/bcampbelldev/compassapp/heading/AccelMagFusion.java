@@ -0,0 +1,161 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Attitude from the accelerometer and the magnetometer alone, for devices without a rotation
+ * vector sensor. Gravity gives the tilt, and the magnetic field, projected onto the horizontal
+ * plane, gives north. The result is a rotation vector, so it goes through the same
+ * {@link HeadingEngine} as the sensor's.
+ * <p>
+ * Both inputs are low-pass filtered first: the accelerometer also measures the device's own
+ * acceleration and the magnetometer is noisy, and without a gyroscope there is nothing better to
+ * separate them with. All buffers are allocated once. Not thread-safe; feed it from one thread.
+ */
+public final class AccelMagFusion {
+
+    // Time constant of the low-pass filters in seconds.
+    private static final float TIME_CONSTANT = 0.1f;
+
+    // Below this, in units of the product of the two vectors' lengths, the field is too close to
+    // vertical, or the device in free fall, to tell north.
+    private static final float MIN_HORIZONTAL = 0.1f;
+
+    private final float[] gravity = new float[3];
+    private final float[] field = new float[3];
+    private long gravityTimestamp;
+    private long fieldTimestamp;
+    private boolean hasGravity;
+    private boolean hasField;
+
+    // Scratch rows of the rotation matrix: east, north and up in device coordinates.
+    private final float[] east = new float[3];
+    private final float[] north = new float[3];
+    private final float[] up = new float[3];
+
+
+    /**
+     * Forget both inputs, e.g. when the sensors are registered again.
+     */
+    public void reset() {
+        hasGravity = false;
+        hasField = false;
+    }
+
+
+    /**
+     * Add an accelerometer reading.
+     *
+     * @param timestamp time of the reading in nanoseconds
+     * @param values acceleration in device coordinates, in m/s&sup2;
+     */
+    public void updateAccelerometer(long timestamp, float[] values) {
+        lowPass(gravity, values, timestamp, gravityTimestamp, hasGravity);
+        gravityTimestamp = timestamp;
+        hasGravity = true;
+    }
+
+
+    /**
+     * Add a magnetometer reading, preferably calibrated.
+     *
+     * @param timestamp time of the reading in nanoseconds
+     * @param values magnetic field in device coordinates, in microtesla
+     */
+    public void updateMagneticField(long timestamp, float[] values) {
+        lowPass(field, values, timestamp, fieldTimestamp, hasField);
+        fieldTimestamp = timestamp;
+        hasField = true;
+    }
+
+
+    private static void lowPass(float[] state, float[] values, long timestamp, long last,
+                                boolean started) {
+        if (!started || timestamp <= last) {
+            System.arraycopy(values, 0, state, 0, 3);
+            return;
+        }
+        float dt = (timestamp - last) * 1e-9f;
+        float alpha = dt / (TIME_CONSTANT + dt);
+        for (int i = 0; i < 3; i++) {
+            state[i] += alpha * (values[i] - state[i]);
+        }
+    }
+
+
+    /**
+     * Compute the attitude from the filtered inputs, in the format of a rotation vector sensor
+     * event: the vector part of the unit quaternion, then its scalar part.
+     *
+     * @param out receives x, y, z and w of the quaternion rotating device coordinates into world
+     *            coordinates (east, north, up)
+     * @return <code>true</code> if the attitude could be computed;
+     *         <code>false</code> if an input is missing or north cannot be told.
+     */
+    public boolean getRotationVector(float[] out) {
+        if (!hasGravity || !hasField) {
+            return false;
+        }
+        // East is the field crossed with up, north is up crossed with east.
+        cross(field, gravity, east);
+        float eastLength = length(east);
+        float gravityLength = length(gravity);
+        if (eastLength < MIN_HORIZONTAL * gravityLength * length(field)) {
+            return false;
+        }
+        for (int i = 0; i < 3; i++) {
+            east[i] /= eastLength;
+            up[i] = gravity[i] / gravityLength;
+        }
+        cross(up, east, north);
+
+        // Quaternion of the rotation matrix with rows east, north and up.
+        float r00 = east[0], r01 = east[1], r02 = east[2];
+        float r10 = north[0], r11 = north[1], r12 = north[2];
+        float r20 = up[0], r21 = up[1], r22 = up[2];
+        float trace = r00 + r11 + r22;
+        float x, y, z, w;
+        if (trace > 0) {
+            float s = 0.5f / (float)Math.sqrt(trace + 1);
+            w = 0.25f / s;
+            x = (r21 - r12) * s;
+            y = (r02 - r20) * s;
+            z = (r10 - r01) * s;
+        } else if (r00 > r11 && r00 > r22) {
+            float s = 2 * (float)Math.sqrt(1 + r00 - r11 - r22);
+            w = (r21 - r12) / s;
+            x = 0.25f * s;
+            y = (r01 + r10) / s;
+            z = (r02 + r20) / s;
+        } else if (r11 > r22) {
+            float s = 2 * (float)Math.sqrt(1 + r11 - r00 - r22);
+            w = (r02 - r20) / s;
+            x = (r01 + r10) / s;
+            y = 0.25f * s;
+            z = (r12 + r21) / s;
+        } else {
+            float s = 2 * (float)Math.sqrt(1 + r22 - r00 - r11);
+            w = (r10 - r01) / s;
+            x = (r02 + r20) / s;
+            y = (r12 + r21) / s;
+            z = 0.25f * s;
+        }
+        // Rotation vector sensors report the quaternion with a non-negative scalar part.
+        float sign = w < 0 ? -1 : 1;
+        out[0] = sign * x;
+        out[1] = sign * y;
+        out[2] = sign * z;
+        out[3] = sign * w;
+        return true;
+    }
+
+
+    private static void cross(float[] a, float[] b, float[] out) {
+        out[0] = a[1] * b[2] - a[2] * b[1];
+        out[1] = a[2] * b[0] - a[0] * b[2];
+        out[2] = a[0] * b[1] - a[1] * b[0];
+    }
+
+
+    private static float length(float[] v) {
+        return (float)Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    }
+}
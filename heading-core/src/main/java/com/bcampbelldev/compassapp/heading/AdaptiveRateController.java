@@ -0,0 +1,206 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Chooses the sensor sampling period from how fast the heading is changing.
+ * <p>
+ * While the device is moving the fast period is used. Once the angular velocity has stayed below
+ * the still threshold for the settle time, the controller switches to the slow period. The first
+ * sample above the moving threshold switches straight back, so the rate ramps up on the first
+ * sample that shows motion. Using a moving threshold above the still threshold gives the
+ * hysteresis that keeps the rate from flapping around a single value.
+ * <p>
+ * Motion can only show in a sample taken after it started, so going back to the fast period takes
+ * up to one slow period plus registering the sensor again. The default slow period of 50 ms keeps
+ * that to about three display frames. Feed it the unfiltered heading: a smoothing filter's lag
+ * would delay noticing the motion further.
+ */
+public final class AdaptiveRateController {
+
+    /**
+     * Thresholds and sampling periods of an {@link AdaptiveRateController}.
+     */
+    public static final class Config {
+        private int fastPeriodUs = 0;
+        private int slowPeriodUs = 50_000;
+        private float stillDegreesPerSecond = 2f;
+        private float movingDegreesPerSecond = 8f;
+        private long settleNanos = 1_500_000_000L;
+        private long smoothingNanos = 250_000_000L;
+
+        /**
+         * @param fastPeriodUs sampling period used while moving, in microseconds. Defaults to 0,
+         *                     the fastest rate the sensor supports
+         * @return this config
+         */
+        public Config setFastPeriodUs(int fastPeriodUs) {
+            this.fastPeriodUs = fastPeriodUs;
+            return this;
+        }
+
+
+        /**
+         * @param slowPeriodUs sampling period used while still, in microseconds. Defaults to
+         *                     50000 (20 Hz). The longest it takes to notice motion
+         * @return this config
+         */
+        public Config setSlowPeriodUs(int slowPeriodUs) {
+            this.slowPeriodUs = slowPeriodUs;
+            return this;
+        }
+
+
+        /**
+         * @param still angular velocity below which the device counts as still, in degrees per
+         *              second. Defaults to 2
+         * @param moving angular velocity above which the device counts as moving again, in
+         *               degrees per second. Must not be below <code>still</code>. Defaults to 8
+         * @return this config
+         */
+        public Config setThresholds(float still, float moving) {
+            if (moving < still) {
+                throw new IllegalArgumentException(
+                        "Moving threshold " + moving + " is below still threshold " + still);
+            }
+            this.stillDegreesPerSecond = still;
+            this.movingDegreesPerSecond = moving;
+            return this;
+        }
+
+
+        /**
+         * @param settleNanos how long the device has to stay still before the slow period is
+         *                    used, in nanoseconds. Defaults to 1.5 seconds
+         * @return this config
+         */
+        public Config setSettleNanos(long settleNanos) {
+            this.settleNanos = settleNanos;
+            return this;
+        }
+
+
+        /**
+         * @param smoothingNanos time constant of the low-pass filter applied to the angular
+         *                      velocity, in nanoseconds. Defaults to 250 milliseconds
+         * @return this config
+         */
+        public Config setSmoothingNanos(long smoothingNanos) {
+            this.smoothingNanos = smoothingNanos;
+            return this;
+        }
+    }
+
+
+    private final Config config;
+
+    private boolean still;
+    private boolean hasSample;
+    private long lastTimestamp;
+    private float lastAzimuth;
+    private long stillSince;
+    private float smoothedRate;
+    private float degreesPerSecond;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param config thresholds and sampling periods
+     */
+    public AdaptiveRateController(Config config) {
+        this.config = config;
+    }
+
+
+    /**
+     * Feed a new heading to the controller.
+     *
+     * @param timestamp time of the sensor event in nanoseconds
+     * @param azimuth heading in degrees
+     * @return <code>true</code> if the sampling period changed and the sensor should be
+     *         registered again with {@link #getSamplingPeriodUs()};
+     *         <code>false</code> otherwise.
+     */
+    public boolean update(long timestamp, float azimuth) {
+        if (!hasSample || timestamp <= lastTimestamp) {
+            hasSample = true;
+            lastTimestamp = timestamp;
+            lastAzimuth = azimuth;
+            stillSince = timestamp;
+            return false;
+        }
+
+        // Signed change along the shorter way around the circle.
+        float delta = (azimuth - lastAzimuth) % 360f;
+        if (delta > 180f) {
+            delta -= 360f;
+        } else if (delta < -180f) {
+            delta += 360f;
+        }
+        long elapsed = timestamp - lastTimestamp;
+        float rate = delta * 1e9f / elapsed;
+        lastTimestamp = timestamp;
+        lastAzimuth = azimuth;
+
+        // Sensor noise between samples at the fast rate is large compared to the thresholds, so
+        // the rate is smoothed before deciding the device is still. The signed rate is smoothed so
+        // that the noise averages out.
+        float alpha = elapsed / (float)(elapsed + config.smoothingNanos);
+        smoothedRate += alpha * (rate - smoothedRate);
+        degreesPerSecond = Math.abs(smoothedRate);
+
+        if (still) {
+            // React to the first sample that shows motion rather than waiting for the smoothed
+            // rate to catch up.
+            if (Math.abs(rate) > config.movingDegreesPerSecond) {
+                still = false;
+                stillSince = timestamp;
+                return true;
+            }
+            return false;
+        }
+
+        if (degreesPerSecond >= config.stillDegreesPerSecond) {
+            stillSince = timestamp;
+        } else if (timestamp - stillSince >= config.settleNanos) {
+            still = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Go back to the fast period and forget the heading history, e.g. when the sensor listener
+     * is registered again.
+     */
+    public void reset() {
+        still = false;
+        hasSample = false;
+        smoothedRate = 0;
+        degreesPerSecond = 0;
+    }
+
+
+    /**
+     * @return the sampling period to register the sensor with, in microseconds
+     */
+    public int getSamplingPeriodUs() {
+        return still ? config.slowPeriodUs : config.fastPeriodUs;
+    }
+
+
+    /**
+     * @return <code>true</code> if the device currently counts as still
+     */
+    public boolean isStill() {
+        return still;
+    }
+
+
+    /**
+     * @return smoothed angular velocity of the heading, in degrees per second
+     */
+    public float getDegreesPerSecond() {
+        return degreesPerSecond;
+    }
+}
@@ -0,0 +1,114 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Holds the process-wide {@link RangeMap}s that map a compass heading to one of the points of the
+ * compass, for compasses of 4, 8, 16 and 32 points. E.g. a 42 degree heading corresponds to "NE".
+ * The maps are immutable, so both activities share the same instances instead of building their
+ * own.
+ * <p>
+ * Every mode is compiled into a 360 entry table up front, so switching modes is just using a
+ * different map and looking up a heading never builds a string. Labels in other languages are
+ * compiled the same way with {@link #create(int, String[])}.
+ */
+public final class CompassPoints {
+
+    /**
+     * Number of points of each supported compass.
+     */
+    public static final int FOUR = 4;
+    public static final int EIGHT = 8;
+    public static final int SIXTEEN = 16;
+    public static final int THIRTY_TWO = 32;
+
+    /**
+     * The English names of the 32 points, clockwise from north. The points of the coarser
+     * compasses are every second, fourth and eighth of them.
+     */
+    private static final String[] ENGLISH = {
+            "N", "NbE", "NNE", "NEbN", "NE", "NEbE", "ENE", "EbN",
+            "E", "EbS", "ESE", "SEbE", "SE", "SEbS", "SSE", "SbE",
+            "S", "SbW", "SSW", "SWbS", "SW", "SWbW", "WSW", "WbS",
+            "W", "WbN", "WNW", "NWbW", "NW", "NWbN", "NNW", "NbW"
+    };
+
+    public static final RangeMap FOUR_POINT = create(FOUR, ENGLISH);
+    public static final RangeMap EIGHT_POINT = create(EIGHT, ENGLISH);
+    public static final RangeMap SIXTEEN_POINT = create(SIXTEEN, ENGLISH);
+    public static final RangeMap THIRTY_TWO_POINT = create(THIRTY_TWO, ENGLISH);
+
+
+    private CompassPoints() {}
+
+
+    /**
+     * @param points number of points of the compass, 4, 8, 16 or 32
+     * @return the English map for the compass
+     * @throws IllegalArgumentException if the number of points is not supported
+     */
+    public static RangeMap get(int points) {
+        switch (points) {
+            case FOUR:
+                return FOUR_POINT;
+            case EIGHT:
+                return EIGHT_POINT;
+            case SIXTEEN:
+                return SIXTEEN_POINT;
+            case THIRTY_TWO:
+                return THIRTY_TWO_POINT;
+            default:
+                throw new IllegalArgumentException("Unsupported compass of " + points + " points");
+        }
+    }
+
+
+    /**
+     * Compile the map of a compass. Each point covers an equal sector centered on its direction,
+     * in whole degrees of heading, e.g. 355 to 5 degrees for north on a 32 point compass.
+     *
+     * @param points number of points of the compass, 4, 8, 16 or 32
+     * @param labels names of the 32 points, clockwise from north. Names are interned, so maps of
+     *               the same language share their strings
+     * @return the map from heading in whole degrees, 0-359, to the name of its point
+     * @throws IllegalArgumentException if the number of points is not supported or there are not
+     *                                  32 labels
+     */
+    public static RangeMap create(int points, String[] labels) {
+        if (points != FOUR && points != EIGHT && points != SIXTEEN && points != THIRTY_TWO) {
+            throw new IllegalArgumentException("Unsupported compass of " + points + " points");
+        }
+        if (labels.length != THIRTY_TWO) {
+            throw new IllegalArgumentException("Expected 32 labels, got " + labels.length);
+        }
+        int stride = THIRTY_TWO / points;
+
+        // Collect runs of headings on the same point. The run ending at 359 continues with the
+        // one starting at 0, both being north.
+        RangeMap.Builder builder = new RangeMap.Builder(0, 359);
+        int firstEnd = -1;
+        int start = 0;
+        int point = pointOf(0, points);
+        for (int degree = 1; degree <= 360; degree++) {
+            int next = degree < 360 ? pointOf(degree, points) : -1;
+            if (next == point) {
+                continue;
+            }
+            if (start == 0) {
+                firstEnd = degree - 1;
+            } else {
+                String label = labels[point * stride].intern();
+                builder.put(start, point == 0 ? firstEnd : degree - 1, label);
+            }
+            start = degree;
+            point = next;
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * @return index of the point nearest to a heading, rounding halfway headings clockwise
+     */
+    private static int pointOf(int degree, int points) {
+        return (int)Math.floor(degree * points / 360.0 + 0.5) % points;
+    }
+}
@@ -0,0 +1,182 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Magnetic declination on a coarse latitude/longitude grid, interpolated bilinearly. Evaluating a
+ * magnetic field model is far too slow to do per sensor event, but declination changes slowly
+ * across the globe, so a grid sampled once from the model is accurate to a fraction of a degree
+ * away from the magnetic poles.
+ * <p>
+ * Values are stored in hundredths of a degree in a <code>short[]</code>: at 5 degree spacing the
+ * whole globe takes about 5 KB. Grids can be written to and read from a stream, so a grid
+ * generated once can be cached.
+ */
+public final class DeclinationGrid {
+
+    /**
+     * A magnetic field model to sample, e.g. the World Magnetic Model.
+     */
+    public interface Model {
+
+        /**
+         * @param latitude latitude in degrees, -90 to 90
+         * @param longitude longitude in degrees, -180 to 180
+         * @return declination in degrees, positive when magnetic north is east of true north
+         */
+        float getDeclination(float latitude, float longitude);
+    }
+
+
+    private static final int MAGIC = 0x44434C47;
+    private static final int VERSION = 1;
+
+    private final int step;
+    private final int rows;
+    private final int columns;
+    private final short[] centidegrees;
+
+
+    private DeclinationGrid(int step, short[] centidegrees) {
+        this.step = step;
+        this.rows = 180 / step + 1;
+        this.columns = 360 / step;
+        this.centidegrees = centidegrees;
+    }
+
+
+    /**
+     * Sample a model on a grid.
+     *
+     * @param model the model
+     * @param step grid spacing in degrees. Must divide 180
+     * @return the grid
+     * @throws IllegalArgumentException if the step does not divide 180
+     */
+    public static DeclinationGrid generate(Model model, int step) {
+        checkStep(step);
+        int rows = 180 / step + 1;
+        int columns = 360 / step;
+        short[] values = new short[rows * columns];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                float declination = model.getDeclination(row * step - 90, column * step - 180);
+                values[row * columns + column] = (short)Math.round(declination * 100);
+            }
+        }
+        return new DeclinationGrid(step, values);
+    }
+
+
+    /**
+     * Read a grid written by {@link #write(OutputStream)}.
+     *
+     * @param in stream to read from. Not closed
+     * @return the grid
+     * @throws IOException if reading fails or the stream does not hold a grid
+     */
+    public static DeclinationGrid read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("Not a declination grid");
+        }
+        int step = data.readInt();
+        if (step <= 0 || 180 % step != 0) {
+            throw new IOException("Invalid grid step " + step);
+        }
+        short[] values = new short[(180 / step + 1) * (360 / step)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.readShort();
+        }
+        return new DeclinationGrid(step, values);
+    }
+
+
+    /**
+     * Write the grid so it can be read back with {@link #read(InputStream)}.
+     *
+     * @param out stream to write to. Flushed, but not closed
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(step);
+        for (short value : centidegrees) {
+            data.writeShort(value);
+        }
+        data.flush();
+    }
+
+
+    /**
+     * Interpolate the declination at a location. Longitudes wrap around the antimeridian and
+     * latitudes are clamped to the poles.
+     *
+     * @param latitude latitude in degrees
+     * @param longitude longitude in degrees
+     * @return declination in degrees, positive when magnetic north is east of true north
+     */
+    public float getDeclination(float latitude, float longitude) {
+        float y = (Math.max(-90f, Math.min(90f, latitude)) + 90f) / step;
+        float x = (longitude + 180f) / step;
+
+        int row = Math.min((int)y, rows - 2);
+        float fy = y - row;
+
+        int column = (int)Math.floor(x);
+        float fx = x - column;
+        column %= columns;
+        if (column < 0) {
+            column += columns;
+        }
+        int nextColumn = column + 1 == columns ? 0 : column + 1;
+
+        float south = lerp(centidegrees[row * columns + column],
+                centidegrees[row * columns + nextColumn], fx);
+        float north = lerp(centidegrees[(row + 1) * columns + column],
+                centidegrees[(row + 1) * columns + nextColumn], fx);
+        float declination = lerp(south, north, fy) / 100f;
+        if (declination > 180f) {
+            declination -= 360f;
+        } else if (declination <= -180f) {
+            declination += 360f;
+        }
+        return declination;
+    }
+
+
+    /**
+     * @return grid spacing in degrees
+     */
+    public int getStep() {
+        return step;
+    }
+
+
+    /**
+     * Interpolate between two angles in hundredths of a degree the short way around, since near
+     * the magnetic poles neighbouring grid points can be either side of 180 degrees.
+     */
+    private static float lerp(float a, float b, float t) {
+        float delta = b - a;
+        if (delta > 18000f) {
+            delta -= 36000f;
+        } else if (delta < -18000f) {
+            delta += 36000f;
+        }
+        return a + delta * t;
+    }
+
+
+    private static void checkStep(int step) {
+        if (step <= 0 || 180 % step != 0) {
+            throw new IllegalArgumentException("Grid step must divide 180, was " + step);
+        }
+    }
+}
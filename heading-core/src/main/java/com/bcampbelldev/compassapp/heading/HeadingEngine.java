@@ -0,0 +1,255 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Turns rotation vector sensor readings into a compass heading. Each update runs the whole
+ * pipeline: rotation vector to rotation matrix, remap of the coordinate system for the way the
+ * device is held, orientation angles, azimuth in degrees, the magnetic declination when true north
+ * is wanted, an optional {@link HeadingFilter} and finally the compass point.
+ * <p>
+ * All working buffers are allocated once, so {@link #update(long, float[])} produces no garbage.
+ * An engine is not thread-safe; it should be fed from one thread.
+ */
+public final class HeadingEngine {
+
+    private final float[] rotationMatrix = new float[9];
+    private final float[] remappedMatrix = new float[9];
+    private final float[] orientation = new float[3];
+
+    // Scratch rotation vectors for samples read from a batch, with and without the scalar part.
+    private final float[] batchQuaternion = new float[4];
+    private final float[] batchVector = new float[3];
+
+    private int axisX;
+    private int axisY;
+    private RangeMap compassPoints;
+    private HeadingFilter filter;
+    private float declination;
+
+    private long timestamp;
+    private float rawAzimuth;
+    private float azimuth;
+    private int heading;
+    private String compassPoint;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param axisX world axis the device x axis is mapped onto, one of the
+     *              <code>RotationMath.AXIS_*</code> constants
+     * @param axisY world axis the device y axis is mapped onto
+     * @param compassPoints map from heading in whole degrees to compass point text
+     * @throws IllegalArgumentException if the axes are not a valid remapping
+     */
+    public HeadingEngine(int axisX, int axisY, RangeMap compassPoints) {
+        setAxisRemap(axisX, axisY);
+        this.compassPoints = compassPoints;
+        this.compassPoint = compassPoints.getValueForKey(0);
+    }
+
+
+    /**
+     * Change how the device axes are remapped before the orientation is computed. E.g.
+     * <code>AXIS_X, AXIS_Y</code> for a device lying flat and <code>AXIS_X, AXIS_Z</code> for a
+     * device held upright with the camera facing forward.
+     *
+     * @param axisX world axis the device x axis is mapped onto
+     * @param axisY world axis the device y axis is mapped onto
+     * @throws IllegalArgumentException if the axes are not a valid remapping
+     */
+    public void setAxisRemap(int axisX, int axisY) {
+        if (!RotationMath.isValidRemap(axisX, axisY)) {
+            throw new IllegalArgumentException("Invalid axis remapping " + axisX + ", " + axisY);
+        }
+        this.axisX = axisX;
+        this.axisY = axisY;
+    }
+
+
+    /**
+     * Change the compass points the heading is named with, e.g. to a coarser compass or another
+     * language. Takes effect from the next update.
+     *
+     * @param compassPoints map from heading in whole degrees to compass point text, see
+     *                      {@link CompassPoints}
+     */
+    public void setCompassPoints(RangeMap compassPoints) {
+        this.compassPoints = compassPoints;
+    }
+
+
+    /**
+     * Set the filter used to smooth the azimuth. The filter starts from the next update.
+     *
+     * @param filter the filter, or <code>null</code> to use the raw azimuth
+     */
+    public void setFilter(HeadingFilter filter) {
+        if (filter != null) {
+            filter.reset();
+        }
+        this.filter = filter;
+    }
+
+
+    /**
+     * Set the magnetic declination added to every azimuth, to show headings relative to true
+     * north rather than magnetic north. See {@link DeclinationGrid}.
+     *
+     * @param declination declination in degrees, positive when magnetic north is east of true
+     *                    north, or 0 for magnetic headings
+     */
+    public void setDeclination(float declination) {
+        this.declination = declination;
+    }
+
+
+    /**
+     * @return declination added to every azimuth in degrees, 0 for magnetic headings
+     */
+    public float getDeclination() {
+        return declination;
+    }
+
+
+    /**
+     * Reset the filter, so the next update starts from the raw heading again. E.g. after the
+     * sensor has been stopped for a while.
+     */
+    public void reset() {
+        if (filter != null) {
+            filter.reset();
+        }
+    }
+
+
+    /**
+     * Run the pipeline on a new rotation vector reading.
+     *
+     * @param timestamp time of the sensor event in nanoseconds
+     * @param rotationVector the values of a rotation vector sensor event
+     */
+    public void update(long timestamp, float[] rotationVector) {
+        this.timestamp = timestamp;
+
+        // Rotation vector to a rotation matrix that converts device coordinates to world
+        // coordinates.
+        RotationMath.getRotationMatrixFromVector(rotationMatrix, rotationVector);
+
+        // Express the matrix in the coordinate system of the way the device is held.
+        RotationMath.remapCoordinateSystem(rotationMatrix, axisX, axisY, remappedMatrix);
+
+        // Compute the three orientation angles of the device (in radians):
+        //    azimuth = orientation[0]
+        //    pitch = orientation[1]
+        //    roll = orientation[2]
+        RotationMath.getOrientation(remappedMatrix, orientation);
+
+        // Azimuth ranges from -180 to 180. Convert to 0-360 range to match the compass.
+        // Adding the declination turns the magnetic heading into a true heading.
+        double degrees = (Math.toDegrees(orientation[0]) + declination) % 360;
+        rawAzimuth = (float)(degrees < 0 ? degrees + 360 : degrees);
+        if (rawAzimuth >= 360) {
+            rawAzimuth = 0;
+        }
+        azimuth = filter != null ? filter.filter(timestamp, rawAzimuth) : rawAzimuth;
+
+        // Whole degrees are truncated towards zero in the -180 to 180 range, so headings just
+        // either side of north both read 0.
+        heading = (int)(azimuth > 180 ? azimuth - 360 : azimuth);
+        if (heading < 0) {
+            heading += 360;
+        }
+
+        // Determine compass point text.
+        compassPoint = compassPoints.getValueForKey(heading);
+    }
+
+
+    /**
+     * Run the pipeline on one sample of a batch. Feeding every sample of a burst in order leaves
+     * the engine holding the result of the newest one.
+     *
+     * @param batch batch of rotation vector samples
+     * @param index index of the sample in the batch
+     */
+    public void update(RotationVectorBatch batch, int index) {
+        float[] rotationVector = batch.getValueCount(index) >= 4 ? batchQuaternion : batchVector;
+        batch.getValues(index, rotationVector);
+        update(batch.getTimestamp(index), rotationVector);
+    }
+
+
+    /**
+     * @return time of the last update in nanoseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+
+    /**
+     * @return filtered azimuth of the last update in degrees, 0 (inclusive) to 360 (exclusive)
+     */
+    public float getAzimuth() {
+        return azimuth;
+    }
+
+
+    /**
+     * @return azimuth of the last update before filtering, in degrees, including the declination
+     */
+    public float getRawAzimuth() {
+        return rawAzimuth;
+    }
+
+
+    /**
+     * @return heading of the last update in whole degrees, 0-359
+     */
+    public int getHeading() {
+        return heading;
+    }
+
+
+    /**
+     * @return compass point of the last update, e.g. "NE"
+     */
+    public String getCompassPoint() {
+        return compassPoint;
+    }
+
+
+    /**
+     * @return pitch of the last update in radians
+     */
+    public float getPitch() {
+        return orientation[1];
+    }
+
+
+    /**
+     * @return roll of the last update in radians
+     */
+    public float getRoll() {
+        return orientation[2];
+    }
+
+
+    /**
+     * @return the remapped 3x3 rotation matrix of the last update. The array is reused by the
+     *         next update and must not be modified.
+     */
+    public float[] getRotationMatrix() {
+        return remappedMatrix;
+    }
+
+
+    /**
+     * @return the 3x3 rotation matrix of the last update before remapping, from device to world
+     *         coordinates. Its last row is the direction of the sky in device coordinates. The
+     *         array is reused by the next update and must not be modified.
+     */
+    public float[] getDeviceRotationMatrix() {
+        return rotationMatrix;
+    }
+}
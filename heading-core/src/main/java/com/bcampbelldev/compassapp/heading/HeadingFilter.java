@@ -0,0 +1,26 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * A smoothing stage of the heading pipeline, applied by {@link HeadingEngine} to the azimuth of
+ * every sample before it is turned into a heading and compass point.
+ * <p>
+ * Implementations keep their state in fields allocated up front, so filtering a sample does not
+ * allocate. A filter is fed from one thread only.
+ */
+public interface HeadingFilter {
+
+    /**
+     * Filter the azimuth of a new sample.
+     *
+     * @param timestamp time of the sample in nanoseconds
+     * @param azimuth raw azimuth in degrees, 0 (inclusive) to 360 (exclusive)
+     * @return filtered azimuth in degrees, 0 (inclusive) to 360 (exclusive)
+     */
+    float filter(long timestamp, float azimuth);
+
+
+    /**
+     * Forget all state, so the next sample is passed through unchanged.
+     */
+    void reset();
+}
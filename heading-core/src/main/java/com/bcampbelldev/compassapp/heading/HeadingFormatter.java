@@ -0,0 +1,104 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Formats a heading such as <code>42&deg; NE</code> into a reused char buffer. The formatter is a
+ * {@link CharSequence} over that buffer, so it can be handed straight to a TextView or an
+ * Android <code>Editable</code> without building a new String for every sensor event.
+ * <p>
+ * {@link #update(int, String)} only rewrites the buffer when the heading or the compass point
+ * actually changes and reports whether it did, so callers can skip touching their Views
+ * otherwise.
+ */
+public final class HeadingFormatter implements CharSequence {
+    private static final char DEGREE_SIGN = '\u00B0';
+
+    private char[] buffer = new char[16];
+    private int length;
+    private int degreesEnd;
+
+    private int heading = -1;
+    private String compassPoint;
+
+
+    /**
+     * Write the heading and compass point into the buffer, e.g. <code>42&deg; NE</code>.
+     *
+     * @param heading heading in whole degrees, 0-359
+     * @param compassPoint compass point text for the heading
+     * @return <code>true</code> if the text changed;
+     *         <code>false</code> if it is the same as the last update.
+     */
+    public boolean update(int heading, String compassPoint) {
+        if (heading == this.heading && compassPoint.equals(this.compassPoint)) {
+            return false;
+        }
+        this.heading = heading;
+        this.compassPoint = compassPoint;
+
+        // Up to three digits, the degree sign, a space and the compass point.
+        int needed = 5 + compassPoint.length();
+        if (buffer.length < needed) {
+            buffer = new char[needed];
+        }
+
+        int pos = 0;
+        if (heading >= 100) {
+            buffer[pos++] = (char)('0' + heading / 100);
+        }
+        if (heading >= 10) {
+            buffer[pos++] = (char)('0' + heading / 10 % 10);
+        }
+        buffer[pos++] = (char)('0' + heading % 10);
+        buffer[pos++] = DEGREE_SIGN;
+        degreesEnd = pos;
+
+        buffer[pos++] = ' ';
+        compassPoint.getChars(0, compassPoint.length(), buffer, pos);
+        length = pos + compassPoint.length();
+        return true;
+    }
+
+
+    /**
+     * @return the backing buffer. Only the first {@link #length()} chars are valid, and the
+     *         contents change on the next successful {@link #update(int, String)}.
+     */
+    public char[] getChars() {
+        return buffer;
+    }
+
+
+    /**
+     * @return index just past the degree sign, i.e. the end of the numeric part of the text
+     */
+    public int getDegreesEnd() {
+        return degreesEnd;
+    }
+
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return buffer[index];
+    }
+
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(buffer, start, end - start);
+    }
+
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
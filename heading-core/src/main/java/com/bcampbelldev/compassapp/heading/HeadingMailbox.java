@@ -0,0 +1,99 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-slot mailbox that hands the latest {@link HeadingSample} from the sensor thread to the UI
+ * thread without locks or allocation.
+ * <p>
+ * It is a triple buffer: the writer fills the back sample and swaps it with the middle one, the
+ * reader swaps the middle sample with the front one. Only the newest sample is ever delivered; if
+ * the reader falls behind, older samples are overwritten and dropped. There must be exactly one
+ * writer thread and one reader thread.
+ */
+public final class HeadingMailbox {
+
+    // Set on the middle index when it holds a sample the reader has not taken yet.
+    private static final int FRESH = 0x4;
+    private static final int INDEX_MASK = 0x3;
+
+    private final HeadingSample[] samples = {
+            new HeadingSample(), new HeadingSample(), new HeadingSample()};
+
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // Owned by the writer.
+    private int back = 0;
+
+    // Owned by the reader.
+    private int front = 2;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+
+    /**
+     * Writer side: get the sample to fill in before calling {@link #publish()}.
+     *
+     * @return the writer's sample
+     */
+    public HeadingSample edit() {
+        return samples[back];
+    }
+
+
+    /**
+     * Writer side: make the sample returned by {@link #edit()} the latest sample.
+     *
+     * @return <code>true</code> if the reader had already taken the previous sample, so it needs
+     *         to be told a new one is waiting;
+     *         <code>false</code> if a sample was still waiting, in which case it is replaced.
+     */
+    public boolean publish() {
+        int previous = middle.getAndSet(back | FRESH);
+        back = previous & INDEX_MASK;
+        return (previous & FRESH) == 0;
+    }
+
+
+    /**
+     * Reader side: take the latest sample. Samples that are not newer than the last one taken,
+     * by sensor timestamp, are dropped.
+     *
+     * @return the latest sample, valid until the next call to <code>poll</code>, or
+     *         <code>null</code> if there is nothing new
+     */
+    public HeadingSample poll() {
+        if ((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        front = middle.getAndSet(front) & INDEX_MASK;
+
+        HeadingSample sample = samples[front];
+        if (sample.getTimestamp() <= lastTimestamp) {
+            return null;
+        }
+        lastTimestamp = sample.getTimestamp();
+        return sample;
+    }
+
+
+    /**
+     * Reader side: forget the last timestamp taken, e.g. when the sensor is registered again and
+     * its clock may have been reset.
+     */
+    public void resetTimestamp() {
+        lastTimestamp = Long.MIN_VALUE;
+    }
+
+
+    /**
+     * Reader side: drop the sample waiting, if any, and forget the last timestamp taken, e.g.
+     * when the delivery the writer asked for has been cancelled. The next sample published is
+     * then reported as needing a delivery again.
+     */
+    public void clear() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        resetTimestamp();
+    }
+}
@@ -0,0 +1,171 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * The result of running the heading pipeline on one sensor event. Samples are reusable slots
+ * owned by a {@link HeadingMailbox}: the sensor thread fills them in, the UI thread reads them, and
+ * neither keeps a reference once it has handed the sample back.
+ */
+public final class HeadingSample {
+    private long timestamp;
+    private float azimuth;
+    private float declination;
+    private int heading;
+    private String compassPoint;
+    private float pitch;
+    private float roll;
+    private final float[] rotationMatrix = new float[9];
+    private long eventNanoTime;
+    private long publishNanoTime;
+    private int magneticState = MagneticAnomalyDetector.UNCALIBRATED;
+
+
+    /**
+     * Copy the result of the engine's last update into this sample.
+     *
+     * @param engine engine that has just been updated with a sensor event
+     */
+    public void set(HeadingEngine engine) {
+        this.timestamp = engine.getTimestamp();
+        this.azimuth = engine.getAzimuth();
+        this.declination = engine.getDeclination();
+        this.heading = engine.getHeading();
+        this.compassPoint = engine.getCompassPoint();
+        this.pitch = engine.getPitch();
+        this.roll = engine.getRoll();
+        System.arraycopy(engine.getRotationMatrix(), 0, rotationMatrix, 0, 9);
+    }
+
+
+    /**
+     * Copy another sample into this one, e.g. to hand one heading to several readers.
+     *
+     * @param other sample to copy, including its timing
+     */
+    public void set(HeadingSample other) {
+        this.timestamp = other.timestamp;
+        this.azimuth = other.azimuth;
+        this.declination = other.declination;
+        this.heading = other.heading;
+        this.compassPoint = other.compassPoint;
+        this.pitch = other.pitch;
+        this.roll = other.roll;
+        System.arraycopy(other.rotationMatrix, 0, rotationMatrix, 0, 9);
+        this.eventNanoTime = other.eventNanoTime;
+        this.publishNanoTime = other.publishNanoTime;
+        this.magneticState = other.magneticState;
+    }
+
+
+    /**
+     * Record when the sensor event was measured and when the sample was published, for latency
+     * measurements. Both on the {@link System#nanoTime()} clock, so they can be compared with
+     * display frame times, which the sensor timestamp cannot always.
+     *
+     * @param eventNanoTime time the sensor event was measured
+     * @param publishNanoTime time the sample was published
+     */
+    public void setTiming(long eventNanoTime, long publishNanoTime) {
+        this.eventNanoTime = eventNanoTime;
+        this.publishNanoTime = publishNanoTime;
+    }
+
+
+    /**
+     * Record how far the magnetic field behind the heading can be trusted.
+     *
+     * @param magneticState one of the states of {@link MagneticAnomalyDetector}
+     */
+    public void setMagneticState(int magneticState) {
+        this.magneticState = magneticState;
+    }
+
+
+    /**
+     * @return how far the magnetic field behind the heading can be trusted, one of the states of
+     *         {@link MagneticAnomalyDetector}
+     */
+    public int getMagneticState() {
+        return magneticState;
+    }
+
+
+    /**
+     * @return time the sensor event was measured on the {@link System#nanoTime()} clock
+     */
+    public long getEventNanoTime() {
+        return eventNanoTime;
+    }
+
+
+    /**
+     * @return time the sample was published on the {@link System#nanoTime()} clock
+     */
+    public long getPublishNanoTime() {
+        return publishNanoTime;
+    }
+
+
+    /**
+     * @return time of the sensor event in nanoseconds, as reported by the sensor
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+
+    /**
+     * @return azimuth in degrees, 0 (inclusive) to 360 (exclusive)
+     */
+    public float getAzimuth() {
+        return azimuth;
+    }
+
+
+    /**
+     * @return declination included in the azimuth in degrees, 0 for a magnetic heading. The
+     *         rotation matrix never includes it
+     */
+    public float getDeclination() {
+        return declination;
+    }
+
+
+    /**
+     * @return heading in whole degrees, 0-359
+     */
+    public int getHeading() {
+        return heading;
+    }
+
+
+    /**
+     * @return compass point of the heading, e.g. "NE"
+     */
+    public String getCompassPoint() {
+        return compassPoint;
+    }
+
+
+    /**
+     * @return pitch in radians
+     */
+    public float getPitch() {
+        return pitch;
+    }
+
+
+    /**
+     * @return roll in radians
+     */
+    public float getRoll() {
+        return roll;
+    }
+
+
+    /**
+     * @return the remapped 3x3 rotation matrix. Must not be modified.
+     */
+    public float[] getRotationMatrix() {
+        return rotationMatrix;
+    }
+}
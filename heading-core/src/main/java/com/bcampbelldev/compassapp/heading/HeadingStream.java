@@ -0,0 +1,327 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A stream of {@link HeadingSample}s that any number of subscribers can follow, so consumers of
+ * the heading neither listen to the sensor nor redo the math themselves.
+ * <p>
+ * The subscriber list is an array that is replaced, never changed, so subscribing and
+ * unsubscribing are lock-free and may happen on any thread, while {@link #publish(HeadingSample)}
+ * only reads the current array. Samples are published on one thread at a time and handed to the
+ * subscribers on that thread.
+ * <p>
+ * The operators, e.g. {@link #distinctUntilChanged()}, return a stream of the samples that pass
+ * them. They compare the primitive fields of the samples, so nothing is boxed or allocated per
+ * sample.
+ */
+public class HeadingStream {
+
+    /**
+     * Told about the samples of a stream.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called on the publishing thread with a new sample.
+         *
+         * @param sample the sample, only valid during the call
+         */
+        void onHeading(HeadingSample sample);
+    }
+
+
+    /**
+     * Told about the samples collected by a {@link Batcher}.
+     */
+    public interface BatchListener {
+
+        /**
+         * Called with a full batch, or a partial one when the batcher is flushed.
+         *
+         * @param timestamps sensor timestamps of the samples in nanoseconds
+         * @param azimuths azimuths of the samples in degrees
+         * @param count number of samples in the arrays, which are reused for the next batch
+         */
+        void onHeadings(long[] timestamps, float[] azimuths, int count);
+    }
+
+
+    private static final Subscriber[] NONE = new Subscriber[0];
+
+    private final AtomicReference<Subscriber[]> subscribers = new AtomicReference<>(NONE);
+
+
+    /**
+     * Start telling a subscriber about new samples. A subscriber added twice is told twice.
+     *
+     * @param subscriber the subscriber
+     */
+    public void subscribe(Subscriber subscriber) {
+        Subscriber[] current;
+        Subscriber[] next;
+        do {
+            current = subscribers.get();
+            next = new Subscriber[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscriber;
+        } while (!subscribers.compareAndSet(current, next));
+    }
+
+
+    /**
+     * Stop telling a subscriber about new samples. It may still be told about a sample that is
+     * being published at the time.
+     *
+     * @param subscriber the subscriber
+     * @return <code>true</code> if it was subscribed;
+     *         <code>false</code> otherwise.
+     */
+    public boolean unsubscribe(Subscriber subscriber) {
+        Subscriber[] current;
+        Subscriber[] next;
+        do {
+            current = subscribers.get();
+            int index = -1;
+            for (int i = current.length - 1; i >= 0; i--) {
+                if (current[i] == subscriber) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            if (current.length == 1) {
+                next = NONE;
+            } else {
+                next = new Subscriber[current.length - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, next.length - index);
+            }
+        } while (!subscribers.compareAndSet(current, next));
+        return true;
+    }
+
+
+    /**
+     * @return <code>true</code> if the stream has subscribers;
+     *         <code>false</code> otherwise.
+     */
+    public boolean hasSubscribers() {
+        return subscribers.get().length > 0;
+    }
+
+
+    /**
+     * Hand a sample to the subscribers, in the order they subscribed.
+     *
+     * @param sample the sample
+     */
+    public void publish(HeadingSample sample) {
+        Subscriber[] current = subscribers.get();
+        for (Subscriber subscriber : current) {
+            subscriber.onHeading(sample);
+        }
+    }
+
+
+    /**
+     * @return stream of the samples whose whole-degree heading or compass point differs from
+     *         the last one passed on, i.e. those that change what a heading display shows
+     */
+    public Operator distinctUntilChanged() {
+        return new Operator(this) {
+            private boolean started;
+            private int heading;
+            private String compassPoint;
+
+            @Override
+            boolean accept(HeadingSample sample) {
+                // Compass point names come from a precompiled table, so they are compared by
+                // identity.
+                if (started && sample.getHeading() == heading
+                        && sample.getCompassPoint() == compassPoint) {
+                    return false;
+                }
+                started = true;
+                heading = sample.getHeading();
+                compassPoint = sample.getCompassPoint();
+                return true;
+            }
+        };
+    }
+
+
+    /**
+     * @param intervalNanos shortest time between two samples passed on, in sensor time
+     * @return stream of the samples that come at least <code>intervalNanos</code> after the last
+     *         one passed on. A sample that is older than the last one, e.g. after the sensor was
+     *         registered again, starts afresh
+     */
+    public Operator throttle(long intervalNanos) {
+        final HeadingThrottle throttle = new HeadingThrottle(intervalNanos);
+        return new Operator(this) {
+            @Override
+            boolean accept(HeadingSample sample) {
+                return throttle.accept(sample.getTimestamp());
+            }
+        };
+    }
+
+
+    /**
+     * Unlike {@link #throttle(long)}, the periods are fixed on the sensor clock, so samples keep
+     * the same average rate however late each one arrives within its period.
+     *
+     * @param periodNanos length of a period in sensor time
+     * @return stream of the first sample in each period
+     */
+    public Operator sample(final long periodNanos) {
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + periodNanos);
+        }
+        return new Operator(this) {
+            private boolean started;
+            private long lastPeriod;
+
+            @Override
+            boolean accept(HeadingSample sample) {
+                long period = sample.getTimestamp() / periodNanos;
+                if (sample.getTimestamp() % periodNanos < 0) {
+                    period--;
+                }
+                if (started && period == lastPeriod) {
+                    return false;
+                }
+                started = true;
+                lastPeriod = period;
+                return true;
+            }
+        };
+    }
+
+
+    /**
+     * @param degrees smallest change of the azimuth passed on, in degrees
+     * @return stream of the samples whose azimuth has turned at least <code>degrees</code>
+     *         either way from the last one passed on
+     */
+    public Operator threshold(final float degrees) {
+        return new Operator(this) {
+            private boolean started;
+            private float azimuth;
+
+            @Override
+            boolean accept(HeadingSample sample) {
+                if (started) {
+                    float delta = Math.abs(sample.getAzimuth() - azimuth) % 360f;
+                    if (Math.min(delta, 360f - delta) < degrees) {
+                        return false;
+                    }
+                }
+                started = true;
+                azimuth = sample.getAzimuth();
+                return true;
+            }
+        };
+    }
+
+
+    /**
+     * A stream of the samples of another stream that pass a test. It stays subscribed to its
+     * source until it is closed. The test keeps state, so an operator is created and used on the
+     * publishing thread of its source, or before publishing starts.
+     */
+    public abstract static class Operator extends HeadingStream implements Subscriber {
+
+        private final HeadingStream source;
+
+
+        /**
+         * Class constructor.
+         *
+         * @param source stream the operator subscribes to straight away
+         */
+        Operator(HeadingStream source) {
+            this.source = source;
+            source.subscribe(this);
+        }
+
+
+        /**
+         * @param sample a sample of the source
+         * @return <code>true</code> if the sample is passed on;
+         *         <code>false</code> otherwise.
+         */
+        abstract boolean accept(HeadingSample sample);
+
+
+        @Override
+        public void onHeading(HeadingSample sample) {
+            if (accept(sample)) {
+                publish(sample);
+            }
+        }
+
+
+        /**
+         * Unsubscribe from the source, after which the operator passes nothing on.
+         */
+        public void close() {
+            source.unsubscribe(this);
+        }
+    }
+
+
+    /**
+     * Collects the timestamps and azimuths of samples into batches, for consumers that do not
+     * need every sample as it comes, e.g. ones that write them to storage. Belongs to the
+     * publishing thread of the stream it subscribes to, apart from being handed to it.
+     */
+    public static final class Batcher implements Subscriber {
+
+        private final long[] timestamps;
+        private final float[] azimuths;
+        private final BatchListener listener;
+        private int count;
+
+
+        /**
+         * Class constructor.
+         *
+         * @param capacity number of samples in a full batch
+         * @param listener told about each batch
+         */
+        public Batcher(int capacity, BatchListener listener) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+            }
+            this.timestamps = new long[capacity];
+            this.azimuths = new float[capacity];
+            this.listener = listener;
+        }
+
+
+        @Override
+        public void onHeading(HeadingSample sample) {
+            timestamps[count] = sample.getTimestamp();
+            azimuths[count] = sample.getAzimuth();
+            if (++count == timestamps.length) {
+                flush();
+            }
+        }
+
+
+        /**
+         * Hand the samples collected so far to the listener, if there are any.
+         */
+        public void flush() {
+            if (count > 0) {
+                int n = count;
+                count = 0;
+                listener.onHeadings(timestamps, azimuths, n);
+            }
+        }
+    }
+}
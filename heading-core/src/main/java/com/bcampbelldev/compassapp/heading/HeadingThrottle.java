@@ -0,0 +1,47 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Passes on headings at most once per interval of sensor time, e.g. for a reader that only
+ * needs a few headings a second. A heading older than the last one passed on, e.g. after the
+ * sensor was registered again, starts afresh. Not thread-safe.
+ */
+public final class HeadingThrottle {
+
+    private final long intervalNanos;
+    private boolean started;
+    private long last;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param intervalNanos shortest time between two headings passed on, in sensor time, or 0
+     *                      to pass on every heading
+     */
+    public HeadingThrottle(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+    }
+
+
+    /**
+     * @param timestamp time of the heading in nanoseconds, as reported by the sensor
+     * @return <code>true</code> if the heading is to be passed on;
+     *         <code>false</code> if it comes too soon after the last one passed on.
+     */
+    public boolean accept(long timestamp) {
+        if (started && timestamp >= last && timestamp - last < intervalNanos) {
+            return false;
+        }
+        started = true;
+        last = timestamp;
+        return true;
+    }
+
+
+    /**
+     * Forget the last heading passed on, so the next one is passed on whenever it comes.
+     */
+    public void reset() {
+        started = false;
+    }
+}
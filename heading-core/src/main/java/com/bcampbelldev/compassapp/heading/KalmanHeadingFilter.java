@@ -0,0 +1,55 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Scalar Kalman filter on the heading unit vector, modelling the heading as a random walk. Both
+ * components share one error variance, so it costs no more than a filter on the angle itself.
+ * Noise parameters are given in degrees and converted to the unit vector, where for small errors
+ * one radian of angle is one unit of length.
+ */
+public final class KalmanHeadingFilter extends UnitVectorFilter {
+
+    private static final float DEGREES_TO_RADIANS_SQUARED =
+            (float)(Math.PI / 180 * Math.PI / 180);
+
+    private final float processNoise;
+    private final float measurementNoise;
+
+    // Variance of the error of the filtered vector.
+    private float variance;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param processNoise how much the true heading is expected to wander, as a variance in
+     *                     degrees squared per second
+     * @param measurementNoise variance of the sensor heading in degrees squared
+     */
+    public KalmanHeadingFilter(float processNoise, float measurementNoise) {
+        if (processNoise <= 0 || measurementNoise <= 0) {
+            throw new IllegalArgumentException("Noise variances must be positive, were "
+                    + processNoise + ", " + measurementNoise);
+        }
+        this.processNoise = processNoise * DEGREES_TO_RADIANS_SQUARED;
+        this.measurementNoise = measurementNoise * DEGREES_TO_RADIANS_SQUARED;
+    }
+
+
+    @Override
+    protected void start(float measuredX, float measuredY) {
+        variance = measurementNoise;
+    }
+
+
+    @Override
+    protected void step(float measuredX, float measuredY, float dt) {
+        // Predict: the heading may have wandered since the last sample.
+        variance += processNoise * dt;
+
+        // Update with the measurement.
+        float gain = variance / (variance + measurementNoise);
+        x += gain * (measuredX - x);
+        y += gain * (measuredY - y);
+        variance *= 1 - gain;
+    }
+}
@@ -0,0 +1,175 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, cheap enough to record every sensor event on the sensor
+ * thread while another thread reads it.
+ * <p>
+ * Durations are counted in log-linear buckets of microseconds: exact below 16 us, then eight
+ * buckets per power of two, so percentiles are accurate to within 12.5%. Recording is a couple of
+ * atomic increments and never allocates.
+ */
+public final class LatencyHistogram {
+
+    // Buckets per power of two, as a number of bits.
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Values below this many microseconds have a bucket each.
+    private static final int LINEAR_LIMIT = 2 * SUB_COUNT;
+
+    // Enough buckets for durations of up to 2^40 us, about 12 days.
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (40 - SUB_BITS - 1) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Record a duration. Negative durations, e.g. from clocks that drifted apart, count as 0.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos > 0 ? nanos / 1000 : 0;
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+
+    /**
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     * @return mean of the recorded durations in microseconds, or 0 if there are none
+     */
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+
+    /**
+     * @return longest recorded duration in microseconds
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+
+    /**
+     * @param percentile percentile to compute, 0-100
+     * @return upper bound in microseconds of the bucket holding the percentile, or 0 if nothing
+     *         has been recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+
+    /**
+     * @return spread between the 99th and 50th percentile in microseconds, a measure of jitter
+     */
+    public long getJitterMicros() {
+        return getPercentileMicros(99) - getPercentileMicros(50);
+    }
+
+
+    /**
+     * Forget all recorded durations. Durations recorded concurrently with the reset may be
+     * partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    /**
+     * Write a one line summary, e.g. <code>n=1200 mean=8.1 p50=7.5 p90=12.0 p99=18.0 max=31.2
+     * ms</code>.
+     *
+     * @param writer writer to print to
+     */
+    public void dump(PrintWriter writer) {
+        writer.print("n=");
+        writer.print(getCount());
+        printMillis(writer, " mean=", getMeanMicros());
+        printMillis(writer, " p50=", getPercentileMicros(50));
+        printMillis(writer, " p90=", getPercentileMicros(90));
+        printMillis(writer, " p99=", getPercentileMicros(99));
+        printMillis(writer, " max=", getMaxMicros());
+        writer.println(" ms");
+    }
+
+
+    private static void printMillis(PrintWriter writer, String label, long micros) {
+        writer.print(label);
+        writer.print(micros / 1000);
+        writer.print('.');
+        writer.print(micros % 1000 / 100);
+    }
+
+
+    /**
+     * @return index of the bucket counting a duration
+     */
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int)micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int)(micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        int index = LINEAR_LIMIT + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+
+    /**
+     * @return smallest duration in microseconds that is past a bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket + 1;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_COUNT;
+        return (long)(SUB_COUNT + sub + 1) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,33 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Exponential low-pass filter on the heading unit vector. The smoothing factor is derived from
+ * the time between samples, so the filter behaves the same at any sampling rate.
+ */
+public final class LowPassHeadingFilter extends UnitVectorFilter {
+
+    private final float timeConstant;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param timeConstant time constant of the filter in seconds. A step change of heading is 63%
+     *                     complete after this long
+     */
+    public LowPassHeadingFilter(float timeConstant) {
+        if (timeConstant <= 0) {
+            throw new IllegalArgumentException("Time constant must be positive, was "
+                    + timeConstant);
+        }
+        this.timeConstant = timeConstant;
+    }
+
+
+    @Override
+    protected void step(float measuredX, float measuredY, float dt) {
+        float alpha = dt / (timeConstant + dt);
+        x += alpha * (measuredX - x);
+        y += alpha * (measuredY - y);
+    }
+}
@@ -0,0 +1,181 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Tells when the magnetic field the device measures is not the Earth's, e.g. near steel or in a
+ * vehicle, from two things interference changes that turning the device does not: the strength
+ * of the field and its inclination, the angle it dips below the horizon.
+ * <p>
+ * Both are compared with a reference, either set from a model of the Earth's field or learned
+ * from readings while nothing is flagged. Interference is flagged after a few readings off the
+ * reference and cleared once they are well back, so the state does not flicker at the margin.
+ * Each reading costs a square root and an arcsine. Not thread-safe; feed it from one thread.
+ */
+public final class MagneticAnomalyDetector {
+
+    /**
+     * The magnetometer is not calibrated yet, so the heading may be off.
+     */
+    public static final int UNCALIBRATED = 0;
+
+    /**
+     * The field looks like the Earth's.
+     */
+    public static final int OK = 1;
+
+    /**
+     * The field is disturbed, so the heading is likely wrong.
+     */
+    public static final int INTERFERENCE = 2;
+
+    // Relative change of the strength and change of the inclination in degrees that flag
+    // interference, and the smaller ones that clear it.
+    private static final float STRENGTH_ENTER = 0.15f;
+    private static final float STRENGTH_EXIT = 0.08f;
+    private static final float INCLINATION_ENTER = 10f;
+    private static final float INCLINATION_EXIT = 5f;
+
+    // Readings in a row that must be off before interference is flagged.
+    private static final int DEBOUNCE = 3;
+
+    // Smoothing of the readings, and how slowly a learned reference follows them.
+    private static final float SMOOTHING = 0.3f;
+    private static final float LEARNING = 0.005f;
+
+    // Readings a learned reference is averaged over before it is trusted.
+    private static final int LEARNING_READINGS = 50;
+
+    private boolean fixedReference;
+    private float referenceStrength;
+    private float referenceInclination;
+    private int learned;
+
+    private boolean started;
+    private float strength;
+    private float inclination;
+    private int offReadings;
+    private boolean calibrated;
+    private int state = UNCALIBRATED;
+
+
+    /**
+     * Compare with a model of the Earth's field at the device's location, e.g. the World
+     * Magnetic Model, instead of learning the reference.
+     *
+     * @param strength strength of the field in microtesla
+     * @param inclination inclination of the field in degrees, positive downwards
+     */
+    public void setReference(float strength, float inclination) {
+        fixedReference = true;
+        referenceStrength = strength;
+        referenceInclination = inclination;
+    }
+
+
+    /**
+     * Say whether the readings are calibrated. Uncalibrated readings are still compared, but
+     * while nothing is flagged the state is {@link #UNCALIBRATED}.
+     *
+     * @param calibrated whether the readings are calibrated
+     */
+    public void setCalibrated(boolean calibrated) {
+        this.calibrated = calibrated;
+        if (state != INTERFERENCE) {
+            state = calibrated ? OK : UNCALIBRATED;
+        }
+    }
+
+
+    /**
+     * Start afresh, e.g. when the sensor is registered again. A reference set from a model is
+     * kept; a learned one is learned again.
+     */
+    public void reset() {
+        started = false;
+        offReadings = 0;
+        if (!fixedReference) {
+            learned = 0;
+        }
+        state = calibrated ? OK : UNCALIBRATED;
+    }
+
+
+    /**
+     * Check a calibrated reading.
+     *
+     * @param field the field in device coordinates, in microtesla
+     * @param up direction of the sky in device coordinates, a unit vector
+     * @return the new state, one of {@link #UNCALIBRATED}, {@link #OK} and
+     *         {@link #INTERFERENCE}
+     */
+    public int update(float[] field, float[] up) {
+        float magnitude = (float)Math.sqrt(
+                field[0] * field[0] + field[1] * field[1] + field[2] * field[2]);
+        if (magnitude == 0) {
+            return state;
+        }
+        float sine = -(field[0] * up[0] + field[1] * up[1] + field[2] * up[2]) / magnitude;
+        float dip = (float)Math.toDegrees(Math.asin(Math.max(-1f, Math.min(1f, sine))));
+
+        if (!started) {
+            started = true;
+            strength = magnitude;
+            inclination = dip;
+        } else {
+            strength += SMOOTHING * (magnitude - strength);
+            inclination += SMOOTHING * (dip - inclination);
+        }
+
+        if (!fixedReference && learned < LEARNING_READINGS) {
+            // Average the first readings into the reference, trusting it once there are enough.
+            learned++;
+            referenceStrength += (strength - referenceStrength) / learned;
+            referenceInclination += (inclination - referenceInclination) / learned;
+            return state;
+        }
+
+        float strengthOff = Math.abs(strength - referenceStrength) / referenceStrength;
+        float inclinationOff = Math.abs(inclination - referenceInclination);
+        if (state == INTERFERENCE) {
+            if (strengthOff < STRENGTH_EXIT && inclinationOff < INCLINATION_EXIT) {
+                state = calibrated ? OK : UNCALIBRATED;
+                offReadings = 0;
+            }
+        } else if (strengthOff > STRENGTH_ENTER || inclinationOff > INCLINATION_ENTER) {
+            if (++offReadings >= DEBOUNCE) {
+                state = INTERFERENCE;
+            }
+        } else {
+            offReadings = 0;
+            if (!fixedReference) {
+                referenceStrength += LEARNING * (strength - referenceStrength);
+                referenceInclination += LEARNING * (inclination - referenceInclination);
+            }
+        }
+        return state;
+    }
+
+
+    /**
+     * @return the current state, one of {@link #UNCALIBRATED}, {@link #OK} and
+     *         {@link #INTERFERENCE}
+     */
+    public int getState() {
+        return state;
+    }
+
+
+    /**
+     * @return smoothed strength of the field in microtesla
+     */
+    public float getFieldStrength() {
+        return strength;
+    }
+
+
+    /**
+     * @return smoothed inclination of the field in degrees, positive downwards
+     */
+    public float getInclination() {
+        return inclination;
+    }
+}
@@ -0,0 +1,385 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.util.Arrays;
+
+/**
+ * Online hard- and soft-iron calibration of a magnetometer. Raw readings of an undisturbed field
+ * lie on an ellipsoid: off center by the hard-iron offset of the device's own magnets, and
+ * stretched by soft iron nearby. The calibrator fits that ellipsoid to the readings and maps
+ * readings back onto a sphere around the origin.
+ * <p>
+ * The fit is a least squares fit of the general quadric
+ * <code>ax&sup2; + by&sup2; + cz&sup2; + 2fyz + 2gxz + 2hxy + 2px + 2qy + 2rz = 1</code>. Only
+ * its normal equations are kept, with older readings slowly forgotten, so memory is constant and
+ * each reading costs a few dozen multiplications. The equations are solved every
+ * {@link #SOLVE_INTERVAL} readings, once the readings cover enough directions; a fit that is
+ * implausible for the Earth's field is ignored. Not thread-safe; feed it from one thread.
+ */
+public final class MagneticCalibrator {
+
+    // Readings between two fits.
+    static final int SOLVE_INTERVAL = 50;
+
+    // Readings before the first fit, and directions they must cover out of DIRECTIONS.
+    private static final int MIN_READINGS = 150;
+    private static final int MIN_DIRECTIONS = 16;
+
+    // Directions are told apart by octant and by which axis is largest.
+    private static final int DIRECTIONS = 24;
+
+    // Readings are divided by this before fitting, in microtesla, so the sums stay well scaled.
+    private static final double UNIT = 50;
+
+    // A fit is only accepted for a field of this strength, in microtesla, whose ellipsoid is no
+    // more stretched than this.
+    private static final double MIN_FIELD = 15;
+    private static final double MAX_FIELD = 100;
+    private static final double MAX_AXIS_RATIO = 1.5;
+
+    private static final int PARAMETERS = 9;
+
+    private final int memory;
+    private final double forgetting;
+
+    // Upper triangle of the normal matrix, row by row, and the right-hand side.
+    private final double[] normal = new double[PARAMETERS * (PARAMETERS + 1) / 2];
+    private final double[] rhs = new double[PARAMETERS];
+
+    // Reading count at which each direction was last seen.
+    private final long[] directionSeen = new long[DIRECTIONS];
+    private long readings;
+
+    // Scratch space of a fit.
+    private final double[] row = new double[PARAMETERS];
+    private final double[] system = new double[PARAMETERS * (PARAMETERS + 1)];
+    private final double[] quadric = new double[PARAMETERS];
+    private final double[] shape = new double[9];
+    private final double[] eigenvectors = new double[9];
+    private final double[] eigenvalues = new double[3];
+
+    // The accepted calibration, in microtesla.
+    private boolean calibrated;
+    private final float[] offset = new float[3];
+    private final float[] correction = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private float fieldStrength;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param memory number of readings the fit mostly remembers. Older readings weigh less and
+     *               less, so the calibration follows changes of the device's magnetism
+     */
+    public MagneticCalibrator(int memory) {
+        if (memory < MIN_READINGS) {
+            throw new IllegalArgumentException("Memory must be at least " + MIN_READINGS);
+        }
+        this.memory = memory;
+        this.forgetting = 1.0 - 1.0 / memory;
+    }
+
+
+    /**
+     * Forget all readings and the calibration.
+     */
+    public void reset() {
+        Arrays.fill(normal, 0);
+        Arrays.fill(rhs, 0);
+        Arrays.fill(directionSeen, 0);
+        readings = 0;
+        calibrated = false;
+        offset[0] = offset[1] = offset[2] = 0;
+        Arrays.fill(correction, 0);
+        correction[0] = correction[4] = correction[8] = 1;
+        fieldStrength = 0;
+    }
+
+
+    /**
+     * Add a raw reading.
+     *
+     * @param x x component in microtesla
+     * @param y y component in microtesla
+     * @param z z component in microtesla
+     * @return <code>true</code> if a new calibration was accepted;
+     *         <code>false</code> otherwise.
+     */
+    public boolean add(float x, float y, float z) {
+        double u = x / UNIT;
+        double v = y / UNIT;
+        double w = z / UNIT;
+        row[0] = u * u;
+        row[1] = v * v;
+        row[2] = w * w;
+        row[3] = 2 * v * w;
+        row[4] = 2 * u * w;
+        row[5] = 2 * u * v;
+        row[6] = 2 * u;
+        row[7] = 2 * v;
+        row[8] = 2 * w;
+
+        int k = 0;
+        for (int i = 0; i < PARAMETERS; i++) {
+            double ri = row[i];
+            for (int j = i; j < PARAMETERS; j++) {
+                normal[k] = normal[k] * forgetting + ri * row[j];
+                k++;
+            }
+            rhs[i] = rhs[i] * forgetting + ri;
+        }
+
+        readings++;
+        directionSeen[direction(x - offset[0], y - offset[1], z - offset[2])] = readings;
+        return readings >= MIN_READINGS && readings % SOLVE_INTERVAL == 0
+                && getCoverage() >= MIN_DIRECTIONS && fit();
+    }
+
+
+    /**
+     * @return number of the directions the remembered readings were seen in, out of 24.
+     *         Turning the device through a figure of eight covers them all
+     */
+    public int getCoverage() {
+        long oldest = readings - memory;
+        int covered = 0;
+        for (long seen : directionSeen) {
+            if (seen > 0 && seen > oldest) {
+                covered++;
+            }
+        }
+        return covered;
+    }
+
+
+    /**
+     * @return <code>true</code> if a calibration has been accepted;
+     *         <code>false</code> otherwise.
+     */
+    public boolean isCalibrated() {
+        return calibrated;
+    }
+
+
+    /**
+     * @return strength of the field the readings were fitted to in microtesla, 0 until calibrated
+     */
+    public float getFieldStrength() {
+        return fieldStrength;
+    }
+
+
+    /**
+     * Map a raw reading onto the calibrated sphere. Until a calibration has been accepted the
+     * reading is returned as it is.
+     *
+     * @param x x component in microtesla
+     * @param y y component in microtesla
+     * @param z z component in microtesla
+     * @param out receives the calibrated reading in microtesla
+     */
+    public void calibrate(float x, float y, float z, float[] out) {
+        float dx = x - offset[0];
+        float dy = y - offset[1];
+        float dz = z - offset[2];
+        out[0] = correction[0] * dx + correction[1] * dy + correction[2] * dz;
+        out[1] = correction[3] * dx + correction[4] * dy + correction[5] * dz;
+        out[2] = correction[6] * dx + correction[7] * dy + correction[8] * dz;
+    }
+
+
+    /**
+     * Solve the normal equations and accept the fitted ellipsoid if it is plausible.
+     */
+    private boolean fit() {
+        // Augmented matrix of the full symmetric system.
+        int k = 0;
+        for (int i = 0; i < PARAMETERS; i++) {
+            for (int j = i; j < PARAMETERS; j++) {
+                system[i * (PARAMETERS + 1) + j] = normal[k];
+                system[j * (PARAMETERS + 1) + i] = normal[k];
+                k++;
+            }
+            system[i * (PARAMETERS + 1) + PARAMETERS] = rhs[i];
+        }
+        if (!solve(system, PARAMETERS, quadric)) {
+            return false;
+        }
+
+        // x'Mx + 2v'x = 1 is centered on c = -M^-1 v, and (x-c)'M(x-c) = 1 + c'Mc.
+        double a = quadric[0], b = quadric[1], c = quadric[2];
+        double f = quadric[3], g = quadric[4], h = quadric[5];
+        shape[0] = a; shape[1] = h; shape[2] = g;
+        shape[3] = h; shape[4] = b; shape[5] = f;
+        shape[6] = g; shape[7] = f; shape[8] = c;
+        double det = a * (b * c - f * f) - h * (h * c - f * g) + g * (h * f - b * g);
+        if (Math.abs(det) < 1e-12) {
+            return false;
+        }
+        // Center from the adjugate of M.
+        double p = quadric[6], q = quadric[7], r = quadric[8];
+        double cx = -((b * c - f * f) * p + (g * f - h * c) * q + (h * f - g * b) * r) / det;
+        double cy = -((g * f - h * c) * p + (a * c - g * g) * q + (g * h - a * f) * r) / det;
+        double cz = -((h * f - g * b) * p + (g * h - a * f) * q + (a * b - h * h) * r) / det;
+        double scale = 1 + cx * (a * cx + h * cy + g * cz) + cy * (h * cx + b * cy + f * cz)
+                + cz * (g * cx + f * cy + c * cz);
+        if (scale <= 0) {
+            return false;
+        }
+        for (int i = 0; i < 9; i++) {
+            shape[i] /= scale;
+        }
+
+        // The eigenvalues of the shape matrix are 1/radius^2 along its axes.
+        jacobi(shape, eigenvalues, eigenvectors);
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double eigenvalue : eigenvalues) {
+            if (eigenvalue <= 0) {
+                return false;
+            }
+            min = Math.min(min, eigenvalue);
+            max = Math.max(max, eigenvalue);
+        }
+        if (Math.sqrt(max / min) > MAX_AXIS_RATIO) {
+            return false;
+        }
+        // The sphere has the volume of the ellipsoid.
+        double radius = 1 / Math.cbrt(Math.sqrt(eigenvalues[0] * eigenvalues[1] * eigenvalues[2]));
+        double strength = radius * UNIT;
+        if (strength < MIN_FIELD || strength > MAX_FIELD) {
+            return false;
+        }
+
+        // Correction V diag(sqrt(eigenvalue) * radius) V', which squeezes each axis of the
+        // ellipsoid to the radius of the sphere.
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double sum = 0;
+                for (int e = 0; e < 3; e++) {
+                    sum += eigenvectors[i * 3 + e] * Math.sqrt(eigenvalues[e]) * radius
+                            * eigenvectors[j * 3 + e];
+                }
+                correction[i * 3 + j] = (float)sum;
+            }
+        }
+        offset[0] = (float)(cx * UNIT);
+        offset[1] = (float)(cy * UNIT);
+        offset[2] = (float)(cz * UNIT);
+        fieldStrength = (float)strength;
+        calibrated = true;
+        return true;
+    }
+
+
+    /**
+     * Solve a linear system by Gaussian elimination with partial pivoting.
+     *
+     * @param m augmented n x (n + 1) matrix, row by row, destroyed
+     * @param n number of unknowns
+     * @param out receives the solution
+     * @return <code>true</code> if the system was solved;
+     *         <code>false</code> if it is singular.
+     */
+    static boolean solve(double[] m, int n, double[] out) {
+        int stride = n + 1;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int i = col + 1; i < n; i++) {
+                if (Math.abs(m[i * stride + col]) > Math.abs(m[pivot * stride + col])) {
+                    pivot = i;
+                }
+            }
+            if (Math.abs(m[pivot * stride + col]) < 1e-12) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int j = col; j <= n; j++) {
+                    double t = m[col * stride + j];
+                    m[col * stride + j] = m[pivot * stride + j];
+                    m[pivot * stride + j] = t;
+                }
+            }
+            for (int i = col + 1; i < n; i++) {
+                double factor = m[i * stride + col] / m[col * stride + col];
+                for (int j = col; j <= n; j++) {
+                    m[i * stride + j] -= factor * m[col * stride + j];
+                }
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = m[i * stride + n];
+            for (int j = i + 1; j < n; j++) {
+                sum -= m[i * stride + j] * out[j];
+            }
+            out[i] = sum / m[i * stride + i];
+        }
+        return true;
+    }
+
+
+    /**
+     * Eigen decomposition of a symmetric 3x3 matrix by cyclic Jacobi rotations.
+     *
+     * @param a the matrix, row by row, destroyed
+     * @param values receives the eigenvalues
+     * @param vectors receives the eigenvectors as columns, row by row
+     */
+    static void jacobi(double[] a, double[] values, double[] vectors) {
+        Arrays.fill(vectors, 0);
+        vectors[0] = vectors[4] = vectors[8] = 1;
+        for (int sweep = 0; sweep < 16; sweep++) {
+            double off = a[1] * a[1] + a[2] * a[2] + a[5] * a[5];
+            if (off < 1e-24) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    double apq = a[p * 3 + q];
+                    if (Math.abs(apq) < 1e-30) {
+                        continue;
+                    }
+                    // Rotation angle that zeroes a[p][q].
+                    double theta = (a[q * 3 + q] - a[p * 3 + p]) / (2 * apq);
+                    double t = theta == 0 ? 1
+                            : Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double akp = a[k * 3 + p];
+                        double akq = a[k * 3 + q];
+                        a[k * 3 + p] = c * akp - s * akq;
+                        a[k * 3 + q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double apk = a[p * 3 + k];
+                        double aqk = a[q * 3 + k];
+                        a[p * 3 + k] = c * apk - s * aqk;
+                        a[q * 3 + k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = vectors[k * 3 + p];
+                        double vkq = vectors[k * 3 + q];
+                        vectors[k * 3 + p] = c * vkp - s * vkq;
+                        vectors[k * 3 + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        values[0] = a[0];
+        values[1] = a[4];
+        values[2] = a[8];
+    }
+
+
+    /**
+     * @return which of the 24 directions a vector points in
+     */
+    private static int direction(float x, float y, float z) {
+        float ax = Math.abs(x);
+        float ay = Math.abs(y);
+        float az = Math.abs(z);
+        int largest = ax >= ay && ax >= az ? 0 : ay >= az ? 1 : 2;
+        int octant = (x < 0 ? 1 : 0) | (y < 0 ? 2 : 0) | (z < 0 ? 4 : 0);
+        return largest * 8 + octant;
+    }
+}
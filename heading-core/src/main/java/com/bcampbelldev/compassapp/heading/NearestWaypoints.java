@@ -0,0 +1,179 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * The waypoints closest to the current location, with the bearing and distance to each of them
+ * and the angle to turn to face them.
+ * <p>
+ * Searching the {@link WaypointIndex} and computing bearings and distances is only done when
+ * {@link #setLocation(double, double)} reports a location that has moved far enough from the one
+ * the targets were computed for. {@link #setHeading(float)} is cheap enough to call on every
+ * heading update; it only turns the cached bearings into angles relative to the heading. Not
+ * thread-safe.
+ */
+public final class NearestWaypoints {
+
+    private final WaypointIndex index;
+    private final float minMoveMeters;
+    private final RangeMap compassPoints;
+
+    private final int[] indices;
+    private final float[] distances;
+    private final float[] bearings;
+    private final float[] relativeAngles;
+    private int size;
+
+    private boolean hasLocation;
+    private double latitude;
+    private double longitude;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param index waypoints to search
+     * @param count largest number of targets to keep
+     * @param minMoveMeters how far the location has to move before the targets are recomputed
+     * @param compassPoints map from heading in whole degrees to compass point text, used for
+     *                      the bearings
+     */
+    public NearestWaypoints(WaypointIndex index, int count, float minMoveMeters,
+                            RangeMap compassPoints) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        this.index = index;
+        this.minMoveMeters = minMoveMeters;
+        this.compassPoints = compassPoints;
+        this.indices = new int[count];
+        this.distances = new float[count];
+        this.bearings = new float[count];
+        this.relativeAngles = new float[count];
+    }
+
+
+    /**
+     * Report the current location. The targets are recomputed the first time and whenever the
+     * location is at least the minimum move away from where they were last computed.
+     *
+     * @param latitude latitude in degrees
+     * @param longitude longitude in degrees
+     * @return <code>true</code> if the targets were recomputed; <code>false</code> otherwise.
+     */
+    public boolean setLocation(double latitude, double longitude) {
+        if (hasLocation
+                && distance(this.latitude, this.longitude, latitude, longitude) < minMoveMeters) {
+            return false;
+        }
+        hasLocation = true;
+        this.latitude = latitude;
+        this.longitude = longitude;
+
+        size = index.findNearest(latitude, longitude, indices, distances);
+        for (int i = 0; i < size; i++) {
+            bearings[i] = bearing(latitude, longitude,
+                    index.getLatitude(indices[i]), index.getLongitude(indices[i]));
+        }
+        return true;
+    }
+
+
+    /**
+     * Update the angles to the targets for a new heading.
+     *
+     * @param azimuth heading in degrees clockwise from north, e.g.
+     *                {@link HeadingEngine#getAzimuth()}
+     */
+    public void setHeading(float azimuth) {
+        for (int i = 0; i < size; i++) {
+            float angle = (bearings[i] - azimuth) % 360f;
+            if (angle > 180f) {
+                angle -= 360f;
+            } else if (angle <= -180f) {
+                angle += 360f;
+            }
+            relativeAngles[i] = angle;
+        }
+    }
+
+
+    /**
+     * @return number of targets, 0 until a location has been set
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @param i index of a target, nearest first
+     * @return name of the target
+     */
+    public String getName(int i) {
+        return index.getName(indices[i]);
+    }
+
+
+    /**
+     * @param i index of a target
+     * @return great-circle distance to the target in meters
+     */
+    public float getDistance(int i) {
+        return distances[i];
+    }
+
+
+    /**
+     * @param i index of a target
+     * @return initial bearing to the target in degrees clockwise from north, 0-360
+     */
+    public float getBearing(int i) {
+        return bearings[i];
+    }
+
+
+    /**
+     * @param i index of a target
+     * @return compass point of the bearing to the target, e.g. "NE"
+     */
+    public String getBearingPoint(int i) {
+        return compassPoints.getValueForKey((int)bearings[i] % 360);
+    }
+
+
+    /**
+     * @param i index of a target
+     * @return angle to turn to face the target as of the last heading, -180 to 180 degrees,
+     *         positive to the right
+     */
+    public float getRelativeAngle(int i) {
+        return relativeAngles[i];
+    }
+
+
+    /**
+     * @return great-circle distance between two locations in meters
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinLat = Math.sin((phi2 - phi1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinLat * sinLat + Math.cos(phi1) * Math.cos(phi2) * sinLon * sinLon;
+        return 2 * WaypointIndex.EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+
+    /**
+     * @return initial great-circle bearing from one location to another in degrees, 0-360
+     */
+    static float bearing(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double deltaLon = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(deltaLon) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2)
+                - Math.sin(phi1) * Math.cos(phi2) * Math.cos(deltaLon);
+        float degrees = (float)((Math.toDegrees(Math.atan2(y, x)) + 360) % 360);
+        return degrees >= 360f ? 0f : degrees;
+    }
+}
@@ -0,0 +1,67 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * One euro filter on the heading unit vector: a low-pass filter whose cutoff frequency rises with
+ * the speed of the heading. It smooths out jitter while the device is held still and follows
+ * quickly when it turns.
+ *
+ * @see <a href="http://cristal.univ-lille.fr/~casiez/1euro/">1&euro; Filter</a>
+ */
+public final class OneEuroHeadingFilter extends UnitVectorFilter {
+
+    private final float minCutoff;
+    private final float beta;
+    private final float derivativeCutoff;
+
+    // Filtered rate of change of the unit vector, per second.
+    private float dx;
+    private float dy;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param minCutoff cutoff frequency in Hz while the heading is not changing. Lower values
+     *                  remove more jitter
+     * @param beta how much the cutoff frequency rises with speed, in Hz per radian per second.
+     *             Higher values reduce lag while turning
+     * @param derivativeCutoff cutoff frequency in Hz of the speed estimate
+     */
+    public OneEuroHeadingFilter(float minCutoff, float beta, float derivativeCutoff) {
+        if (minCutoff <= 0 || derivativeCutoff <= 0 || beta < 0) {
+            throw new IllegalArgumentException("Invalid one euro filter parameters " + minCutoff
+                    + ", " + beta + ", " + derivativeCutoff);
+        }
+        this.minCutoff = minCutoff;
+        this.beta = beta;
+        this.derivativeCutoff = derivativeCutoff;
+    }
+
+
+    @Override
+    protected void start(float measuredX, float measuredY) {
+        dx = 0;
+        dy = 0;
+    }
+
+
+    @Override
+    protected void step(float measuredX, float measuredY, float dt) {
+        float derivativeAlpha = alpha(derivativeCutoff, dt);
+        dx += derivativeAlpha * ((measuredX - x) / dt - dx);
+        dy += derivativeAlpha * ((measuredY - y) / dt - dy);
+
+        // Speed of the unit vector is roughly the angular speed in radians per second.
+        float speed = (float)Math.sqrt(dx * dx + dy * dy);
+        float alpha = alpha(minCutoff + beta * speed, dt);
+        x += alpha * (measuredX - x);
+        y += alpha * (measuredY - y);
+    }
+
+
+    // Smoothing factor of a first order low-pass filter with the given cutoff frequency.
+    private static float alpha(float cutoff, float dt) {
+        float tau = 1f / (2f * (float)Math.PI * cutoff);
+        return 1f / (1f + tau / dt);
+    }
+}
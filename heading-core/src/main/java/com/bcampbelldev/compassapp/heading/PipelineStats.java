@@ -0,0 +1,204 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput counters for the heading pipeline, from the sensor event to the display
+ * frame that shows it. Stages are timed by whichever thread runs them; all counters are lock-free,
+ * so the stats can be read or dumped at any time from any thread.
+ * <p>
+ * Stages, each a {@link LatencyHistogram}:
+ * <ul>
+ *     <li>delivery: sensor event timestamp to the event reaching the sensor thread</li>
+ *     <li>processing: running a batch of events through the engine</li>
+ *     <li>handoff: publishing the heading to the main thread picking it up</li>
+ *     <li>frame: sensor event timestamp to the start of the frame that drew the heading</li>
+ *     <li>end-to-end: sensor event timestamp to the frame that drew the heading being rendered,
+ *         where the platform reports frame timings</li>
+ * </ul>
+ */
+public final class PipelineStats {
+
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    private final LatencyHistogram processing = new LatencyHistogram();
+    private final LatencyHistogram handoff = new LatencyHistogram();
+    private final LatencyHistogram frame = new LatencyHistogram();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong coalescedInBatch = new AtomicLong();
+    private final AtomicLong coalescedInMailbox = new AtomicLong();
+    private final AtomicLong coalescedInFrame = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong drawn = new AtomicLong();
+
+
+    /**
+     * Count an event reaching the sensor thread.
+     *
+     * @param ageNanos time since the event was measured
+     * @param isStale whether the event is dropped for not being newer than the last one
+     */
+    public void onEventReceived(long ageNanos, boolean isStale) {
+        received.incrementAndGet();
+        if (isStale) {
+            stale.incrementAndGet();
+        } else {
+            delivery.record(ageNanos);
+        }
+    }
+
+
+    /**
+     * Count a processed batch. All but the newest event of the batch are coalesced into it.
+     *
+     * @param size number of events in the batch
+     * @param durationNanos time taken to process the batch
+     */
+    public void onBatchProcessed(int size, long durationNanos) {
+        processing.record(durationNanos);
+        coalescedInBatch.addAndGet(size - 1);
+    }
+
+
+    /**
+     * Count a heading published to the main thread.
+     *
+     * @param replacedUnread whether it replaced a heading the main thread had not taken yet
+     */
+    public void onPublished(boolean replacedUnread) {
+        published.incrementAndGet();
+        if (replacedUnread) {
+            coalescedInMailbox.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Count a heading taken by the main thread.
+     *
+     * @param handoffNanos time since it was published
+     * @param replacedUndrawn whether it replaced a heading that had not been drawn yet
+     */
+    public void onDelivered(long handoffNanos, boolean replacedUndrawn) {
+        handoff.record(handoffNanos);
+        if (replacedUndrawn) {
+            coalescedInFrame.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Count a heading reaching the start of a display frame.
+     *
+     * @param latencyNanos time from the sensor event to the start of the frame
+     */
+    public void onFrame(long latencyNanos) {
+        drawn.incrementAndGet();
+        frame.record(latencyNanos);
+    }
+
+
+    /**
+     * Record the full latency of a heading once its frame has been rendered.
+     *
+     * @param latencyNanos time from the sensor event to the end of rendering the frame
+     */
+    public void onFrameRendered(long latencyNanos) {
+        endToEnd.record(latencyNanos);
+    }
+
+
+    /**
+     * @return sensor event to frame start latencies
+     */
+    public LatencyHistogram getFrameLatency() {
+        return frame;
+    }
+
+
+    /**
+     * @return sensor event to rendered frame latencies. Empty where frame timings are unavailable
+     */
+    public LatencyHistogram getEndToEndLatency() {
+        return endToEnd;
+    }
+
+
+    /**
+     * @return number of events that did not reach the screen: dropped as stale or coalesced with
+     *         a newer event at any stage
+     */
+    public long getDroppedCount() {
+        return stale.get() + coalescedInBatch.get() + coalescedInMailbox.get()
+                + coalescedInFrame.get();
+    }
+
+
+    /**
+     * @return number of events that reached the sensor thread
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+
+    /**
+     * Forget everything recorded so far, e.g. when the pipeline restarts.
+     */
+    public void reset() {
+        delivery.reset();
+        processing.reset();
+        handoff.reset();
+        frame.reset();
+        endToEnd.reset();
+        received.set(0);
+        stale.set(0);
+        coalescedInBatch.set(0);
+        coalescedInMailbox.set(0);
+        coalescedInFrame.set(0);
+        published.set(0);
+        drawn.set(0);
+    }
+
+
+    /**
+     * Write the counters and a summary of every stage, e.g. for <code>dumpsys</code>.
+     *
+     * @param prefix prefix of each line
+     * @param writer writer to print to
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("events: received=");
+        writer.print(received.get());
+        writer.print(" stale=");
+        writer.print(stale.get());
+        writer.print(" coalesced(batch/mailbox/frame)=");
+        writer.print(coalescedInBatch.get());
+        writer.print('/');
+        writer.print(coalescedInMailbox.get());
+        writer.print('/');
+        writer.print(coalescedInFrame.get());
+        writer.print(" published=");
+        writer.print(published.get());
+        writer.print(" drawn=");
+        writer.println(drawn.get());
+
+        dump(prefix, "delivery:   ", delivery, writer);
+        dump(prefix, "processing: ", processing, writer);
+        dump(prefix, "handoff:    ", handoff, writer);
+        dump(prefix, "frame:      ", frame, writer);
+        dump(prefix, "end-to-end: ", endToEnd, writer);
+    }
+
+
+    private static void dump(String prefix, String label, LatencyHistogram histogram,
+                             PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(label);
+        histogram.dump(writer);
+    }
+}
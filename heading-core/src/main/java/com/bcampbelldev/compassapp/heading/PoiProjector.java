@@ -0,0 +1,290 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.util.Arrays;
+
+/**
+ * Projects waypoints into the screen coordinates of a camera preview, for drawing them over the
+ * camera feed.
+ * <p>
+ * {@link #setPoints(WaypointIndex, double, double, float, float)} does the expensive part once
+ * per location change: it finds the waypoints within range and turns each of them into a unit
+ * direction in east, north, up coordinates, sorted nearest first. {@link #project(float[])} then
+ * runs once per display frame: three dot products per point against the camera axes taken from
+ * the rotation matrix, culling everything outside the view, over flat float arrays with no
+ * allocation. The screen positions come out interleaved x, y, ready for
+ * <code>Canvas.drawPoints</code>.
+ * <p>
+ * The rotation matrix is the one {@link HeadingEngine} produces when remapped with
+ * <code>AXIS_X, AXIS_Z</code>, i.e. for a device held upright with the camera facing forward.
+ * Its north is magnetic north whatever the declination of the headings, so the directions are
+ * turned from true to magnetic north. Not thread-safe.
+ */
+public final class PoiProjector {
+
+    // Points closer than this to the camera plane are not projected, to keep the division sane.
+    private static final float NEAR = 1e-3f;
+
+    private final int capacity;
+    private WaypointIndex index;
+
+    // Candidates within range, nearest first.
+    private int count;
+    private final int[] waypoints;
+    private final float[] east;
+    private final float[] north;
+    private final float[] up;
+    private final float[] distances;
+
+    // Scratch space for finding and sorting the candidates.
+    private final int[] found;
+    private final long[] sortKeys;
+
+    // Screen axes of the remapped device frame, as (axis index + 1) * sign.
+    private int rightAxis = 1;
+    private int upAxis = 3;
+
+    private int width;
+    private int height;
+    private float tanHalfWidth;
+    private float tanHalfHeight;
+    private float focal;
+    private float margin;
+
+    // Output of the last projection.
+    private int visibleCount;
+    private final int[] visible;
+    private final float[] screen;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param capacity most waypoints kept in range at once. The farthest are dropped beyond that
+     */
+    public PoiProjector(int capacity) {
+        this.capacity = capacity;
+        waypoints = new int[capacity];
+        east = new float[capacity];
+        north = new float[capacity];
+        up = new float[capacity];
+        distances = new float[capacity];
+        found = new int[capacity * 4];
+        sortKeys = new long[capacity * 4];
+        visible = new int[capacity];
+        screen = new float[capacity * 2];
+    }
+
+
+    /**
+     * Set the size and field of view of the preview the points are projected into. The vertical
+     * field of view follows from the aspect ratio, i.e. the preview is assumed to show the whole
+     * width of the camera image without distortion.
+     *
+     * @param width width of the view in pixels
+     * @param height height of the view in pixels
+     * @param horizontalViewAngle field of view across the width, in degrees
+     * @param margin how far outside the view points are still projected, in pixels, so labels
+     *               slide in rather than pop up
+     */
+    public void setView(int width, int height, float horizontalViewAngle, float margin) {
+        this.width = width;
+        this.height = height;
+        this.margin = margin;
+        tanHalfWidth = (float)Math.tan(Math.toRadians(horizontalViewAngle) / 2);
+        focal = width / 2f / tanHalfWidth;
+        tanHalfHeight = height / 2f / focal;
+    }
+
+
+    /**
+     * Set how the display is rotated from the device's natural orientation.
+     *
+     * @param degrees display rotation, 0, 90, 180 or 270
+     */
+    public void setDisplayRotation(int degrees) {
+        // The remapped frame is x = device x, y = out of the camera, z = device y.
+        switch (degrees) {
+            case 90:
+                rightAxis = 3;
+                upAxis = -1;
+                break;
+            case 180:
+                rightAxis = -1;
+                upAxis = -3;
+                break;
+            case 270:
+                rightAxis = -3;
+                upAxis = 1;
+                break;
+            default:
+                rightAxis = 1;
+                upAxis = 3;
+                break;
+        }
+    }
+
+
+    /**
+     * Choose the waypoints within range of a location and work out their directions from it.
+     *
+     * @param index waypoints to choose from
+     * @param latitude latitude of the camera in degrees
+     * @param longitude longitude of the camera in degrees
+     * @param range greatest distance of a waypoint from the camera, in meters
+     * @param declination magnetic declination at the camera in degrees, positive when magnetic
+     *                    north is east of true north
+     * @return number of waypoints in range, at most the capacity
+     */
+    public int setPoints(WaypointIndex index, double latitude, double longitude, float range,
+                         float declination) {
+        this.index = index;
+        int n = index.findWithin(latitude, longitude, range, found);
+
+        // Sort by distance with the candidate packed into the low bits. Non-negative floats
+        // order the same as their bits.
+        if (n == found.length) {
+            // Too many in range to sort them all. The nearest are all in range anyway.
+            n = index.findNearest(latitude, longitude, waypoints, distances);
+            for (int i = 0; i < n; i++) {
+                sortKeys[i] = ((long)Float.floatToIntBits(distances[i]) << 32) | waypoints[i];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                float distance = (float)NearestWaypoints.distance(latitude, longitude,
+                        index.getLatitude(found[i]), index.getLongitude(found[i]));
+                sortKeys[i] = ((long)Float.floatToIntBits(distance) << 32) | found[i];
+            }
+            Arrays.sort(sortKeys, 0, n);
+        }
+
+        count = Math.min(n, capacity);
+        for (int i = 0; i < count; i++) {
+            int waypoint = (int)sortKeys[i];
+            float distance = Float.intBitsToFloat((int)(sortKeys[i] >>> 32));
+            // Relative to magnetic north, like the rotation matrix.
+            double bearing = Math.toRadians(NearestWaypoints.bearing(latitude, longitude,
+                    index.getLatitude(waypoint), index.getLongitude(waypoint)) - declination);
+
+            // A point on the ground drops below the horizon by half the angle it subtends at
+            // the center of the Earth.
+            double elevation = -distance / WaypointIndex.EARTH_RADIUS / 2;
+            waypoints[i] = waypoint;
+            distances[i] = distance;
+            east[i] = (float)(Math.sin(bearing) * Math.cos(elevation));
+            north[i] = (float)(Math.cos(bearing) * Math.cos(elevation));
+            up[i] = (float)Math.sin(elevation);
+        }
+        visibleCount = 0;
+        return count;
+    }
+
+
+    /**
+     * Project the points for a device orientation.
+     *
+     * @param rotationMatrix remapped 3x3 rotation matrix, e.g.
+     *                       {@link HeadingSample#getRotationMatrix()}
+     * @return number of points in view, see {@link #getScreenPositions()}
+     */
+    public int project(float[] rotationMatrix) {
+        visibleCount = 0;
+        if (count == 0 || width == 0) {
+            return 0;
+        }
+
+        // World directions of the camera axes are columns of the matrix.
+        float fx = rotationMatrix[1];
+        float fy = rotationMatrix[4];
+        float fz = rotationMatrix[7];
+        float rx = column(rotationMatrix, rightAxis, 0);
+        float ry = column(rotationMatrix, rightAxis, 1);
+        float rz = column(rotationMatrix, rightAxis, 2);
+        float ux = column(rotationMatrix, upAxis, 0);
+        float uy = column(rotationMatrix, upAxis, 1);
+        float uz = column(rotationMatrix, upAxis, 2);
+
+        float tanRight = tanHalfWidth + margin / focal;
+        float tanUp = tanHalfHeight + margin / focal;
+        float centerX = width / 2f;
+        float centerY = height / 2f;
+
+        for (int i = 0; i < count; i++) {
+            float e = east[i];
+            float n = north[i];
+            float u = up[i];
+            float forward = fx * e + fy * n + fz * u;
+            if (forward < NEAR) {
+                continue;
+            }
+            float right = rx * e + ry * n + rz * u;
+            float upward = ux * e + uy * n + uz * u;
+            if (Math.abs(right) > forward * tanRight || Math.abs(upward) > forward * tanUp) {
+                continue;
+            }
+            float scale = focal / forward;
+            screen[visibleCount * 2] = centerX + right * scale;
+            screen[visibleCount * 2 + 1] = centerY - upward * scale;
+            visible[visibleCount++] = i;
+        }
+        return visibleCount;
+    }
+
+
+    private static float column(float[] m, int axis, int row) {
+        float value = m[row * 3 + Math.abs(axis) - 1];
+        return axis < 0 ? -value : value;
+    }
+
+
+    /**
+     * @return number of waypoints in range
+     */
+    public int size() {
+        return count;
+    }
+
+
+    /**
+     * @return screen positions of the points in view as of the last projection, x and y
+     *         interleaved, nearest first. The array is reused by the next projection
+     */
+    public float[] getScreenPositions() {
+        return screen;
+    }
+
+
+    /**
+     * @return number of points in view as of the last projection
+     */
+    public int getVisibleCount() {
+        return visibleCount;
+    }
+
+
+    /**
+     * @param i index of a point in view as of the last projection, 0 for the nearest
+     * @return the point, an index into the waypoints in range for {@link #getName(int)} and
+     *         {@link #getDistance(int)}
+     */
+    public int getVisiblePoint(int i) {
+        return visible[i];
+    }
+
+
+    /**
+     * @param point index of a waypoint in range, 0 for the nearest
+     * @return name of the waypoint
+     */
+    public String getName(int point) {
+        return index.getName(waypoints[point]);
+    }
+
+
+    /**
+     * @param point index of a waypoint in range
+     * @return distance to the waypoint in meters
+     */
+    public float getDistance(int point) {
+        return distances[point];
+    }
+}
@@ -0,0 +1,267 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides when the heading sensor can be switched off altogether, e.g. while the device lies on
+ * a table, and accounts for the time spent in each power state, so the savings can be checked.
+ * <p>
+ * The states build on an {@link AdaptiveRateController}: {@link #ACTIVE} while it uses the fast
+ * rate and {@link #SLOW} while it uses the slow one. Once the device has been still for the
+ * dormant time the state becomes {@link #DORMANT}: the heading sensor is unregistered and only a
+ * cheap trigger is armed, a low-rate accelerometer whose readings are checked with
+ * {@link #onAcceleration(long, float, float, float)}, until {@link #wake(long)} goes back to
+ * {@link #ACTIVE}. The heading does not change while the device does not move, so nothing is lost
+ * but the latency of waking.
+ * <p>
+ * Timestamps are nanoseconds on the clock of the sensor events. The controller is used on the
+ * sensor thread and read from others, so its methods are synchronized; it is called once per
+ * batch of events, not per event.
+ */
+public final class PowerModeController {
+
+    /**
+     * The heading sensor is not registered because nothing needs headings.
+     */
+    public static final int OFF = 0;
+
+    /**
+     * The heading sensor runs at the fast rate.
+     */
+    public static final int ACTIVE = 1;
+
+    /**
+     * The device is still and the heading sensor runs at the slow rate.
+     */
+    public static final int SLOW = 2;
+
+    /**
+     * The device has been still for a while; the heading sensor is unregistered until the
+     * device moves.
+     */
+    public static final int DORMANT = 3;
+
+    private static final String[] NAMES = {"off", "active", "slow", "dormant"};
+
+    private final long dormantAfterNanos;
+    private final float wakeAcceleration;
+    private boolean dormantAllowed = true;
+
+    private int state = OFF;
+    private long since;
+    private boolean accounting;
+    private final long[] nanosInState = new long[NAMES.length];
+
+    // Acceleration when the device went dormant, which waking compares with.
+    private boolean hasReference;
+    private final float[] reference = new float[3];
+
+    private long wakeTime;
+    private boolean waking;
+    private int wakeCount;
+    private long maxWakeLatencyNanos;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param dormantAfterNanos how long the device has to be still at the slow rate before the
+     *                          heading sensor is switched off, in nanoseconds
+     * @param wakeAcceleration change of the acceleration that counts as the device moving again,
+     *                         in m/s&sup2;
+     */
+    public PowerModeController(long dormantAfterNanos, float wakeAcceleration) {
+        this.dormantAfterNanos = dormantAfterNanos;
+        this.wakeAcceleration = wakeAcceleration;
+    }
+
+
+    /**
+     * Say whether the heading sensor may be switched off, e.g. not while a view has to follow
+     * quick turns without delay. Takes effect from the next {@link #update(long, boolean)}.
+     *
+     * @param allowed whether {@link #DORMANT} may be entered
+     */
+    public synchronized void setDormantAllowed(boolean allowed) {
+        this.dormantAllowed = allowed;
+    }
+
+
+    /**
+     * The heading sensor has been registered at the fast rate.
+     *
+     * @param now current time
+     */
+    public synchronized void start(long now) {
+        enter(ACTIVE, now);
+        waking = false;
+    }
+
+
+    /**
+     * The heading sensor and any trigger have been unregistered.
+     *
+     * @param now current time
+     */
+    public synchronized void stop(long now) {
+        enter(OFF, now);
+        waking = false;
+    }
+
+
+    /**
+     * Follow the rate controller after a batch of headings.
+     *
+     * @param now time of the newest heading
+     * @param still whether the rate controller counts the device as still
+     * @return <code>true</code> if the state has just become {@link #DORMANT} and the heading
+     *         sensor should be swapped for the wake trigger;
+     *         <code>false</code> otherwise.
+     */
+    public synchronized boolean update(long now, boolean still) {
+        if (waking) {
+            // The first heading since waking up.
+            waking = false;
+            maxWakeLatencyNanos = Math.max(maxWakeLatencyNanos, now - wakeTime);
+        }
+        switch (state) {
+            case ACTIVE:
+                if (still) {
+                    enter(SLOW, now);
+                }
+                return false;
+            case SLOW:
+                if (!still) {
+                    enter(ACTIVE, now);
+                } else if (dormantAllowed && now - since >= dormantAfterNanos) {
+                    enter(DORMANT, now);
+                    hasReference = false;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Check an accelerometer reading of the wake trigger.
+     *
+     * @param now time of the reading
+     * @param x acceleration along the device x axis, in m/s&sup2;
+     * @param y acceleration along the device y axis
+     * @param z acceleration along the device z axis
+     * @return <code>true</code> if the device is dormant and has moved, so it should be woken
+     *         with {@link #wake(long)};
+     *         <code>false</code> otherwise.
+     */
+    public synchronized boolean onAcceleration(long now, float x, float y, float z) {
+        if (state != DORMANT) {
+            return false;
+        }
+        if (!hasReference) {
+            hasReference = true;
+            reference[0] = x;
+            reference[1] = y;
+            reference[2] = z;
+            return false;
+        }
+        float dx = x - reference[0];
+        float dy = y - reference[1];
+        float dz = z - reference[2];
+        return dx * dx + dy * dy + dz * dz > wakeAcceleration * wakeAcceleration;
+    }
+
+
+    /**
+     * The device has moved while dormant and the heading sensor has been registered again at
+     * the fast rate. The time until the next {@link #update(long, boolean)} is the wake latency.
+     *
+     * @param now time the movement was noticed
+     */
+    public synchronized void wake(long now) {
+        if (state != DORMANT) {
+            return;
+        }
+        enter(ACTIVE, now);
+        wakeTime = now;
+        waking = true;
+        wakeCount++;
+    }
+
+
+    private void enter(int newState, long now) {
+        if (accounting) {
+            nanosInState[state] += Math.max(0, now - since);
+        }
+        accounting = true;
+        state = newState;
+        since = now;
+    }
+
+
+    /**
+     * @return the current state, one of {@link #OFF}, {@link #ACTIVE}, {@link #SLOW} and
+     *         {@link #DORMANT}
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+
+    /**
+     * @param state one of {@link #OFF}, {@link #ACTIVE}, {@link #SLOW} and {@link #DORMANT}
+     * @param now current time, to include the time in the current state so far
+     * @return total time spent in the state, in nanoseconds
+     */
+    public synchronized long getNanosInState(int state, long now) {
+        long nanos = nanosInState[state];
+        if (accounting && state == this.state) {
+            nanos += Math.max(0, now - since);
+        }
+        return nanos;
+    }
+
+
+    /**
+     * @return number of times the device woke up from {@link #DORMANT}
+     */
+    public synchronized int getWakeCount() {
+        return wakeCount;
+    }
+
+
+    /**
+     * @return longest time from noticing movement to the first heading after it, in nanoseconds
+     */
+    public synchronized long getMaxWakeLatencyNanos() {
+        return maxWakeLatencyNanos;
+    }
+
+
+    /**
+     * Write the time spent in each state and the wake-ups, e.g. for <code>dumpsys</code>.
+     *
+     * @param prefix prefix of each line
+     * @param now current time
+     * @param writer writer to print to
+     */
+    public synchronized void dump(String prefix, long now, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("power: state=");
+        writer.print(NAMES[state]);
+        for (int i = 0; i < NAMES.length; i++) {
+            writer.print(' ');
+            writer.print(NAMES[i]);
+            writer.print('=');
+            writer.print(getNanosInState(i, now) / 1_000_000L);
+            writer.print("ms");
+        }
+        writer.print(" wakes=");
+        writer.print(wakeCount);
+        writer.print(" max wake latency=");
+        writer.print(maxWakeLatencyNanos / 1_000_000L);
+        writer.println("ms");
+    }
+}
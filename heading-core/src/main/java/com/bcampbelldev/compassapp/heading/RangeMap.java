@@ -0,0 +1,148 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that an instance will hold the ranges of the compass heading and their
+ * corresponding compass point.
+ * <p>
+ * A RangeMap is immutable and is created through a {@link Builder}. Building validates that the
+ * ranges cover the whole key domain exactly once and compiles them into a direct-index table, so
+ * {@link #getValueForKey(int)} is a single array read and never allocates.
+ */
+public final class RangeMap {
+    static class RangeEntry {
+        private final int lower;
+        private final int upper;
+        private final String value;
+
+        // Each RangeEntry object has an upper and lower value and the compass point that
+        // corresponds to that range. A lower value greater than the upper value means the range
+        // wraps around the end of the domain, e.g. 355 to 5 degrees.
+        RangeEntry( int lower, int upper, String mappedVal) {
+            this.lower = lower;
+            this.upper = upper;
+            this.value = mappedVal;
+        }
+
+        // Checks if the range wraps around the end of the domain.
+        boolean wraps() {
+            return lower > upper;
+        }
+
+        // Getter method.
+        String getValue() {
+            return value;
+        }
+    }
+
+    // Smallest key of the domain. Keys are stored in the table at (key - min).
+    private final int min;
+
+    // One compass point per key of the domain.
+    private final String[] table;
+
+    private RangeMap(int min, String[] table) {
+        this.min = min;
+        this.table = table;
+    }
+
+    // Method to retrieve the String value of the range that the parameter (key) falls in.
+    // Returns null for keys outside of the domain.
+    public String getValueForKey (int key) {
+        int index = key - min;
+        if (index < 0 || index >= table.length) return null;
+        return table[index];
+    }
+
+
+    /**
+     * Builder that collects the ranges of a {@link RangeMap} and checks them for gaps and
+     * overlaps before compiling them into a lookup table.
+     */
+    public static class Builder {
+        private final int min;
+        private final int max;
+        private final List<RangeEntry> entries = new ArrayList<RangeEntry>();
+
+        /**
+         * Class constructor.
+         *
+         * @param min smallest key of the domain, inclusive
+         * @param max largest key of the domain, inclusive
+         */
+        public Builder(int min, int max) {
+            if (max < min) {
+                throw new IllegalArgumentException(
+                        "Domain upper bound " + max + " is below lower bound " + min);
+            }
+            this.min = min;
+            this.max = max;
+        }
+
+
+        /**
+         * Add a range to the map. When <code>lower</code> is greater than <code>upper</code> the
+         * range wraps around the end of the domain, e.g. <code>put(355, 5, "N")</code> on a
+         * 0-359 domain covers 355-359 and 0-5.
+         *
+         * @param lower first key of the range, inclusive
+         * @param upper last key of the range, inclusive
+         * @param mappedVal value returned for every key in the range
+         * @return this builder
+         */
+        public Builder put(int lower, int upper, String mappedVal) {
+            if (lower < min || lower > max || upper < min || upper > max) {
+                throw new IllegalArgumentException("Range " + lower + "-" + upper
+                        + " is outside of the domain " + min + "-" + max);
+            }
+            if (mappedVal == null) {
+                throw new IllegalArgumentException("Range " + lower + "-" + upper
+                        + " has no value");
+            }
+            entries.add(new RangeEntry(lower, upper, mappedVal));
+            return this;
+        }
+
+
+        /**
+         * Compile the ranges into an immutable {@link RangeMap}.
+         *
+         * @return the compiled map
+         * @throws IllegalStateException if two ranges overlap or a key is not covered by any range
+         */
+        public RangeMap build() {
+            String[] table = new String[max - min + 1];
+
+            for (RangeEntry entry : entries) {
+                if (entry.wraps()) {
+                    fill(table, entry.lower, max, entry.value);
+                    fill(table, min, entry.upper, entry.value);
+                } else {
+                    fill(table, entry.lower, entry.upper, entry.value);
+                }
+            }
+
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] == null) {
+                    throw new IllegalStateException("Key " + (i + min) + " is not in any range");
+                }
+            }
+
+            return new RangeMap(min, table);
+        }
+
+
+        // Writes the value into the table for every key in lower-upper, rejecting overlaps.
+        private void fill(String[] table, int lower, int upper, String value) {
+            for (int key = lower; key <= upper; key++) {
+                if (table[key - min] != null) {
+                    throw new IllegalStateException("Key " + key + " is in more than one range ("
+                            + table[key - min] + ", " + value + ")");
+                }
+                table[key - min] = value;
+            }
+        }
+    }
+}
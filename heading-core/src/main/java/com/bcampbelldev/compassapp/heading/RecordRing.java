@@ -0,0 +1,142 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of fixed-size binary records, handing records from one producer thread to one
+ * consumer thread that writes them out. The storage is allocated once. The producer never blocks:
+ * when the ring is full the record is dropped and counted instead.
+ */
+final class RecordRing {
+
+    private final int capacity;
+    private final int recordSize;
+
+    // The producer writes records with absolute puts; the consumer reads through its own view so
+    // the two never share a position.
+    private final ByteBuffer buffer;
+    private final ByteBuffer readView;
+
+    // Number of records published by the producer and consumed by the consumer so far.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+
+    /**
+     * Class constructor.
+     *
+     * @param capacity number of records the ring holds
+     * @param recordSize size of a record in bytes
+     */
+    RecordRing(int capacity, int recordSize) {
+        this.capacity = capacity;
+        this.recordSize = recordSize;
+        this.buffer = ByteBuffer.allocate(capacity * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.readView = buffer.duplicate();
+    }
+
+
+    /**
+     * @return the storage, for the producer to write the claimed record into with absolute puts
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+
+    /**
+     * Producer side: claim the next record.
+     *
+     * @return byte offset of the record in {@link #buffer()}, or -1 if the ring is full and the
+     *         record has to be dropped
+     */
+    int claim() {
+        long h = head.get();
+        if (h - tail.get() >= capacity) {
+            dropped.incrementAndGet();
+            return -1;
+        }
+        return (int)(h % capacity) * recordSize;
+    }
+
+
+    /**
+     * Producer side: make the claimed record visible to the consumer.
+     */
+    void publish() {
+        head.lazySet(head.get() + 1);
+    }
+
+
+    /**
+     * Consumer side: find the oldest published record, to read it with absolute gets. It stays
+     * in the ring until {@link #release()}.
+     *
+     * @return byte offset of the record in {@link #buffer()}, or -1 if there is none
+     */
+    int peek() {
+        long t = tail.get();
+        if (t == head.get()) {
+            return -1;
+        }
+        return (int)(t % capacity) * recordSize;
+    }
+
+
+    /**
+     * Consumer side: hand the record found by {@link #peek()} back to the producer.
+     */
+    void release() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+
+    /**
+     * Consumer side: write every published record to a channel, oldest first.
+     *
+     * @param channel channel to write to
+     * @return number of records written
+     * @throws IOException if writing fails. The records are still consumed
+     */
+    int drainTo(WritableByteChannel channel) throws IOException {
+        long t = tail.get();
+        int count = (int)(head.get() - t);
+        if (count == 0) {
+            return 0;
+        }
+
+        try {
+            int first = (int)(t % capacity);
+            int firstRun = Math.min(count, capacity - first);
+            write(channel, first * recordSize, firstRun * recordSize);
+            if (count > firstRun) {
+                write(channel, 0, (count - firstRun) * recordSize);
+            }
+        } finally {
+            tail.lazySet(t + count);
+        }
+        return count;
+    }
+
+
+    /**
+     * @return number of records dropped because the ring was full
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+
+    private void write(WritableByteChannel channel, int offset, int length) throws IOException {
+        readView.limit(offset + length);
+        readView.position(offset);
+        while (readView.hasRemaining()) {
+            channel.write(readView);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Rotation math used to turn a rotation vector into orientation angles. These are plain Java
+ * versions of the <code>android.hardware.SensorManager</code> helpers of the same name, working on
+ * 3x3 row-major matrices, so the heading pipeline can run and be tested off-device. None of the
+ * methods allocate; results are written into arrays supplied by the caller.
+ */
+public final class RotationMath {
+
+    // Axis constants, with the same values as SensorManager.AXIS_*.
+    public static final int AXIS_X = 1;
+    public static final int AXIS_Y = 2;
+    public static final int AXIS_Z = 3;
+    public static final int AXIS_MINUS_X = AXIS_X | 0x80;
+    public static final int AXIS_MINUS_Y = AXIS_Y | 0x80;
+    public static final int AXIS_MINUS_Z = AXIS_Z | 0x80;
+
+
+    private RotationMath() {}
+
+
+    /**
+     * Convert a rotation vector (the unit quaternion reported by the rotation vector sensor) into
+     * a rotation matrix that transforms device coordinates into world coordinates.
+     *
+     * @param R 3x3 rotation matrix to fill in
+     * @param rotationVector x, y and z components of the quaternion and, when the array has at
+     *                       least four elements, its scalar component
+     */
+    public static void getRotationMatrixFromVector(float[] R, float[] rotationVector) {
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+        float q0;
+
+        if (rotationVector.length >= 4) {
+            q0 = rotationVector[3];
+        } else {
+            // Older devices only report the vector part of the quaternion.
+            q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+            q0 = (q0 > 0) ? (float)Math.sqrt(q0) : 0;
+        }
+
+        float sq_q1 = 2 * q1 * q1;
+        float sq_q2 = 2 * q2 * q2;
+        float sq_q3 = 2 * q3 * q3;
+        float q1_q2 = 2 * q1 * q2;
+        float q3_q0 = 2 * q3 * q0;
+        float q1_q3 = 2 * q1 * q3;
+        float q2_q0 = 2 * q2 * q0;
+        float q2_q3 = 2 * q2 * q3;
+        float q1_q0 = 2 * q1 * q0;
+
+        R[0] = 1 - sq_q2 - sq_q3;
+        R[1] = q1_q2 - q3_q0;
+        R[2] = q1_q3 + q2_q0;
+
+        R[3] = q1_q2 + q3_q0;
+        R[4] = 1 - sq_q1 - sq_q3;
+        R[5] = q2_q3 - q1_q0;
+
+        R[6] = q1_q3 - q2_q0;
+        R[7] = q2_q3 + q1_q0;
+        R[8] = 1 - sq_q1 - sq_q2;
+    }
+
+
+    /**
+     * Check that two axes form a valid coordinate system remapping for
+     * {@link #remapCoordinateSystem(float[], int, int, float[])}.
+     *
+     * @param X one of the <code>AXIS_*</code> constants
+     * @param Y one of the <code>AXIS_*</code> constants
+     * @return <code>true</code> if the axes are valid and distinct;
+     *         <code>false</code> otherwise.
+     */
+    public static boolean isValidRemap(int X, int Y) {
+        return (X & 0x7C) == 0 && (Y & 0x7C) == 0
+                && (X & 0x3) != 0 && (Y & 0x3) != 0
+                && (X & 0x3) != (Y & 0x3);
+    }
+
+
+    /**
+     * Rotate a rotation matrix so that it is expressed in a different coordinate system, e.g.
+     * when the device is held upright instead of flat.
+     *
+     * @param inR 3x3 rotation matrix to remap
+     * @param X the world axis the device x axis is mapped onto
+     * @param Y the world axis the device y axis is mapped onto
+     * @param outR 3x3 matrix to write the result into. Must not be <code>inR</code>
+     * @throws IllegalArgumentException if the axes are not a valid remapping
+     */
+    public static void remapCoordinateSystem(float[] inR, int X, int Y, float[] outR) {
+        if (!isValidRemap(X, Y)) {
+            throw new IllegalArgumentException("Invalid axis remapping " + X + ", " + Y);
+        }
+
+        // Z is "the other" axis, its sign is either +/- sign(X)*sign(Y). This can be computed by
+        // exclusive-or'ing X and Y, except for the sign inversion (+/-) which is calculated below.
+        int Z = X ^ Y;
+
+        // Extract the axis (remove the sign), offset in the range 0 to 2.
+        int x = (X & 0x3) - 1;
+        int y = (Y & 0x3) - 1;
+        int z = (Z & 0x3) - 1;
+
+        // Compute the sign of Z (whether it needs to be inverted).
+        int axis_y = (z + 1) % 3;
+        int axis_z = (z + 2) % 3;
+        if (((x ^ axis_y) | (y ^ axis_z)) != 0) {
+            Z ^= 0x80;
+        }
+
+        boolean sx = (X >= 0x80);
+        boolean sy = (Y >= 0x80);
+        boolean sz = (Z >= 0x80);
+
+        for (int j = 0; j < 3; j++) {
+            int offset = j * 3;
+            for (int i = 0; i < 3; i++) {
+                if (x == i) outR[offset + i] = sx ? -inR[offset] : inR[offset];
+                if (y == i) outR[offset + i] = sy ? -inR[offset + 1] : inR[offset + 1];
+                if (z == i) outR[offset + i] = sz ? -inR[offset + 2] : inR[offset + 2];
+            }
+        }
+    }
+
+
+    /**
+     * Compute the device's orientation from a rotation matrix.
+     *
+     * @param R 3x3 rotation matrix
+     * @param values array to fill in with, in radians:
+     *               azimuth = values[0], pitch = values[1], roll = values[2]
+     */
+    public static void getOrientation(float[] R, float[] values) {
+        values[0] = (float)Math.atan2(R[1], R[4]);
+        values[1] = (float)Math.asin(-R[7]);
+        values[2] = (float)Math.atan2(-R[6], R[8]);
+    }
+}
@@ -0,0 +1,120 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Fixed-capacity buffer of rotation vector samples, used to process a burst of batched sensor
+ * events in one pass. Samples are copied into preallocated arrays, so adding and reading them
+ * does not allocate. A batch is not thread-safe.
+ */
+public final class RotationVectorBatch {
+
+    // Rotation vector events carry up to five values: the quaternion and an accuracy estimate.
+    public static final int MAX_VALUES = 5;
+
+    private final long[] timestamps;
+    private final float[] values;
+    private final int[] valueCounts;
+    private int size;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param capacity maximum number of samples the batch holds
+     */
+    public RotationVectorBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        timestamps = new long[capacity];
+        values = new float[capacity * MAX_VALUES];
+        valueCounts = new int[capacity];
+    }
+
+
+    /**
+     * Copy a sample into the batch.
+     *
+     * @param timestamp time of the sensor event in nanoseconds
+     * @param sample values of the sensor event. Values past {@link #MAX_VALUES} are ignored
+     * @return <code>true</code> if the sample was added;
+     *         <code>false</code> if the batch is full.
+     */
+    public boolean add(long timestamp, float[] sample) {
+        if (size == timestamps.length) {
+            return false;
+        }
+        int count = Math.min(sample.length, MAX_VALUES);
+        System.arraycopy(sample, 0, values, size * MAX_VALUES, count);
+        timestamps[size] = timestamp;
+        valueCounts[size] = count;
+        size++;
+        return true;
+    }
+
+
+    /**
+     * @return number of samples in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @return <code>true</code> if no more samples can be added
+     */
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+
+    /**
+     * @param index index of the sample, 0 being the oldest
+     * @return time of the sample in nanoseconds
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+
+    /**
+     * @param index index of the sample, 0 being the oldest
+     * @return number of values the sample has
+     */
+    public int getValueCount(int index) {
+        checkIndex(index);
+        return valueCounts[index];
+    }
+
+
+    /**
+     * Copy the values of a sample.
+     *
+     * @param index index of the sample, 0 being the oldest
+     * @param out array to copy the values into. Its length decides how many values are copied,
+     *            e.g. 4 for the quaternion only
+     * @return number of values the sample actually has
+     */
+    public int getValues(int index, float[] out) {
+        checkIndex(index);
+        System.arraycopy(values, index * MAX_VALUES, out, 0,
+                Math.min(out.length, valueCounts[index]));
+        return valueCounts[index];
+    }
+
+
+    /**
+     * Remove all samples.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+    }
+}
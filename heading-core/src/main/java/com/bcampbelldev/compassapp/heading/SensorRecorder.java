@@ -0,0 +1,166 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records timestamped sensor readings to a compact binary log that {@link SensorReplay} can play
+ * back, e.g. to capture what the rotation vector sensor did during a bad heading.
+ * <p>
+ * {@link #record(long, float[], int)} only copies the reading into a preallocated ring and never
+ * blocks, so it is safe to call from the sensor thread. A background writer thread moves the
+ * records to the file in bulk. If the writer falls behind far enough to fill the ring, readings
+ * are dropped and counted rather than slowing the sensor thread down.
+ * <p>
+ * File layout, little-endian: a header of {@link #MAGIC}, {@link #VERSION} and the record size,
+ * followed by fixed-size records of timestamp (long), accuracy (byte), value count (byte), two
+ * bytes of padding and {@link #MAX_VALUES} floats.
+ */
+public final class SensorRecorder {
+
+    static final int MAGIC = 0x52534D43;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int MAX_VALUES = RotationVectorBatch.MAX_VALUES;
+    static final int RECORD_SIZE = 8 + 1 + 1 + 2 + 4 * MAX_VALUES;
+
+    // How long the writer waits between bulk writes.
+    private static final long WRITE_INTERVAL_NANOS = 100_000_000L;
+
+    private final File file;
+    private final RecordRing ring;
+    private final Thread writer;
+    private volatile boolean running;
+    private volatile IOException error;
+
+
+    /**
+     * Class constructor. Nothing is written until {@link #start()} is called.
+     *
+     * @param file the log file, overwritten if it exists
+     * @param capacity number of readings the ring holds while the writer catches up
+     */
+    public SensorRecorder(File file, int capacity) {
+        this.file = file;
+        this.ring = new RecordRing(capacity, RECORD_SIZE);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SensorRecorder");
+    }
+
+
+    /**
+     * Start the writer thread. The file is created on the writer thread.
+     */
+    public void start() {
+        running = true;
+        writer.start();
+    }
+
+
+    /**
+     * Add a reading to the log. Never blocks.
+     *
+     * @param timestamp time of the sensor event in nanoseconds
+     * @param values values of the sensor event. Values past {@link #MAX_VALUES} are not recorded
+     * @param accuracy accuracy of the sensor event
+     * @return <code>true</code> if the reading was queued;
+     *         <code>false</code> if it was dropped because the writer is behind.
+     */
+    public boolean record(long timestamp, float[] values, int accuracy) {
+        int offset = ring.claim();
+        if (offset < 0) {
+            return false;
+        }
+        ByteBuffer buffer = ring.buffer();
+        int count = Math.min(values.length, MAX_VALUES);
+
+        buffer.putLong(offset, timestamp);
+        buffer.put(offset + 8, (byte)accuracy);
+        buffer.put(offset + 9, (byte)count);
+        buffer.putShort(offset + 10, (short)0);
+        for (int i = 0; i < MAX_VALUES; i++) {
+            buffer.putFloat(offset + 12 + 4 * i, i < count ? values[i] : 0f);
+        }
+
+        ring.publish();
+        return true;
+    }
+
+
+    /**
+     * Stop recording, write out the remaining readings and close the file. Blocks until the
+     * writer thread has finished.
+     *
+     * @throws IOException if writing the log failed at any point
+     */
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+
+    /**
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * @return number of readings dropped because the writer was behind
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+
+    private void writeLoop() {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            FileChannel channel = out.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short)RECORD_SIZE).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            while (running) {
+                ring.drainTo(channel);
+                LockSupport.parkNanos(WRITE_INTERVAL_NANOS);
+            }
+            ring.drainTo(channel);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a log written by {@link SensorRecorder}. The file is memory-mapped, so even long
+ * recordings are read without copying them onto the heap, and playback does not allocate. Runs
+ * on a plain JVM, e.g. to regression-test or benchmark the heading pipeline against field traces.
+ */
+public final class SensorReplay {
+
+    /**
+     * Receives the recorded readings during playback.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each reading, oldest first.
+         *
+         * @param timestamp time of the reading in nanoseconds, as recorded
+         * @param values values of the reading. The array is reused for the next reading
+         * @param accuracy accuracy of the reading
+         */
+        void onSample(long timestamp, float[] values, int accuracy);
+    }
+
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+
+    // Reused value arrays, one per value count, so each reading gets an array of the right length.
+    private final float[][] values = new float[SensorRecorder.MAX_VALUES + 1][];
+
+
+    /**
+     * Map a log file.
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be read or is not a sensor log
+     */
+    public SensorReplay(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < SensorRecorder.HEADER_SIZE
+                || buffer.getInt(0) != SensorRecorder.MAGIC) {
+            throw new IOException(file + " is not a sensor log");
+        }
+        if (buffer.getShort(4) != SensorRecorder.VERSION
+                || buffer.getShort(6) != SensorRecorder.RECORD_SIZE) {
+            throw new IOException(file + " has unsupported version " + buffer.getShort(4));
+        }
+
+        // A partly written last record is ignored.
+        size = (buffer.capacity() - SensorRecorder.HEADER_SIZE) / SensorRecorder.RECORD_SIZE;
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new float[i];
+        }
+    }
+
+
+    /**
+     * @return number of readings in the log
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @param index index of the reading, 0 being the oldest
+     * @return time of the reading in nanoseconds
+     */
+    public long getTimestamp(int index) {
+        return buffer.getLong(offset(index));
+    }
+
+
+    /**
+     * Play back the whole log on the calling thread.
+     *
+     * @param listener receives the readings
+     * @param speed playback speed relative to the original timing, e.g. 1 for real time or 10
+     *              for ten times faster. 0 plays the readings back as fast as possible
+     * @throws IOException if a reading is corrupt. The readings before it have been played
+     * @throws InterruptedException if the thread is interrupted while waiting for the next reading
+     */
+    public void play(Listener listener, float speed) throws IOException, InterruptedException {
+        if (size == 0) {
+            return;
+        }
+        long firstTimestamp = getTimestamp(0);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < size; i++) {
+            int offset = offset(i);
+            long timestamp = buffer.getLong(offset);
+
+            if (speed > 0) {
+                long due = start + (long)((timestamp - firstTimestamp) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000L, (int)(wait % 1_000_000L));
+                }
+            }
+
+            int accuracy = buffer.get(offset + 8);
+            int count = buffer.get(offset + 9);
+            if (count < 0 || count > SensorRecorder.MAX_VALUES) {
+                throw new IOException("Reading " + i + " has " + count + " values");
+            }
+            float[] sample = values[count];
+            for (int v = 0; v < count; v++) {
+                sample[v] = buffer.getFloat(offset + 12 + 4 * v);
+            }
+            listener.onSample(timestamp, sample, accuracy);
+        }
+    }
+
+
+    private int offset(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return SensorRecorder.HEADER_SIZE + index * SensorRecorder.RECORD_SIZE;
+    }
+}
@@ -0,0 +1,360 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps a compact history of headings, e.g. hours of a session for an audit, that
+ * {@link TrackLogReader} can query by time and export.
+ * <p>
+ * {@link #record(long, float, int)} only copies the heading into a preallocated ring and never
+ * blocks, so it is safe to call from the sensor thread. A background writer thread encodes the
+ * headings and flushes them to the file about once a second, or when {@link #sync()} asks for it.
+ * If the writer falls behind far enough to fill the ring, headings are dropped and counted rather
+ * than slowing the caller down.
+ * <p>
+ * File layout, little-endian: a header of {@link #MAGIC}, {@link #VERSION}, the block size (short)
+ * and the wall-clock time the session started in milliseconds since the epoch (long), with the
+ * same moment on the clock of the timestamps (long), followed by blocks of {@link #BLOCK_SIZE}
+ * bytes. A block starts with the timestamp of its first
+ * heading (long), its number of headings (int) and the bytes it uses, header included (int).
+ * Then come the headings as the differences from the one before of timestamp in nanoseconds,
+ * heading in hundredths of a degree, the shorter way round, and accuracy, each a zigzag-encoded
+ * varint. The first heading of a block is taken from its timestamp, 0&deg; and accuracy 0, so
+ * every block decodes on its own. A steady stream of headings takes about six bytes each.
+ */
+public final class TrackLog implements HeadingStream.Subscriber {
+
+    static final int MAGIC = 0x4B525443;
+    static final short VERSION = 2;
+    static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8;
+    static final int BLOCK_SIZE = 4096;
+    static final int BLOCK_HEADER_SIZE = 8 + 4 + 4;
+
+    // Hundredths of a degree in a full turn.
+    static final int FULL_TURN = 36_000;
+
+    // Timestamp (long), heading in hundredths of a degree (int) and accuracy (int) in the ring.
+    private static final int RAW_RECORD_SIZE = 8 + 4 + 4;
+
+    // Longest encoded heading: varints of a long and two ints.
+    private static final int MAX_RECORD_SIZE = 10 + 5 + 5;
+
+    // How long the writer waits between flushes.
+    private static final long FLUSH_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final File file;
+    private final long startMillis;
+    private final long startNanos;
+    private final RecordRing ring;
+    private final Thread writer;
+    private volatile boolean running;
+    private volatile IOException error;
+
+    // Syncs asked for, and the last one the writer has flushed for.
+    private final Object syncLock = new Object();
+    private long syncRequested;
+    private long syncDone;
+
+    // Only used on the writer thread: the block being filled and the last heading in it.
+    private final ByteBuffer block =
+            ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long blockIndex;
+    private int blockCount;
+    private boolean blockDirty;
+    private long lastTimestamp;
+    private int lastHeading;
+    private int lastAccuracy;
+
+
+    /**
+     * Class constructor. Nothing is written until {@link #start()} is called.
+     *
+     * @param file the log file, overwritten if it exists
+     * @param capacity number of headings the ring holds while the writer catches up
+     * @param startMillis wall-clock time the session started, in milliseconds since the epoch
+     * @param startNanos the same moment on the clock of the heading timestamps, in nanoseconds,
+     *                   so they can be turned into wall-clock times
+     */
+    public TrackLog(File file, int capacity, long startMillis, long startNanos) {
+        this.file = file;
+        this.startMillis = startMillis;
+        this.startNanos = startNanos;
+        this.ring = new RecordRing(capacity, RAW_RECORD_SIZE);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "TrackLog");
+    }
+
+
+    /**
+     * Start the writer thread. The file is created on the writer thread.
+     */
+    public void start() {
+        running = true;
+        writer.start();
+    }
+
+
+    /**
+     * Add a heading to the log. Never blocks.
+     *
+     * @param timestamp time of the heading in nanoseconds
+     * @param azimuth the heading in degrees, kept to a hundredth of a degree
+     * @param accuracy accuracy of the heading, e.g. a state of {@link MagneticAnomalyDetector}
+     * @return <code>true</code> if the heading was queued;
+     *         <code>false</code> if it was dropped because the writer is behind.
+     */
+    public boolean record(long timestamp, float azimuth, int accuracy) {
+        int offset = ring.claim();
+        if (offset < 0) {
+            return false;
+        }
+        int heading = Math.round(azimuth * 100) % FULL_TURN;
+        if (heading < 0) {
+            heading += FULL_TURN;
+        }
+
+        ByteBuffer buffer = ring.buffer();
+        buffer.putLong(offset, timestamp);
+        buffer.putInt(offset + 8, heading);
+        buffer.putInt(offset + 12, accuracy);
+        ring.publish();
+        return true;
+    }
+
+
+    /**
+     * Log a heading of a {@link HeadingStream}, with its magnetic state as the accuracy.
+     *
+     * @param sample the heading
+     */
+    @Override
+    public void onHeading(HeadingSample sample) {
+        record(sample.getTimestamp(), sample.getAzimuth(), sample.getMagneticState());
+    }
+
+
+    /**
+     * Write out the headings recorded so far without waiting for the next flush, e.g. before
+     * the log is read for an export. Blocks until they are written, so never call it on the
+     * thread that records.
+     *
+     * @throws IOException if writing the log failed at any point
+     * @throws InterruptedException if the thread is interrupted while waiting for the writer
+     */
+    public void sync() throws IOException, InterruptedException {
+        synchronized (syncLock) {
+            long request = ++syncRequested;
+            LockSupport.unpark(writer);
+            while (syncDone < request && writer.isAlive()) {
+                syncLock.wait();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+
+    /**
+     * Stop logging, write out the remaining headings and close the file. Blocks until the
+     * writer thread has finished.
+     *
+     * @throws IOException if writing the log failed at any point
+     */
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+
+    /**
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * @return number of headings dropped because the writer was behind
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+
+    private void writeLoop() {
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short)BLOCK_SIZE)
+                    .putLong(startMillis).putLong(startNanos).flip();
+            write(channel, header, 0);
+
+            while (running) {
+                long requested;
+                synchronized (syncLock) {
+                    requested = syncRequested;
+                }
+                flush(channel);
+                synchronized (syncLock) {
+                    syncDone = requested;
+                    syncLock.notifyAll();
+                }
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+            flush(channel);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            // Nothing more will be written, so no sync is left waiting.
+            synchronized (syncLock) {
+                syncDone = Long.MAX_VALUE;
+                syncLock.notifyAll();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Encode every queued heading and write the blocks they went into, including the one still
+     * being filled, which is written again at the next flush.
+     */
+    private void flush(FileChannel channel) throws IOException {
+        ByteBuffer raw = ring.buffer();
+        int offset;
+        while ((offset = ring.peek()) >= 0) {
+            long timestamp = raw.getLong(offset);
+            int heading = raw.getInt(offset + 8);
+            int accuracy = raw.getInt(offset + 12);
+            ring.release();
+
+            if (blockCount > 0 && block.position() + MAX_RECORD_SIZE > BLOCK_SIZE) {
+                writeBlock(channel);
+                blockIndex++;
+                blockCount = 0;
+            }
+            append(timestamp, heading, accuracy);
+        }
+        if (blockDirty) {
+            writeBlock(channel);
+        }
+    }
+
+
+    private void append(long timestamp, int heading, int accuracy) {
+        if (blockCount == 0) {
+            Arrays.fill(block.array(), (byte)0);
+            block.clear();
+            block.putLong(0, timestamp);
+            block.position(BLOCK_HEADER_SIZE);
+            lastTimestamp = timestamp;
+            lastHeading = 0;
+            lastAccuracy = 0;
+        }
+
+        int turn = heading - lastHeading;
+        if (turn >= FULL_TURN / 2) {
+            turn -= FULL_TURN;
+        } else if (turn < -FULL_TURN / 2) {
+            turn += FULL_TURN;
+        }
+        putVarint(block, zigzag(timestamp - lastTimestamp));
+        putVarint(block, zigzag(turn));
+        putVarint(block, zigzag(accuracy - lastAccuracy));
+        lastTimestamp = timestamp;
+        lastHeading = heading;
+        lastAccuracy = accuracy;
+        blockCount++;
+        blockDirty = true;
+    }
+
+
+    private void writeBlock(FileChannel channel) throws IOException {
+        long position = HEADER_SIZE + blockIndex * BLOCK_SIZE;
+
+        // The headings go down before the header that counts them, so a reader going through
+        // the block front to back while it is rewritten never counts headings not there yet.
+        ByteBuffer part = block.duplicate();
+        part.limit(BLOCK_SIZE).position(BLOCK_HEADER_SIZE);
+        write(channel, part, position + BLOCK_HEADER_SIZE);
+
+        block.putInt(8, blockCount);
+        block.putInt(12, block.position());
+        part.limit(BLOCK_HEADER_SIZE).position(0);
+        write(channel, part, position);
+        blockDirty = false;
+    }
+
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+
+    static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Varint longer than 64 bits");
+    }
+}
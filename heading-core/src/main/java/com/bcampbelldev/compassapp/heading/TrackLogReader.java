@@ -0,0 +1,293 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a log written by {@link TrackLog}, also while it is still being written: the headings
+ * flushed by the time the reader was opened can be read. The writer may be rewriting the last
+ * block meanwhile, so a last block that does not decode ends the log rather than failing the
+ * read; see {@link TrackLog#sync()} to have everything recorded so far flushed first.
+ * <p>
+ * Opening the log only reads the header of each block into an index of their first timestamps.
+ * A query by time looks up its first block in the index and reads just the blocks it spans, and
+ * the CSV export goes through the log a block at a time, so neither ever holds more than one
+ * block in memory however long the log is. Not thread-safe.
+ */
+public final class TrackLogReader implements Closeable {
+
+    /**
+     * Receives the headings of a query.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each heading, oldest first.
+         *
+         * @param timestamp time of the heading in nanoseconds
+         * @param azimuth the heading in degrees
+         * @param accuracy accuracy of the heading, as recorded
+         */
+        void onHeading(long timestamp, float azimuth, int accuracy);
+    }
+
+
+    private final RandomAccessFile in;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final ByteBuffer block;
+    private final long startMillis;
+    private final long startNanos;
+
+    // Index of the blocks: the timestamp of the first heading of each.
+    private final long[] firstTimestamps;
+    private final int blockCount;
+    private final long size;
+
+
+    /**
+     * Open a log file and index its blocks.
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be read or is not a track log
+     */
+    public TrackLogReader(File file) throws IOException {
+        in = new RandomAccessFile(file, "r");
+        channel = in.getChannel();
+        try {
+            ByteBuffer header =
+                    ByteBuffer.allocate(TrackLog.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < TrackLog.HEADER_SIZE) {
+                throw new IOException(file + " is not a track log");
+            }
+            read(header, 0);
+            if (header.getInt(0) != TrackLog.MAGIC) {
+                throw new IOException(file + " is not a track log");
+            }
+            if (header.getShort(4) != TrackLog.VERSION) {
+                throw new IOException(file + " has unsupported version " + header.getShort(4));
+            }
+            blockSize = header.getShort(6) & 0xFFFF;
+            if (blockSize < TrackLog.BLOCK_HEADER_SIZE) {
+                throw new IOException(file + " has invalid block size " + blockSize);
+            }
+            block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+            startMillis = header.getLong(8);
+            startNanos = header.getLong(16);
+
+            // A partly written last block is ignored.
+            int blocks = (int)((channel.size() - TrackLog.HEADER_SIZE) / blockSize);
+            firstTimestamps = new long[blocks];
+            ByteBuffer blockHeader = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            long total = 0;
+            for (int i = 0; i < blocks; i++) {
+                blockHeader.clear();
+                read(blockHeader, position(i));
+                firstTimestamps[i] = blockHeader.getLong(0);
+                total += Math.max(0, blockHeader.getInt(8));
+            }
+            blockCount = blocks;
+            size = total;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @return number of headings in the log
+     */
+    public long size() {
+        return size;
+    }
+
+
+    /**
+     * @return number of blocks in the log
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+
+    /**
+     * @return wall-clock time the session started, in milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+
+    /**
+     * @param timestamp time of a heading in nanoseconds
+     * @return the time as wall-clock time, in milliseconds since the epoch
+     */
+    public long toWallClockMillis(long timestamp) {
+        return startMillis + (timestamp - startNanos) / 1_000_000L;
+    }
+
+
+    /**
+     * Read the headings of a span of time, on the calling thread. The timestamps are expected to
+     * increase through the log, as sensor timestamps do.
+     *
+     * @param from time of the first heading wanted in nanoseconds, inclusive
+     * @param to end of the span in nanoseconds, exclusive
+     * @param visitor receives the headings
+     * @throws IOException if the log cannot be read or is corrupt
+     */
+    public void query(long from, long to, Visitor visitor) throws IOException {
+        for (int i = findBlock(from); i < blockCount && firstTimestamps[i] < to; i++) {
+            if (!readBlock(i, from, to, visitor)) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Write the whole log as CSV lines of timestamp in nanoseconds, wall-clock time in
+     * milliseconds since the epoch, heading in degrees and accuracy, after a line of column
+     * names. The writer is not closed.
+     *
+     * @param out receives the CSV, preferably buffered
+     * @throws IOException if the log cannot be read or the CSV cannot be written
+     */
+    public void exportCsv(Writer out) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        Visitor csv = new Visitor() {
+            @Override
+            public void onHeading(long timestamp, float azimuth, int accuracy) {
+                int hundredths = Math.round(azimuth * 100);
+                lines.append(timestamp).append(',')
+                        .append(toWallClockMillis(timestamp)).append(',')
+                        .append(hundredths / 100).append('.')
+                        .append(hundredths / 10 % 10).append(hundredths % 10).append(',')
+                        .append(accuracy).append('\n');
+            }
+        };
+
+        out.write("timestamp_ns,wall_clock_ms,heading_deg,accuracy\n");
+        for (int i = 0; i < blockCount; i++) {
+            boolean more = readBlock(i, Long.MIN_VALUE, Long.MAX_VALUE, csv);
+            out.write(lines.toString());
+            lines.setLength(0);
+            if (!more) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Close the log file.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+
+    /**
+     * @return index of the last block starting at or before the time, or 0 if there is none
+     */
+    private int findBlock(long time) {
+        int low = 0;
+        int high = blockCount - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstTimestamps[mid] <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Decode a block, telling the visitor about the headings in the span.
+     *
+     * @return <code>true</code> if the span may go on into the next block;
+     *         <code>false</code> if a heading at or past its end was found, or the block is the
+     *         last one and does not decode.
+     */
+    private boolean readBlock(int index, long from, long to, Visitor visitor) throws IOException {
+        block.clear();
+        read(block, position(index));
+        int count = block.getInt(8);
+        int used = block.getInt(12);
+        if (count < 0 || used < TrackLog.BLOCK_HEADER_SIZE || used > blockSize) {
+            return corrupt(index, null);
+        }
+        block.position(TrackLog.BLOCK_HEADER_SIZE).limit(used);
+
+        long timestamp = block.getLong(0);
+        int heading = 0;
+        int accuracy = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                timestamp += TrackLog.unzigzag(TrackLog.getVarint(block));
+                heading += (int)TrackLog.unzigzag(TrackLog.getVarint(block));
+                if (heading < 0) {
+                    heading += TrackLog.FULL_TURN;
+                } else if (heading >= TrackLog.FULL_TURN) {
+                    heading -= TrackLog.FULL_TURN;
+                }
+                accuracy += (int)TrackLog.unzigzag(TrackLog.getVarint(block));
+
+                if (timestamp >= to) {
+                    return false;
+                }
+                if (timestamp >= from) {
+                    visitor.onHeading(timestamp, heading / 100f, accuracy);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalStateException e) {
+            return corrupt(index, e);
+        }
+        return true;
+    }
+
+
+    /**
+     * Only the last block can be caught halfway through being rewritten, so a bad one ends the
+     * log there. Any other is corrupt.
+     */
+    private boolean corrupt(int index, Exception cause) throws IOException {
+        if (index == blockCount - 1) {
+            return false;
+        }
+        throw new IOException("Block " + index + " is corrupt", cause);
+    }
+
+
+    private long position(int index) {
+        return TrackLog.HEADER_SIZE + (long)index * blockSize;
+    }
+
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+}
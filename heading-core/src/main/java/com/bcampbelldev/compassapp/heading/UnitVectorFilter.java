@@ -0,0 +1,78 @@
+package com.bcampbelldev.compassapp.heading;
+
+/**
+ * Base class of the heading filters that smooth the azimuth as a unit vector
+ * (cos&nbsp;azimuth, sin&nbsp;azimuth) rather than as an angle. Averaging the vector instead of the
+ * angle means headings either side of north, e.g. 359 and 1 degrees, average to 0 rather than
+ * 180.
+ */
+abstract class UnitVectorFilter implements HeadingFilter {
+
+    // Filtered unit vector. Subclasses update it in step(); it does not need to stay normalized.
+    protected float x;
+    protected float y;
+
+    private boolean initialized;
+    private long lastTimestamp;
+    private float output;
+
+
+    @Override
+    public final float filter(long timestamp, float azimuth) {
+        double radians = Math.toRadians(azimuth);
+        float measuredX = (float)Math.cos(radians);
+        float measuredY = (float)Math.sin(radians);
+
+        if (!initialized) {
+            initialized = true;
+            lastTimestamp = timestamp;
+            x = measuredX;
+            y = measuredY;
+            start(measuredX, measuredY);
+            output = azimuth;
+            return output;
+        }
+
+        // Samples that are not newer than the last one carry no time step to filter over.
+        if (timestamp <= lastTimestamp) {
+            return output;
+        }
+        float dt = (timestamp - lastTimestamp) * 1e-9f;
+        lastTimestamp = timestamp;
+
+        step(measuredX, measuredY, dt);
+
+        float degrees = (float)Math.toDegrees(Math.atan2(y, x));
+        if (degrees < 0) {
+            degrees += 360;
+        }
+        output = degrees >= 360 ? 0 : degrees;
+        return output;
+    }
+
+
+    @Override
+    public final void reset() {
+        initialized = false;
+    }
+
+
+    /**
+     * Called with the first sample after construction or a reset. {@link #x} and {@link #y}
+     * already hold the sample.
+     *
+     * @param measuredX cosine of the azimuth
+     * @param measuredY sine of the azimuth
+     */
+    protected void start(float measuredX, float measuredY) {}
+
+
+    /**
+     * Move the filtered vector {@link #x}, {@link #y} towards a new measurement.
+     *
+     * @param measuredX cosine of the measured azimuth
+     * @param measuredY sine of the measured azimuth
+     * @param dt time since the previous sample in seconds, always positive
+     */
+    protected abstract void step(float measuredX, float measuredY, float dt);
+}
@@ -0,0 +1,385 @@
+package com.bcampbelldev.compassapp.heading;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial index over a large set of named waypoints, answering "which N waypoints are closest to
+ * here" without looking at every waypoint.
+ * <p>
+ * Waypoints are stored as points on the unit sphere in an implicit k-d tree: the arrays are
+ * reordered so that every range has its splitting point in the middle, which needs no node
+ * objects at all. Straight-line distance through the sphere grows with great-circle distance,
+ * so the nearest points in 3D are the nearest on the globe, with no special cases at the poles
+ * or the antimeridian. The index is immutable and can be shared between threads.
+ */
+public final class WaypointIndex {
+
+    // Mean radius of the Earth in meters.
+    static final double EARTH_RADIUS = 6_371_000.0;
+
+    private final String[] names;
+    private final float[] latitudes;
+    private final float[] longitudes;
+
+    // Unit sphere coordinates, in the same order as the names.
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+
+    // Splitting axis of the node in the middle of each range, 0-2.
+    private final byte[] axes;
+
+
+    /**
+     * Build an index. The arrays are copied.
+     *
+     * @param names names of the waypoints
+     * @param latitudes latitudes of the waypoints in degrees
+     * @param longitudes longitudes of the waypoints in degrees
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public WaypointIndex(String[] names, float[] latitudes, float[] longitudes) {
+        int n = names.length;
+        if (latitudes.length != n || longitudes.length != n) {
+            throw new IllegalArgumentException("Waypoint arrays differ in length");
+        }
+        this.names = names.clone();
+        this.latitudes = latitudes.clone();
+        this.longitudes = longitudes.clone();
+        this.x = new float[n];
+        this.y = new float[n];
+        this.z = new float[n];
+        this.axes = new byte[n];
+
+        for (int i = 0; i < n; i++) {
+            double lat = Math.toRadians(latitudes[i]);
+            double lon = Math.toRadians(longitudes[i]);
+            x[i] = (float)(Math.cos(lat) * Math.cos(lon));
+            y[i] = (float)(Math.cos(lat) * Math.sin(lon));
+            z[i] = (float)Math.sin(lat);
+        }
+        build(0, n);
+    }
+
+
+    /**
+     * Read waypoints from CSV lines of <code>name,latitude,longitude</code>. Names may contain
+     * commas. Blank lines, lines starting with <code>#</code> and a header line are skipped.
+     *
+     * @param reader source of the lines. Not closed
+     * @return the index
+     * @throws IOException if reading fails or a line cannot be parsed
+     */
+    public static WaypointIndex read(Reader reader) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader
+                ? (BufferedReader)reader : new BufferedReader(reader);
+        List<String> names = new ArrayList<>();
+        float[] latitudes = new float[1024];
+        float[] longitudes = new float[1024];
+
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int lonComma = line.lastIndexOf(',');
+            int latComma = lonComma > 0 ? line.lastIndexOf(',', lonComma - 1) : -1;
+            float lat;
+            float lon;
+            try {
+                if (latComma < 0) {
+                    throw new NumberFormatException();
+                }
+                lat = Float.parseFloat(line.substring(latComma + 1, lonComma).trim());
+                lon = Float.parseFloat(line.substring(lonComma + 1).trim());
+            } catch (NumberFormatException e) {
+                if (names.isEmpty()) {
+                    // A header line.
+                    continue;
+                }
+                throw new IOException("Invalid waypoint on line " + lineNumber + ": " + line);
+            }
+            if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+                throw new IOException("Waypoint out of range on line " + lineNumber + ": " + line);
+            }
+
+            int i = names.size();
+            if (i == latitudes.length) {
+                latitudes = Arrays.copyOf(latitudes, i * 2);
+                longitudes = Arrays.copyOf(longitudes, i * 2);
+            }
+            names.add(line.substring(0, latComma).trim());
+            latitudes[i] = lat;
+            longitudes[i] = lon;
+        }
+
+        int n = names.size();
+        return new WaypointIndex(names.toArray(new String[n]),
+                Arrays.copyOf(latitudes, n), Arrays.copyOf(longitudes, n));
+    }
+
+
+    /**
+     * @return number of waypoints
+     */
+    public int size() {
+        return names.length;
+    }
+
+
+    /**
+     * @param index index of a waypoint, as returned by {@link #findNearest}
+     * @return name of the waypoint
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+
+    /**
+     * @param index index of a waypoint
+     * @return latitude of the waypoint in degrees
+     */
+    public float getLatitude(int index) {
+        return latitudes[index];
+    }
+
+
+    /**
+     * @param index index of a waypoint
+     * @return longitude of the waypoint in degrees
+     */
+    public float getLongitude(int index) {
+        return longitudes[index];
+    }
+
+
+    /**
+     * Find the waypoints nearest to a location. Does not allocate.
+     *
+     * @param latitude latitude of the location in degrees
+     * @param longitude longitude of the location in degrees
+     * @param outIndices receives the indices of the nearest waypoints, nearest first. Its length
+     *                   is the number of waypoints wanted
+     * @param outDistances receives the great-circle distances to them in meters. At least as long
+     *                     as <code>outIndices</code>
+     * @return number of waypoints found, less than asked for if the index is smaller
+     */
+    public int findNearest(double latitude, double longitude, int[] outIndices,
+                           float[] outDistances) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        float qx = (float)(Math.cos(lat) * Math.cos(lon));
+        float qy = (float)(Math.cos(lat) * Math.sin(lon));
+        float qz = (float)Math.sin(lat);
+
+        // outDistances holds squared chord lengths while searching, kept sorted ascending.
+        int found = search(0, names.length, qx, qy, qz, outIndices, outDistances, 0);
+
+        for (int i = 0; i < found; i++) {
+            double chord = Math.sqrt(outDistances[i]);
+            outDistances[i] = (float)(2 * EARTH_RADIUS * Math.asin(Math.min(1.0, chord / 2)));
+        }
+        return found;
+    }
+
+
+    /**
+     * Find the waypoints within a distance of a location, in no particular order. Does not
+     * allocate.
+     *
+     * @param latitude latitude of the location in degrees
+     * @param longitude longitude of the location in degrees
+     * @param radius great-circle distance in meters
+     * @param outIndices receives the indices of the waypoints found. Its length is the most
+     *                   waypoints returned; any beyond that are left out
+     * @return number of waypoints found
+     */
+    public int findWithin(double latitude, double longitude, float radius, int[] outIndices) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        float qx = (float)(Math.cos(lat) * Math.cos(lon));
+        float qy = (float)(Math.cos(lat) * Math.sin(lon));
+        float qz = (float)Math.sin(lat);
+
+        double angle = Math.min(Math.PI, radius / EARTH_RADIUS);
+        float chord = (float)(2 * Math.sin(angle / 2));
+        return searchWithin(0, names.length, qx, qy, qz, chord * chord, outIndices, 0);
+    }
+
+
+    private int searchWithin(int lo, int hi, float qx, float qy, float qz, float limit,
+                             int[] indices, int found) {
+        if (lo >= hi || found == indices.length) {
+            return found;
+        }
+        int mid = (lo + hi) >>> 1;
+
+        float dx = x[mid] - qx;
+        float dy = y[mid] - qy;
+        float dz = z[mid] - qz;
+        if (dx * dx + dy * dy + dz * dz <= limit) {
+            indices[found++] = mid;
+        }
+
+        float diff = coordinate(axes[mid], mid) - (axes[mid] == 0 ? qx : axes[mid] == 1 ? qy : qz);
+        if (diff > 0 || diff * diff <= limit) {
+            found = searchWithin(lo, mid, qx, qy, qz, limit, indices, found);
+        }
+        if (diff <= 0 || diff * diff <= limit) {
+            found = searchWithin(mid + 1, hi, qx, qy, qz, limit, indices, found);
+        }
+        return found;
+    }
+
+
+    private int search(int lo, int hi, float qx, float qy, float qz, int[] indices,
+                       float[] distances, int found) {
+        if (lo >= hi) {
+            return found;
+        }
+        int mid = (lo + hi) >>> 1;
+
+        float dx = x[mid] - qx;
+        float dy = y[mid] - qy;
+        float dz = z[mid] - qz;
+        found = offer(mid, dx * dx + dy * dy + dz * dz, indices, distances, found);
+
+        float diff = coordinate(axes[mid], mid) - (axes[mid] == 0 ? qx : axes[mid] == 1 ? qy : qz);
+        boolean queryOnLeft = diff > 0;
+
+        found = queryOnLeft
+                ? search(lo, mid, qx, qy, qz, indices, distances, found)
+                : search(mid + 1, hi, qx, qy, qz, indices, distances, found);
+
+        // The other side can only hold closer points if the splitting plane is closer than the
+        // current worst result.
+        if (found < indices.length || diff * diff < distances[found - 1]) {
+            found = queryOnLeft
+                    ? search(mid + 1, hi, qx, qy, qz, indices, distances, found)
+                    : search(lo, mid, qx, qy, qz, indices, distances, found);
+        }
+        return found;
+    }
+
+
+    /**
+     * Insert a candidate into the sorted results if it is closer than the worst of them.
+     */
+    private static int offer(int index, float distance, int[] indices, float[] distances,
+                             int found) {
+        int capacity = indices.length;
+        if (found == capacity && distance >= distances[found - 1]) {
+            return found;
+        }
+        int i = found < capacity ? found++ : capacity - 1;
+        while (i > 0 && distances[i - 1] > distance) {
+            indices[i] = indices[i - 1];
+            distances[i] = distances[i - 1];
+            i--;
+        }
+        indices[i] = index;
+        distances[i] = distance;
+        return found;
+    }
+
+
+    /**
+     * Arrange a range so its middle element splits it along the axis of widest spread, then
+     * arrange both halves the same way.
+     */
+    private void build(int lo, int hi) {
+        if (hi - lo <= 0) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int axis = widestAxis(lo, hi);
+        select(lo, hi - 1, mid, axis);
+        axes[mid] = (byte)axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+
+    private int widestAxis(int lo, int hi) {
+        int widest = 0;
+        float widestSpread = -1f;
+        for (int axis = 0; axis < 3; axis++) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = lo; i < hi; i++) {
+                float c = coordinate(axis, i);
+                min = Math.min(min, c);
+                max = Math.max(max, c);
+            }
+            if (max - min > widestSpread) {
+                widest = axis;
+                widestSpread = max - min;
+            }
+        }
+        return widest;
+    }
+
+
+    /**
+     * Quickselect: reorder the range so the element at <code>k</code> is where it would be if the
+     * range were sorted along an axis, with smaller elements before it and larger ones after.
+     */
+    private void select(int left, int right, int k, int axis) {
+        while (right > left) {
+            float pivot = coordinate(axis, (left + right) >>> 1);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate(axis, i) < pivot) {
+                    i++;
+                }
+                while (coordinate(axis, j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+
+    private float coordinate(int axis, int i) {
+        return axis == 0 ? x[i] : axis == 1 ? y[i] : z[i];
+    }
+
+
+    private void swap(int i, int j) {
+        String name = names[i];
+        names[i] = names[j];
+        names[j] = name;
+        swap(latitudes, i, j);
+        swap(longitudes, i, j);
+        swap(x, i, j);
+        swap(y, i, j);
+        swap(z, i, j);
+    }
+
+
+    private static void swap(float[] a, int i, int j) {
+        float t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
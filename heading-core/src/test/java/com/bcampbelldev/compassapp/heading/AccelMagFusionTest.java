@@ -0,0 +1,98 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the accelerometer and magnetometer fusion recovers a known attitude, waits for
+ * both inputs, and smooths the device's own acceleration.
+ */
+public class AccelMagFusionTest {
+
+    // Gravity in m/s^2, and a field of 48 uT dipping 60 degrees towards north.
+    private static final float[] WORLD_UP = {0, 0, 9.81f};
+    private static final float[] WORLD_FIELD = {0, 24f, -41.57f};
+
+
+    // World vector in device coordinates, i.e. multiplied by the transpose of R.
+    private static float[] toDevice(float[] r, float[] world) {
+        float[] device = new float[3];
+        for (int i = 0; i < 3; i++) {
+            device[i] = r[i] * world[0] + r[3 + i] * world[1] + r[6 + i] * world[2];
+        }
+        return device;
+    }
+
+
+    @Test
+    public void recoversTheAttitudeOfTheDevice() {
+        Random random = new Random(7);
+        AccelMagFusion fusion = new AccelMagFusion();
+        float[] expected = new float[9];
+        float[] actual = new float[9];
+        float[] rotationVector = new float[4];
+
+        for (int n = 0; n < 100; n++) {
+            // A random attitude, as a unit quaternion with a non-negative scalar part.
+            double[] q = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+                    random.nextGaussian()};
+            double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+            float sign = q[3] < 0 ? -1 : 1;
+            float[] quaternion = new float[4];
+            for (int i = 0; i < 4; i++) {
+                quaternion[i] = (float)(sign * q[i] / norm);
+            }
+            RotationMath.getRotationMatrixFromVector(expected, quaternion);
+
+            fusion.reset();
+            fusion.updateAccelerometer(n, toDevice(expected, WORLD_UP));
+            fusion.updateMagneticField(n, toDevice(expected, WORLD_FIELD));
+            assertTrue(fusion.getRotationVector(rotationVector));
+            assertEquals(quaternion[3], rotationVector[3], 1e-4f);
+
+            RotationMath.getRotationMatrixFromVector(actual, rotationVector);
+            assertArrayEquals(expected, actual, 1e-4f);
+        }
+    }
+
+
+    @Test
+    public void needsBothInputsAndAHorizontalField() {
+        AccelMagFusion fusion = new AccelMagFusion();
+        float[] rotationVector = new float[4];
+        assertFalse(fusion.getRotationVector(rotationVector));
+
+        fusion.updateAccelerometer(1, WORLD_UP);
+        assertFalse(fusion.getRotationVector(rotationVector));
+
+        // A field straight down, as at a magnetic pole.
+        fusion.updateMagneticField(1, new float[] {0, 0, -48f});
+        assertFalse(fusion.getRotationVector(rotationVector));
+
+        // Lying flat facing north is no rotation at all.
+        fusion.reset();
+        fusion.updateAccelerometer(1, WORLD_UP);
+        fusion.updateMagneticField(1, WORLD_FIELD);
+        assertTrue(fusion.getRotationVector(rotationVector));
+        assertArrayEquals(new float[] {0, 0, 0, 1}, rotationVector, 1e-6f);
+    }
+
+
+    @Test
+    public void smoothesTheDevicesOwnAcceleration() {
+        AccelMagFusion fusion = new AccelMagFusion();
+        float[] rotationVector = new float[4];
+        fusion.updateAccelerometer(0, WORLD_UP);
+        fusion.updateMagneticField(0, WORLD_FIELD);
+
+        // A 10 ms jolt sideways barely tilts the attitude.
+        fusion.updateAccelerometer(10_000_000L, new float[] {5f, 0, 9.81f});
+        assertTrue(fusion.getRotationVector(rotationVector));
+        double tilt = Math.toDegrees(2 * Math.asin(Math.hypot(rotationVector[0],
+                rotationVector[1])));
+        assertTrue("Tilt " + tilt, tilt < 3);
+    }
+}
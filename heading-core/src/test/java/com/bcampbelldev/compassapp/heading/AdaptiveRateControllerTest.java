@@ -0,0 +1,111 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks when the controller slows the sensor down once the device is still and speeds it up
+ * again on motion, including the hysteresis and the settle time.
+ */
+public class AdaptiveRateControllerTest {
+
+    private static final long PERIOD_NANOS = 10_000_000L;
+
+    private final AdaptiveRateController controller = new AdaptiveRateController(
+            new AdaptiveRateController.Config()
+                    .setFastPeriodUs(0)
+                    .setSlowPeriodUs(50_000)
+                    .setThresholds(2f, 8f)
+                    .setSettleNanos(1_000_000_000L)
+                    .setSmoothingNanos(100_000_000L));
+
+    private long timestamp;
+    private float azimuth;
+
+
+    // Feed samples turning at a steady rate; returns how many switched the period.
+    private int turn(float degreesPerSecond, int samples) {
+        int changes = 0;
+        for (int i = 0; i < samples; i++) {
+            timestamp += PERIOD_NANOS;
+            azimuth = (azimuth + degreesPerSecond * PERIOD_NANOS / 1e9f + 360f) % 360f;
+            if (controller.update(timestamp, azimuth)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+
+    @Test
+    public void slowsDownOnlyAfterTheSettleTime() {
+        assertEquals(0, controller.getSamplingPeriodUs());
+
+        // 0.9 s still is not long enough, the settle time is 1 s.
+        assertEquals(0, turn(0, 90));
+        assertFalse(controller.isStill());
+
+        assertEquals(1, turn(0, 20));
+        assertTrue(controller.isStill());
+        assertEquals(50_000, controller.getSamplingPeriodUs());
+    }
+
+
+    @Test
+    public void turningBelowTheStillThresholdCountsAsStill() {
+        assertEquals(1, turn(1f, 150));
+        assertTrue(controller.isStill());
+        assertEquals(1f, controller.getDegreesPerSecond(), 0.1f);
+    }
+
+
+    @Test
+    public void speedsUpOnTheFirstSampleThatShowsMotion() {
+        turn(0, 150);
+        assertTrue(controller.isStill());
+
+        // Between the thresholds: the hysteresis keeps the slow period.
+        assertEquals(0, turn(5f, 50));
+        assertTrue(controller.isStill());
+
+        // Above the moving threshold the very first sample switches back.
+        timestamp += PERIOD_NANOS;
+        azimuth += 0.5f;
+        assertTrue(controller.update(timestamp, azimuth));
+        assertFalse(controller.isStill());
+        assertEquals(0, controller.getSamplingPeriodUs());
+    }
+
+
+    @Test
+    public void settleTimeStartsOverWhenMotionResumes() {
+        turn(0, 80);
+        turn(30f, 10);
+
+        // The smoothed rate takes about 0.3 s to fall below the still threshold, then the
+        // settle time runs in full.
+        assertEquals(0, turn(0, 120));
+        assertFalse(controller.isStill());
+        assertEquals(1, turn(0, 30));
+    }
+
+
+    @Test
+    public void handlesTurningAcrossNorth() {
+        azimuth = 359.5f;
+        assertEquals(1, turn(1f, 150));
+        assertTrue(controller.isStill());
+        assertTrue(controller.getDegreesPerSecond() < 2f);
+
+        controller.reset();
+        assertFalse(controller.isStill());
+        assertEquals(0, controller.getDegreesPerSecond(), 0f);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAMovingThresholdBelowTheStillThreshold() {
+        new AdaptiveRateController.Config().setThresholds(5f, 2f);
+    }
+}
@@ -0,0 +1,94 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks interpolating the declination grid, also across the antimeridian, its round trip
+ * through a stream, and the engine adding the declination.
+ */
+public class DeclinationGridTest {
+
+    // Varies linearly in both directions between grid points, so interpolation is exact.
+    private static final DeclinationGrid.Model PLANE = new DeclinationGrid.Model() {
+        @Override
+        public float getDeclination(float latitude, float longitude) {
+            return latitude / 10f + longitude / 20f;
+        }
+    };
+
+
+    @Test
+    public void interpolatesBetweenGridPoints() {
+        DeclinationGrid grid = DeclinationGrid.generate(PLANE, 5);
+
+        assertEquals(0f, grid.getDeclination(0, 0), 0.01f);
+        assertEquals(PLANE.getDeclination(47.3f, 8.5f), grid.getDeclination(47.3f, 8.5f), 0.01f);
+        assertEquals(PLANE.getDeclination(-33.9f, 151.2f),
+                grid.getDeclination(-33.9f, 151.2f), 0.01f);
+        assertEquals(PLANE.getDeclination(90f, 0f), grid.getDeclination(90f, 0f), 0.01f);
+    }
+
+
+    @Test
+    public void longitudeWrapsAroundTheAntimeridian() {
+        DeclinationGrid grid = DeclinationGrid.generate(new DeclinationGrid.Model() {
+            @Override
+            public float getDeclination(float latitude, float longitude) {
+                return longitude == 175 ? 10f : 0f;
+            }
+        }, 5);
+
+        // Halfway between 175 E, at 10 degrees, and 180, which is the -180 column at 0 degrees.
+        assertEquals(5f, grid.getDeclination(0, 177.5f), 0.01f);
+        assertEquals(grid.getDeclination(0, 177.5f), grid.getDeclination(0, -182.5f), 0.01f);
+        assertEquals(0f, grid.getDeclination(0, 180f), 0.01f);
+    }
+
+
+    @Test
+    public void interpolatesTheShortWayAcross180Degrees() {
+        DeclinationGrid grid = DeclinationGrid.generate(new DeclinationGrid.Model() {
+            @Override
+            public float getDeclination(float latitude, float longitude) {
+                return longitude == 0 ? 170f : -170f;
+            }
+        }, 5);
+
+        assertEquals(180f, Math.abs(grid.getDeclination(0, 2.5f)), 0.01f);
+    }
+
+
+    @Test
+    public void roundTripsThroughAStream() throws IOException {
+        DeclinationGrid grid = DeclinationGrid.generate(PLANE, 10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        grid.write(out);
+
+        DeclinationGrid read = DeclinationGrid.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(10, read.getStep());
+        assertEquals(grid.getDeclination(12.3f, -45.6f), read.getDeclination(12.3f, -45.6f), 0f);
+    }
+
+
+    @Test
+    public void engineAddsTheDeclination() {
+        HeadingEngine engine = new HeadingEngine(
+                RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        float[] north = {0, 0, 0, 1};
+
+        engine.setDeclination(-10f);
+        engine.update(1, north);
+        assertEquals(350f, engine.getAzimuth(), 0.01f);
+
+        engine.setDeclination(10f);
+        engine.update(2, north);
+        assertEquals(10f, engine.getAzimuth(), 0.01f);
+        assertEquals(10, engine.getHeading());
+    }
+}
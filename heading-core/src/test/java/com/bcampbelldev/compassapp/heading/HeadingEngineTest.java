@@ -0,0 +1,212 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static com.bcampbelldev.compassapp.heading.RotationMath.AXIS_X;
+import static com.bcampbelldev.compassapp.heading.RotationMath.AXIS_Y;
+import static com.bcampbelldev.compassapp.heading.RotationMath.AXIS_Z;
+import static org.junit.Assert.*;
+
+/**
+ * Checks azimuths and axis remapping for known orientations, the declination samples carry,
+ * and the compass point range maps.
+ */
+public class HeadingEngineTest {
+
+    // Rotation vector for a rotation of the given angle around a device axis.
+    private static float[] rotation(float degrees, float x, float y, float z) {
+        double half = Math.toRadians(degrees) / 2;
+        float s = (float)(Math.sin(half) / Math.sqrt(x * x + y * y + z * z));
+        return new float[] {x * s, y * s, z * s, (float)Math.cos(half)};
+    }
+
+
+    @Test
+    public void flatDeviceFacingNorth() {
+        HeadingEngine engine = new HeadingEngine(AXIS_X, AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        engine.update(0, new float[] {0, 0, 0, 1});
+
+        assertEquals(0f, engine.getAzimuth(), 0.01f);
+        assertEquals(0, engine.getHeading());
+        assertEquals("N", engine.getCompassPoint());
+    }
+
+
+    @Test
+    public void flatDeviceTurnedAroundVerticalAxis() {
+        HeadingEngine engine = new HeadingEngine(AXIS_X, AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+
+        // Turning the device counter-clockwise moves the heading west.
+        engine.update(0, rotation(90, 0, 0, 1));
+        assertEquals(270f, engine.getAzimuth(), 0.01f);
+        assertEquals("W", engine.getCompassPoint());
+
+        engine.update(0, rotation(-42.5f, 0, 0, 1));
+        assertEquals(42.5f, engine.getAzimuth(), 0.01f);
+        assertEquals(42, engine.getHeading());
+        assertEquals("NE", engine.getCompassPoint());
+
+        engine.update(0, rotation(3, 0, 0, 1));
+        assertEquals(357f, engine.getAzimuth(), 0.01f);
+        assertEquals("N", engine.getCompassPoint());
+    }
+
+
+    @Test
+    public void threeComponentVectorMatchesQuaternion() {
+        HeadingEngine engine = new HeadingEngine(AXIS_X, AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        float[] quaternion = rotation(-130, 0.2f, 0.1f, 0.97f);
+        float[] vector = {quaternion[0], quaternion[1], quaternion[2]};
+
+        engine.update(0, quaternion);
+        float expected = engine.getAzimuth();
+        engine.update(0, vector);
+
+        assertEquals(expected, engine.getAzimuth(), 0.01f);
+    }
+
+
+    @Test
+    public void uprightDeviceUsesRemappedAxes() {
+        HeadingEngine engine = new HeadingEngine(AXIS_X, AXIS_Z, CompassPoints.THIRTY_TWO_POINT);
+
+        // Tilt the device up so that the screen faces the user and the camera faces north, then
+        // turn it to face east.
+        float s = (float)Math.sin(Math.PI / 4);
+        engine.update(0, new float[] {s, 0, 0, s});
+        assertEquals("N", engine.getCompassPoint());
+
+        float[] east = multiply(rotation(-90, 0, 0, 1), new float[] {s, 0, 0, s});
+        engine.update(0, east);
+        assertEquals(90f, engine.getAzimuth(), 0.01f);
+        assertEquals("E", engine.getCompassPoint());
+    }
+
+
+    @Test
+    public void remapMatchesSensorManagerConvention() {
+        float[] in = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        float[] out = new float[9];
+
+        RotationMath.remapCoordinateSystem(in, AXIS_X, AXIS_Z, out);
+
+        assertArrayEquals(new float[] {1, -3, 2, 4, -6, 5, 7, -9, 8}, out, 0f);
+    }
+
+
+    @Test
+    public void samplesCarryTheDeclinationOfTheirAzimuth() {
+        HeadingEngine engine = new HeadingEngine(AXIS_X, AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        engine.setDeclination(-12.5f);
+        engine.update(0, rotation(-30, 0, 0, 1));
+
+        HeadingSample sample = new HeadingSample();
+        sample.set(engine);
+        assertEquals(17.5f, sample.getAzimuth(), 0.01f);
+        assertEquals(-12.5f, sample.getDeclination(), 0f);
+        // Subtracting it gives the magnetic heading the rotation matrix is relative to.
+        assertEquals(30f, sample.getAzimuth() - sample.getDeclination(), 0.01f);
+
+        HeadingSample copy = new HeadingSample();
+        copy.set(sample);
+        assertEquals(-12.5f, copy.getDeclination(), 0f);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRemap() {
+        new HeadingEngine(AXIS_X, AXIS_X, CompassPoints.THIRTY_TWO_POINT);
+    }
+
+
+    @Test
+    public void rangeMapCoversWholeCircle() {
+        for (int degree = 0; degree < 360; degree++) {
+            assertNotNull(CompassPoints.THIRTY_TWO_POINT.getValueForKey(degree));
+        }
+        assertEquals("N", CompassPoints.THIRTY_TWO_POINT.getValueForKey(359));
+        assertNull(CompassPoints.THIRTY_TWO_POINT.getValueForKey(360));
+    }
+
+
+    @Test
+    public void thirtyTwoPointSectorsAreElevenAndAQuarterDegrees() {
+        RangeMap map = CompassPoints.THIRTY_TWO_POINT;
+        assertEquals("N", map.getValueForKey(355));
+        assertEquals("N", map.getValueForKey(5));
+        assertEquals("NbE", map.getValueForKey(6));
+        assertEquals("NbE", map.getValueForKey(16));
+        assertEquals("NNE", map.getValueForKey(17));
+        assertEquals("NEbN", map.getValueForKey(29));
+        assertEquals("S", map.getValueForKey(185));
+        assertEquals("SbW", map.getValueForKey(186));
+        assertEquals("NbW", map.getValueForKey(354));
+    }
+
+
+    @Test
+    public void coarserCompassesUseEveryFewPoints() {
+        assertEquals("N", CompassPoints.FOUR_POINT.getValueForKey(44));
+        assertEquals("E", CompassPoints.FOUR_POINT.getValueForKey(45));
+        assertEquals("W", CompassPoints.FOUR_POINT.getValueForKey(314));
+        assertEquals("N", CompassPoints.FOUR_POINT.getValueForKey(315));
+        assertEquals("N", CompassPoints.EIGHT_POINT.getValueForKey(22));
+        assertEquals("NE", CompassPoints.EIGHT_POINT.getValueForKey(23));
+        assertEquals("N", CompassPoints.SIXTEEN_POINT.getValueForKey(11));
+        assertEquals("NNE", CompassPoints.SIXTEEN_POINT.getValueForKey(12));
+        assertSame(CompassPoints.EIGHT_POINT, CompassPoints.get(8));
+    }
+
+
+    @Test
+    public void localizedCompassesShareTheirLabels() {
+        String[] french = new String[32];
+        for (int i = 0; i < 32; i++) {
+            // Built at runtime, so only interning makes them the same instances.
+            french[i] = new String("P" + i);
+        }
+        RangeMap four = CompassPoints.create(4, french);
+        RangeMap thirtyTwo = CompassPoints.create(32, french.clone());
+        assertEquals("P24", four.getValueForKey(270));
+        assertSame(four.getValueForKey(270), thirtyTwo.getValueForKey(270));
+    }
+
+
+    @Test
+    public void switchesCompassPointsBetweenUpdates() {
+        HeadingEngine engine = new HeadingEngine(AXIS_X, AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        float[] rotation = rotation(50, 0, 0, 1);
+        engine.update(0, rotation);
+        String thirtyTwo = engine.getCompassPoint();
+
+        engine.setCompassPoints(CompassPoints.FOUR_POINT);
+        engine.update(1, rotation);
+        assertEquals(CompassPoints.FOUR_POINT.getValueForKey(engine.getHeading()),
+                engine.getCompassPoint());
+        assertEquals(CompassPoints.THIRTY_TWO_POINT.getValueForKey(engine.getHeading()),
+                thirtyTwo);
+        assertNotEquals(thirtyTwo, engine.getCompassPoint());
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void rangeMapRejectsGaps() {
+        new RangeMap.Builder(0, 9).put(0, 4, "a").put(6, 9, "b").build();
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void rangeMapRejectsOverlaps() {
+        new RangeMap.Builder(0, 9).put(8, 4, "a").put(4, 8, "b").build();
+    }
+
+
+    // Hamilton product of two quaternions stored as x, y, z, w.
+    private static float[] multiply(float[] a, float[] b) {
+        return new float[] {
+                a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1],
+                a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0],
+                a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3],
+                a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2]};
+    }
+}
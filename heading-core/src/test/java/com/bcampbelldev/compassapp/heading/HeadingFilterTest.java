@@ -0,0 +1,95 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that each heading filter smooths noise and follows turns without jumping when the
+ * azimuth wraps at north.
+ */
+public class HeadingFilterTest {
+
+    // 100 Hz samples.
+    private static final long PERIOD = 10_000_000L;
+
+    private static final HeadingFilter[] FILTERS = {
+            new LowPassHeadingFilter(0.2f),
+            new OneEuroHeadingFilter(1f, 4f, 1f),
+            new KalmanHeadingFilter(50f, 4f)};
+
+
+    // Distance between two headings along the shorter way around the circle.
+    private static float arc(float a, float b) {
+        float delta = Math.abs(a - b) % 360f;
+        return delta > 180f ? 360f - delta : delta;
+    }
+
+
+    @Test
+    public void jitterAcrossNorthStaysNearNorth() {
+        for (HeadingFilter filter : FILTERS) {
+            filter.reset();
+            float output = 0;
+            for (int i = 0; i < 500; i++) {
+                output = filter.filter(i * PERIOD, i % 2 == 0 ? 359f : 1f);
+                assertTrue(filter.getClass().getSimpleName() + " gave " + output,
+                        arc(output, 0f) <= 1f);
+            }
+        }
+    }
+
+
+    @Test
+    public void turnAcrossNorthTakesTheShortWay() {
+        for (HeadingFilter filter : FILTERS) {
+            filter.reset();
+            filter.filter(0, 350f);
+            float output = 0;
+            for (int i = 1; i < 300; i++) {
+                output = filter.filter(i * PERIOD, 10f);
+                assertTrue(filter.getClass().getSimpleName() + " passed through " + output,
+                        output >= 350f || output <= 10f);
+            }
+            assertEquals(filter.getClass().getSimpleName(), 0f, arc(output, 10f), 0.5f);
+        }
+    }
+
+
+    @Test
+    public void reducesNoise() {
+        java.util.Random random = new java.util.Random(42);
+        for (HeadingFilter filter : FILTERS) {
+            filter.reset();
+            float worstRaw = 0;
+            float worst = 0;
+            for (int i = 0; i < 1000; i++) {
+                float raw = 90f + (float)random.nextGaussian() * 2f;
+                float output = filter.filter(i * PERIOD, raw);
+                if (i > 200) {
+                    worstRaw = Math.max(worstRaw, arc(raw, 90f));
+                    worst = Math.max(worst, arc(output, 90f));
+                }
+            }
+            assertTrue(filter.getClass().getSimpleName() + " error " + worst + ", raw " + worstRaw,
+                    worst < worstRaw / 2);
+        }
+    }
+
+
+    @Test
+    public void engineAppliesFilter() {
+        HeadingEngine engine = new HeadingEngine(
+                RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        engine.setFilter(new LowPassHeadingFilter(1f));
+
+        float s = (float)Math.sin(Math.toRadians(-45));
+        float c = (float)Math.cos(Math.toRadians(-45));
+        engine.update(0, new float[] {0, 0, 0, 1});
+        engine.update(PERIOD, new float[] {0, 0, s, c});
+
+        assertEquals(90f, engine.getRawAzimuth(), 0.01f);
+        assertTrue(engine.getAzimuth() > 0f && engine.getAzimuth() < 10f);
+        assertEquals("N", engine.getCompassPoint());
+    }
+}
@@ -0,0 +1,56 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the digits, degree sign and compass point written into the reused buffer, and that
+ * update only reports real changes.
+ */
+public class HeadingFormatterTest {
+
+    @Test
+    public void writesTheDigitsWithoutLeadingZeros() {
+        HeadingFormatter formatter = new HeadingFormatter();
+        int[] headings = {0, 9, 10, 99, 100, 359};
+        String[] texts = {
+                "0\u00B0 N", "9\u00B0 N", "10\u00B0 N", "99\u00B0 N", "100\u00B0 N", "359\u00B0 N"};
+        for (int i = 0; i < headings.length; i++) {
+            assertTrue(formatter.update(headings[i], "N"));
+            assertEquals(texts[i], formatter.toString());
+            assertEquals(texts[i].length(), formatter.length());
+
+            // Just past the degree sign.
+            int degreesEnd = formatter.getDegreesEnd();
+            assertEquals('\u00B0', formatter.charAt(degreesEnd - 1));
+            assertEquals(String.valueOf(headings[i]).length() + 1, degreesEnd);
+        }
+    }
+
+
+    @Test
+    public void onlyReportsChanges() {
+        HeadingFormatter formatter = new HeadingFormatter();
+        assertTrue(formatter.update(42, "NE"));
+        assertFalse(formatter.update(42, "NE"));
+
+        // An equal string, not the same instance, is no change either.
+        assertFalse(formatter.update(42, new String("NE")));
+        assertEquals("42\u00B0 NE", formatter.toString());
+
+        assertTrue(formatter.update(42, "NEbN"));
+        assertTrue(formatter.update(43, "NEbN"));
+        assertEquals("43\u00B0 NEbN", formatter.toString());
+    }
+
+
+    @Test
+    public void growsForLongCompassPoints() {
+        HeadingFormatter formatter = new HeadingFormatter();
+        String point = "Nordnordost zu Nord";
+        assertTrue(formatter.update(270, point));
+        assertEquals("270\u00B0 " + point, formatter.toString());
+        assertEquals("270\u00B0", formatter.subSequence(0, formatter.getDegreesEnd()).toString());
+    }
+}
@@ -0,0 +1,102 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the mailbox only hands over the newest sample, drops older ones, asks for a
+ * delivery again once cleared, and never goes back in time across threads.
+ */
+public class HeadingMailboxTest {
+
+    private final HeadingEngine engine = new HeadingEngine(
+            RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+
+
+    private boolean publish(HeadingMailbox mailbox, long timestamp) {
+        engine.update(timestamp, new float[] {0, 0, 0, 1});
+        mailbox.edit().set(engine);
+        return mailbox.publish();
+    }
+
+
+    @Test
+    public void deliversOnlyTheLatestSample() {
+        HeadingMailbox mailbox = new HeadingMailbox();
+        assertNull(mailbox.poll());
+
+        assertTrue(publish(mailbox, 10));
+        assertFalse(publish(mailbox, 20));
+        assertFalse(publish(mailbox, 30));
+
+        assertEquals(30, mailbox.poll().getTimestamp());
+        assertNull(mailbox.poll());
+    }
+
+
+    @Test
+    public void dropsSamplesThatAreNotNewer() {
+        HeadingMailbox mailbox = new HeadingMailbox();
+
+        publish(mailbox, 20);
+        assertEquals(20, mailbox.poll().getTimestamp());
+
+        assertTrue(publish(mailbox, 15));
+        assertNull(mailbox.poll());
+
+        mailbox.resetTimestamp();
+        publish(mailbox, 15);
+        assertEquals(15, mailbox.poll().getTimestamp());
+    }
+
+
+    @Test
+    public void clearingADeliveryNeverTakenAsksForTheNextOne() {
+        HeadingMailbox mailbox = new HeadingMailbox();
+        assertTrue(publish(mailbox, 10));
+        // The delivery was cancelled before the reader got to it.
+        assertFalse(publish(mailbox, 20));
+
+        mailbox.clear();
+        assertNull(mailbox.poll());
+        assertTrue(publish(mailbox, 5));
+        assertEquals(5, mailbox.poll().getTimestamp());
+
+        // Clearing an empty mailbox changes nothing.
+        mailbox.clear();
+        assertTrue(publish(mailbox, 30));
+        assertEquals(30, mailbox.poll().getTimestamp());
+    }
+
+
+    @Test
+    public void readerNeverSeesOlderSampleAcrossThreads() throws InterruptedException {
+        final HeadingMailbox mailbox = new HeadingMailbox();
+        final HeadingEngine writerEngine = new HeadingEngine(
+                RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        final float[] north = {0, 0, 0, 1};
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (long t = 1; t <= 200000; t++) {
+                    writerEngine.update(t, north);
+                    mailbox.edit().set(writerEngine);
+                    mailbox.publish();
+                }
+            }
+        };
+        writer.start();
+
+        long last = 0;
+        while (last < 200000) {
+            HeadingSample sample = mailbox.poll();
+            if (sample != null) {
+                assertTrue(sample.getTimestamp() > last);
+                last = sample.getTimestamp();
+            }
+        }
+        writer.join();
+    }
+}
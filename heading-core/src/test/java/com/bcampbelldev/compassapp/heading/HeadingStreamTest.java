@@ -0,0 +1,141 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks subscribing and unsubscribing, and the distinct, throttle, sample, threshold and
+ * batching operators.
+ */
+public class HeadingStreamTest {
+
+    private final HeadingEngine engine = new HeadingEngine(
+            RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+    private final HeadingSample sample = new HeadingSample();
+
+
+    // Publish the device lying flat and turned to an azimuth.
+    private void publish(HeadingStream stream, long timestamp, double azimuth) {
+        double half = Math.toRadians(-azimuth) / 2;
+        engine.update(timestamp, new float[] {0, 0, (float)Math.sin(half), (float)Math.cos(half)});
+        sample.set(engine);
+        stream.publish(sample);
+    }
+
+
+    // Records the timestamps of the samples it is told about.
+    private static final class Recorder implements HeadingStream.Subscriber {
+        final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public void onHeading(HeadingSample sample) {
+            timestamps.add(sample.getTimestamp());
+        }
+    }
+
+
+    @Test
+    public void subscribersComeAndGo() {
+        HeadingStream stream = new HeadingStream();
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        assertFalse(stream.hasSubscribers());
+
+        stream.subscribe(a);
+        stream.subscribe(b);
+        publish(stream, 1, 0);
+        assertTrue(stream.unsubscribe(a));
+        assertFalse(stream.unsubscribe(a));
+        publish(stream, 2, 0);
+        assertTrue(stream.unsubscribe(b));
+        publish(stream, 3, 0);
+
+        assertEquals(1, a.timestamps.size());
+        assertEquals(2, b.timestamps.size());
+        assertFalse(stream.hasSubscribers());
+    }
+
+
+    @Test
+    public void distinctPassesOnlyChangesOfTheDisplayedHeading() {
+        HeadingStream stream = new HeadingStream();
+        HeadingStream.Operator distinct = stream.distinctUntilChanged();
+        Recorder recorder = new Recorder();
+        distinct.subscribe(recorder);
+
+        publish(stream, 1, 90.1);
+        publish(stream, 2, 90.3);
+        publish(stream, 3, 91.2);
+        publish(stream, 4, 91.4);
+        publish(stream, 5, 90.2);
+        assertEquals(90, sample.getHeading());
+        assertEquals("[1, 3, 5]", recorder.timestamps.toString());
+
+        distinct.close();
+        publish(stream, 6, 180);
+        assertEquals(3, recorder.timestamps.size());
+    }
+
+
+    @Test
+    public void throttleRestartsAtEachSampleWhileSampleKeepsItsPeriods() {
+        HeadingStream stream = new HeadingStream();
+        Recorder throttled = new Recorder();
+        Recorder sampled = new Recorder();
+        stream.throttle(100).subscribe(throttled);
+        stream.sample(100).subscribe(sampled);
+
+        for (long t : new long[] {95, 150, 195, 205, 290, 305, 10}) {
+            publish(stream, t, 0);
+        }
+        assertEquals("[95, 195, 305, 10]", throttled.timestamps.toString());
+        assertEquals("[95, 150, 205, 305, 10]", sampled.timestamps.toString());
+    }
+
+
+    @Test
+    public void thresholdMeasuresTurnsAcrossNorth() {
+        HeadingStream stream = new HeadingStream();
+        Recorder recorder = new Recorder();
+        stream.threshold(5).subscribe(recorder);
+
+        publish(stream, 1, 358);
+        publish(stream, 2, 2);
+        publish(stream, 3, 4);
+        publish(stream, 4, 0);
+        publish(stream, 5, 358.5);
+        assertEquals("[1, 3, 5]", recorder.timestamps.toString());
+    }
+
+
+    @Test
+    public void batcherHandsOnFullAndFlushedBatches() {
+        HeadingStream stream = new HeadingStream();
+        final List<String> batches = new ArrayList<>();
+        HeadingStream.Batcher batcher = new HeadingStream.Batcher(3,
+                new HeadingStream.BatchListener() {
+                    @Override
+                    public void onHeadings(long[] timestamps, float[] azimuths, int count) {
+                        StringBuilder batch = new StringBuilder();
+                        for (int i = 0; i < count; i++) {
+                            batch.append(timestamps[i]).append('@')
+                                    .append(Math.round(azimuths[i])).append(' ');
+                        }
+                        batches.add(batch.toString().trim());
+                    }
+                });
+        stream.subscribe(batcher);
+
+        for (int t = 1; t <= 4; t++) {
+            publish(stream, t, t * 10);
+        }
+        assertEquals(1, batches.size());
+        batcher.flush();
+        batcher.flush();
+        assertEquals("[1@10 2@20 3@30, 4@40]", batches.toString());
+    }
+}
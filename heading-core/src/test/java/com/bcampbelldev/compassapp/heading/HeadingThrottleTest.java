@@ -0,0 +1,63 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the interval between headings passed on, the first heading at any timestamp, and
+ * starting afresh when time goes back.
+ */
+public class HeadingThrottleTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+
+    @Test
+    public void passesTheFirstHeadingWhateverItsTimestamp() {
+        // Timestamps far from 0 either way must not overflow the interval check.
+        assertTrue(new HeadingThrottle(20 * MILLIS).accept(123_456_789_012L));
+        assertTrue(new HeadingThrottle(20 * MILLIS).accept(Long.MIN_VALUE));
+        assertTrue(new HeadingThrottle(0).accept(Long.MAX_VALUE));
+    }
+
+
+    @Test
+    public void passesAtMostOneHeadingPerInterval() {
+        HeadingThrottle throttle = new HeadingThrottle(20 * MILLIS);
+        int passed = 0;
+        // A second of headings 5 ms apart.
+        for (long t = 1000 * MILLIS; t < 2000 * MILLIS; t += 5 * MILLIS) {
+            if (throttle.accept(t)) {
+                passed++;
+            }
+        }
+        assertEquals(50, passed);
+    }
+
+
+    @Test
+    public void noIntervalPassesEveryHeading() {
+        HeadingThrottle throttle = new HeadingThrottle(0);
+        for (long t = 1; t <= 100; t++) {
+            assertTrue(throttle.accept(t));
+        }
+        // Even one at the same time as the last.
+        assertTrue(throttle.accept(100));
+    }
+
+
+    @Test
+    public void startsAfreshWhenTimeGoesBackOrOnReset() {
+        HeadingThrottle throttle = new HeadingThrottle(20 * MILLIS);
+        assertTrue(throttle.accept(5000 * MILLIS));
+        assertFalse(throttle.accept(5010 * MILLIS));
+
+        // The sensor was registered again and its clock restarted.
+        assertTrue(throttle.accept(10 * MILLIS));
+        assertFalse(throttle.accept(20 * MILLIS));
+
+        throttle.reset();
+        assertTrue(throttle.accept(25 * MILLIS));
+    }
+}
@@ -0,0 +1,71 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram's percentiles against a known spread, its bucket bounds, and that
+ * concurrent records are all counted.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+
+        // 1 to 1000 ms in 1 ms steps.
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * 1_000_000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500, histogram.getMeanMicros());
+        assertEquals(1_000_000, histogram.getMaxMicros());
+        assertEquals(500_000, histogram.getPercentileMicros(50), 500_000 * 0.125);
+        assertEquals(990_000, histogram.getPercentileMicros(99), 990_000 * 0.125);
+        assertTrue(histogram.getPercentileMicros(100) <= histogram.getMaxMicros());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+
+    @Test
+    public void bucketsCoverEveryDuration() {
+        long previousBound = 0;
+        for (long micros = 0; micros < 1_000_000; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros < LatencyHistogram.upperBoundOf(bucket));
+            assertTrue(bucket == 0 || micros >= LatencyHistogram.upperBoundOf(bucket - 1));
+            assertTrue(LatencyHistogram.upperBoundOf(bucket) >= previousBound);
+            previousBound = LatencyHistogram.upperBoundOf(bucket);
+        }
+        assertTrue(LatencyHistogram.bucketOf(Long.MAX_VALUE) > 0);
+    }
+
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i * 1000L);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999, histogram.getMaxMicros());
+    }
+}
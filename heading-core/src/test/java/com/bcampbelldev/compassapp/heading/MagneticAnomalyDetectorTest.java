@@ -0,0 +1,77 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that interference is flagged and cleared against a learned reference and against one
+ * from a model of the Earth's field.
+ */
+public class MagneticAnomalyDetectorTest {
+
+    private static final float FIELD = 48f;
+
+    private static final float[] UP = {0, 0, 1};
+
+    // 48 uT dipping 60 degrees.
+    private static final float HORIZONTAL = FIELD * (float)Math.cos(Math.toRadians(60));
+    private static final float VERTICAL = FIELD * (float)Math.sin(Math.toRadians(60));
+    private static final float[] EARTH = {0, HORIZONTAL, -VERTICAL};
+
+    // A steel desk adds a strong horizontal field.
+    private static final float[] DISTURBED = {30, HORIZONTAL, -VERTICAL};
+
+
+    private static int feed(MagneticAnomalyDetector detector, float[] field, int readings) {
+        int state = detector.getState();
+        for (int i = 0; i < readings; i++) {
+            state = detector.update(field, UP);
+        }
+        return state;
+    }
+
+
+    @Test
+    public void flagsAndClearsInterference() {
+        MagneticAnomalyDetector detector = new MagneticAnomalyDetector();
+        detector.setCalibrated(true);
+
+        for (int i = 0; i < 60; i++) {
+            assertEquals(MagneticAnomalyDetector.OK, detector.update(EARTH, UP));
+        }
+        assertEquals(60, detector.getInclination(), 0.5f);
+
+        assertEquals(MagneticAnomalyDetector.OK, detector.update(DISTURBED, UP));
+        assertEquals(MagneticAnomalyDetector.INTERFERENCE, feed(detector, DISTURBED, 10));
+        assertEquals(MagneticAnomalyDetector.OK, feed(detector, EARTH, 20));
+
+        detector.setCalibrated(false);
+        assertEquals(MagneticAnomalyDetector.UNCALIBRATED, detector.getState());
+    }
+
+
+    @Test
+    public void learnsADisturbedFieldWithoutAReference() {
+        MagneticAnomalyDetector detector = new MagneticAnomalyDetector();
+        detector.setCalibrated(true);
+
+        // Started on the desk: the desk's field becomes the reference.
+        assertEquals(MagneticAnomalyDetector.OK, feed(detector, DISTURBED, 60));
+    }
+
+
+    @Test
+    public void aModelReferenceFlagsFromTheFirstReadings() {
+        MagneticAnomalyDetector detector = new MagneticAnomalyDetector();
+        detector.setCalibrated(true);
+        detector.setReference(FIELD, 60f);
+
+        assertEquals(MagneticAnomalyDetector.INTERFERENCE, feed(detector, DISTURBED, 5));
+        assertEquals(MagneticAnomalyDetector.OK, feed(detector, EARTH, 20));
+
+        // A restart keeps the reference rather than learning it again.
+        detector.reset();
+        assertEquals(MagneticAnomalyDetector.INTERFERENCE, feed(detector, DISTURBED, 5));
+    }
+}
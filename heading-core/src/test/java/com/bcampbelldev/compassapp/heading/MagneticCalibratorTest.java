@@ -0,0 +1,122 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the calibration fits a known hard and soft iron distortion, waits for readings in
+ * enough directions, and the eigen solver it is built on.
+ */
+public class MagneticCalibratorTest {
+
+    private static final float FIELD = 48f;
+
+    // Hard-iron offset, and a symmetric soft-iron distortion.
+    private static final float[] OFFSET = {35f, -22f, 12f};
+    private static final float[] SOFT_IRON = {
+            1.10f, 0.05f, -0.03f,
+            0.05f, 0.95f, 0.04f,
+            -0.03f, 0.04f, 1.02f};
+
+    private final Random random = new Random(42);
+
+
+    // A raw reading of the field pointing in a random direction.
+    private float[] rawReading(float[] trueOut) {
+        double z = random.nextDouble() * 2 - 1;
+        double angle = random.nextDouble() * 2 * Math.PI;
+        double r = Math.sqrt(1 - z * z);
+        trueOut[0] = (float)(r * Math.cos(angle)) * FIELD;
+        trueOut[1] = (float)(r * Math.sin(angle)) * FIELD;
+        trueOut[2] = (float)z * FIELD;
+        float[] raw = new float[3];
+        for (int i = 0; i < 3; i++) {
+            raw[i] = OFFSET[i] + (float)random.nextGaussian() * 0.3f;
+            for (int j = 0; j < 3; j++) {
+                raw[i] += SOFT_IRON[i * 3 + j] * trueOut[j];
+            }
+        }
+        return raw;
+    }
+
+
+    private static float length(float[] v) {
+        return (float)Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    }
+
+
+    @Test
+    public void fitsHardAndSoftIron() {
+        MagneticCalibrator calibrator = new MagneticCalibrator(1000);
+        float[] truth = new float[3];
+        int accepted = 0;
+        for (int i = 0; i < 600; i++) {
+            float[] raw = rawReading(truth);
+            if (calibrator.add(raw[0], raw[1], raw[2])) {
+                accepted++;
+            }
+        }
+        assertTrue(calibrator.isCalibrated());
+        assertTrue(accepted > 0);
+        assertEquals(24, calibrator.getCoverage());
+
+        // The soft iron is slightly larger than 1 on average, so the sphere is a little larger
+        // than the true field.
+        assertEquals(FIELD, calibrator.getFieldStrength(), 2f);
+
+        float[] calibrated = new float[3];
+        float worst = 0;
+        for (int i = 0; i < 200; i++) {
+            float[] raw = rawReading(truth);
+            calibrator.calibrate(raw[0], raw[1], raw[2], calibrated);
+            worst = Math.max(worst,
+                    Math.abs(length(calibrated) - calibrator.getFieldStrength()));
+        }
+        assertTrue("Worst magnitude error " + worst, worst < 1.5f);
+    }
+
+
+    @Test
+    public void waitsForEnoughDirections() {
+        MagneticCalibrator calibrator = new MagneticCalibrator(1000);
+        float[] truth = new float[3];
+        for (int i = 0; i < 600; i++) {
+            float[] raw = rawReading(truth);
+            // Only the upper half of the sphere, as if the device were never turned over.
+            if (truth[2] < 0) {
+                continue;
+            }
+            calibrator.add(raw[0], raw[1], raw[2]);
+        }
+        assertFalse(calibrator.isCalibrated());
+
+        float[] out = new float[3];
+        calibrator.calibrate(1, 2, 3, out);
+        assertArrayEquals(new float[] {1, 2, 3}, out, 0f);
+    }
+
+
+    @Test
+    public void jacobiDiagonalizesSymmetricMatrices() {
+        double[] a = {4, 1, 2, 1, 3, 0.5, 2, 0.5, 5};
+        double[] original = a.clone();
+        double[] values = new double[3];
+        double[] vectors = new double[9];
+        MagneticCalibrator.jacobi(a, values, vectors);
+
+        // A v = lambda v for every column.
+        for (int e = 0; e < 3; e++) {
+            for (int i = 0; i < 3; i++) {
+                double av = 0;
+                for (int j = 0; j < 3; j++) {
+                    av += original[i * 3 + j] * vectors[j * 3 + e];
+                }
+                assertEquals(values[e] * vectors[i * 3 + e], av, 1e-9);
+            }
+        }
+        assertEquals(12, values[0] + values[1] + values[2], 1e-9);
+    }
+}
@@ -0,0 +1,79 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the event counts dropped at each stage of the pipeline, reset, and the dump layout.
+ */
+public class PipelineStatsTest {
+
+    // Ten events: one stale, a batch of five and one of four, two headings replaced unread in the
+    // mailbox and one replaced undrawn before its frame.
+    private static PipelineStats run() {
+        PipelineStats stats = new PipelineStats();
+        for (int i = 0; i < 10; i++) {
+            stats.onEventReceived(2_000_000L, i == 0);
+        }
+        stats.onBatchProcessed(5, 100_000L);
+        stats.onBatchProcessed(4, 100_000L);
+        for (int i = 0; i < 4; i++) {
+            stats.onPublished(i % 2 == 1);
+        }
+        stats.onDelivered(500_000L, false);
+        stats.onDelivered(500_000L, true);
+        stats.onFrame(8_000_000L);
+        stats.onFrameRendered(12_000_000L);
+        return stats;
+    }
+
+
+    @Test
+    public void countsEventsDroppedAtEveryStage() {
+        PipelineStats stats = run();
+        assertEquals(10, stats.getReceivedCount());
+        // 1 stale + 4 + 3 in the batches + 2 in the mailbox + 1 before the frame.
+        assertEquals(11, stats.getDroppedCount());
+        assertEquals(1, stats.getFrameLatency().getCount());
+        assertEquals(8000, stats.getFrameLatency().getMeanMicros());
+        assertEquals(12000, stats.getEndToEndLatency().getMaxMicros());
+    }
+
+
+    @Test
+    public void resetClearsEveryCounter() {
+        PipelineStats stats = run();
+        stats.reset();
+        assertEquals(0, stats.getReceivedCount());
+        assertEquals(0, stats.getDroppedCount());
+        assertEquals(0, stats.getFrameLatency().getCount());
+        assertEquals(0, stats.getEndToEndLatency().getCount());
+    }
+
+
+    @Test
+    public void dumpsTheCountersThenOneLinePerStage() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        run().dump("  ", writer);
+        writer.flush();
+
+        String[] lines = out.toString().split("\r?\n");
+        assertEquals(6, lines.length);
+        assertEquals("  events: received=10 stale=1 coalesced(batch/mailbox/frame)=7/2/1"
+                + " published=4 drawn=1", lines[0]);
+        // Stale events are not timed, so 9 deliveries.
+        assertTrue(lines[1], lines[1].startsWith("  delivery:   n=9 mean=2.0"));
+        assertTrue(lines[2], lines[2].startsWith("  processing: n=2 mean=0.1"));
+        assertTrue(lines[3], lines[3].startsWith("  handoff:    n=2 mean=0.5"));
+        assertTrue(lines[4], lines[4].startsWith("  frame:      n=1 mean=8.0"));
+        assertTrue(lines[5], lines[5].startsWith("  end-to-end: n=1 mean=12.0"));
+        for (int i = 1; i < lines.length; i++) {
+            assertTrue(lines[i], lines[i].endsWith(" ms"));
+        }
+    }
+}
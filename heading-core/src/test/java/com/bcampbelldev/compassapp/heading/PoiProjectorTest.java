@@ -0,0 +1,112 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks where waypoints land on the preview for known orientations, display rotations and a
+ * non-zero declination, and which are kept when too many are in range.
+ */
+public class PoiProjectorTest {
+
+    // Remapped frame lined up with the world: camera facing north, device x east, device y up.
+    private static final float[] FACING_NORTH = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+    // Turned 90 degrees clockwise about the vertical: camera facing east.
+    private static final float[] FACING_EAST = {0, 1, 0, -1, 0, 0, 0, 0, 1};
+
+
+    private static WaypointIndex grid() {
+        // 1 km north, 1 km north and 176 m east (10 degrees right), 1 km south, 1 km east.
+        return new WaypointIndex(new String[] {"north", "right", "south", "east"},
+                new float[] {0.008993f, 0.008993f, -0.008993f, 0f},
+                new float[] {0f, 0.001586f, 0f, 0.008993f});
+    }
+
+
+    @Test
+    public void projectsPointsAheadAndCullsTheRest() {
+        PoiProjector projector = new PoiProjector(100);
+        projector.setView(1000, 600, 60f, 0f);
+        assertEquals(4, projector.setPoints(grid(), 0, 0, 5000f, 0f));
+
+        assertEquals(2, projector.project(FACING_NORTH));
+        float[] screen = projector.getScreenPositions();
+        float focal = 500f / (float)Math.tan(Math.toRadians(30));
+
+        assertEquals("north", projector.getName(projector.getVisiblePoint(0)));
+        assertEquals(1000f, projector.getDistance(projector.getVisiblePoint(0)), 2f);
+        assertEquals(500f, screen[0], 0.5f);
+        // Just below the middle, by the curvature of the Earth.
+        assertEquals(300f, screen[1], 0.5f);
+        assertTrue(screen[1] > 300f);
+
+        assertEquals("right", projector.getName(projector.getVisiblePoint(1)));
+        assertEquals(500f + focal * Math.tan(Math.toRadians(10)), screen[2], 1f);
+
+        assertEquals(1, projector.project(FACING_EAST));
+        assertEquals("east", projector.getName(projector.getVisiblePoint(0)));
+    }
+
+
+    @Test
+    public void turnsTrueBearingsToMagneticNorth() {
+        PoiProjector projector = new PoiProjector(100);
+        projector.setView(1000, 600, 60f, 0f);
+        float focal = 500f / (float)Math.tan(Math.toRadians(30));
+
+        // Magnetic north 10 degrees east of true north: facing magnetic north, the waypoint 10
+        // degrees right of true north is straight ahead and true north is 10 degrees left.
+        projector.setPoints(grid(), 0, 0, 5000f, 10f);
+        assertEquals(2, projector.project(FACING_NORTH));
+        float[] screen = projector.getScreenPositions();
+        assertEquals("north", projector.getName(projector.getVisiblePoint(0)));
+        assertEquals(500f - focal * Math.tan(Math.toRadians(10)), screen[0], 1f);
+        assertEquals("right", projector.getName(projector.getVisiblePoint(1)));
+        assertEquals(500f, screen[2], 1f);
+
+        // Facing magnetic east is facing 100 degrees true.
+        assertEquals(1, projector.project(FACING_EAST));
+        assertEquals(500f - focal * Math.tan(Math.toRadians(10)),
+                projector.getScreenPositions()[0], 1f);
+    }
+
+
+    @Test
+    public void followsTheDisplayRotation() {
+        PoiProjector projector = new PoiProjector(100);
+        projector.setView(1000, 600, 60f, 0f);
+        projector.setPoints(grid(), 0, 0, 5000f, 0f);
+
+        // Rolled so that screen right is the device's y axis: a point to the right of the camera
+        // is near the middle, as seen on the screen.
+        projector.setDisplayRotation(90);
+        projector.project(FACING_NORTH);
+        assertEquals("right", projector.getName(projector.getVisiblePoint(1)));
+        assertEquals(500f, projector.getScreenPositions()[2], 1f);
+        assertTrue(projector.getScreenPositions()[3] > 300f);
+    }
+
+
+    @Test
+    public void keepsTheNearestWhenTooManyAreInRange() {
+        int n = 50;
+        String[] names = new String[n];
+        float[] latitudes = new float[n];
+        float[] longitudes = new float[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "wp" + i;
+            latitudes[i] = 0.001f * (i + 1);
+        }
+        PoiProjector projector = new PoiProjector(5);
+        projector.setView(1000, 600, 60f, 0f);
+        assertEquals(5, projector.setPoints(new WaypointIndex(names, latitudes, longitudes),
+                0, 0, 100_000f, 0f));
+
+        assertEquals(5, projector.project(FACING_NORTH));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("wp" + i, projector.getName(projector.getVisiblePoint(i)));
+        }
+    }
+}
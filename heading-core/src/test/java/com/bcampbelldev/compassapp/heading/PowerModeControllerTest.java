@@ -0,0 +1,67 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks going dormant after staying still, waking on movement, and staying awake while
+ * dormant is not allowed.
+ */
+public class PowerModeControllerTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+
+    @Test
+    public void goesDormantAfterStayingStillAndWakesOnMovement() {
+        PowerModeController controller = new PowerModeController(10 * SECOND, 0.5f);
+        controller.start(0);
+        assertFalse(controller.update(SECOND, false));
+        assertEquals(PowerModeController.ACTIVE, controller.getState());
+
+        // Still from 2 s on: slow at once, dormant 10 s later.
+        assertFalse(controller.update(2 * SECOND, true));
+        assertEquals(PowerModeController.SLOW, controller.getState());
+        assertFalse(controller.update(11 * SECOND, true));
+        assertTrue(controller.update(12 * SECOND, true));
+        assertEquals(PowerModeController.DORMANT, controller.getState());
+
+        // The first reading is the reference; noise and a slight tilt do not wake it.
+        assertFalse(controller.onAcceleration(13 * SECOND, 0.01f, 0.02f, 9.81f));
+        assertFalse(controller.onAcceleration(14 * SECOND, 0.2f, -0.1f, 9.79f));
+        assertTrue(controller.onAcceleration(20 * SECOND, 1.5f, 0.4f, 9.2f));
+
+        controller.wake(20 * SECOND);
+        assertEquals(PowerModeController.ACTIVE, controller.getState());
+        controller.update(20 * SECOND + 150_000_000L, false);
+        assertEquals(1, controller.getWakeCount());
+        assertEquals(150_000_000L, controller.getMaxWakeLatencyNanos());
+
+        controller.stop(25 * SECOND);
+        long now = 30 * SECOND;
+        assertEquals(7 * SECOND, controller.getNanosInState(PowerModeController.ACTIVE, now));
+        assertEquals(10 * SECOND, controller.getNanosInState(PowerModeController.SLOW, now));
+        assertEquals(8 * SECOND, controller.getNanosInState(PowerModeController.DORMANT, now));
+        assertEquals(5 * SECOND, controller.getNanosInState(PowerModeController.OFF, now));
+    }
+
+
+    @Test
+    public void staysAwakeWhileDormantIsNotAllowed() {
+        PowerModeController controller = new PowerModeController(SECOND, 0.5f);
+        controller.setDormantAllowed(false);
+        controller.start(0);
+        controller.update(SECOND, true);
+        assertFalse(controller.update(100 * SECOND, true));
+        assertEquals(PowerModeController.SLOW, controller.getState());
+
+        // Moving resets the still time, so allowing it later still waits the full time.
+        controller.update(101 * SECOND, false);
+        controller.setDormantAllowed(true);
+        controller.update(102 * SECOND, true);
+        assertFalse(controller.update(102 * SECOND + SECOND / 2, true));
+        assertTrue(controller.update(103 * SECOND, true));
+        assertFalse(controller.onAcceleration(104 * SECOND, 0, 0, 9.81f));
+    }
+}
@@ -0,0 +1,85 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the batch keeps 3, 4 and 5 value samples, refuses samples once full until
+ * cleared, and feeds the engine either length alike.
+ */
+public class RotationVectorBatchTest {
+
+    @Test
+    public void keepsSamplesOfEveryLength() {
+        RotationVectorBatch batch = new RotationVectorBatch(4);
+        assertEquals(0, batch.size());
+
+        assertTrue(batch.add(100, new float[] {0.1f, 0.2f, 0.3f}));
+        assertTrue(batch.add(200, new float[] {0.1f, 0.2f, 0.3f, 0.9f}));
+        assertTrue(batch.add(300, new float[] {0.1f, 0.2f, 0.3f, 0.9f, 0.05f, 7f}));
+        assertEquals(3, batch.size());
+
+        float[] quaternion = new float[4];
+        assertEquals(3, batch.getValueCount(0));
+        assertEquals(3, batch.getValues(0, quaternion));
+        assertArrayEquals(new float[] {0.1f, 0.2f, 0.3f, 0}, quaternion, 0f);
+
+        assertEquals(200, batch.getTimestamp(1));
+        assertEquals(4, batch.getValues(1, quaternion));
+        assertArrayEquals(new float[] {0.1f, 0.2f, 0.3f, 0.9f}, quaternion, 0f);
+
+        // Values past the accuracy estimate are dropped; a short array takes only the quaternion.
+        assertEquals(RotationVectorBatch.MAX_VALUES, batch.getValueCount(2));
+        float[] all = new float[RotationVectorBatch.MAX_VALUES];
+        batch.getValues(2, all);
+        assertArrayEquals(new float[] {0.1f, 0.2f, 0.3f, 0.9f, 0.05f}, all, 0f);
+        assertEquals(RotationVectorBatch.MAX_VALUES, batch.getValues(2, quaternion));
+        assertArrayEquals(new float[] {0.1f, 0.2f, 0.3f, 0.9f}, quaternion, 0f);
+    }
+
+
+    @Test
+    public void refusesSamplesOnceFullUntilCleared() {
+        RotationVectorBatch batch = new RotationVectorBatch(2);
+        float[] sample = {0, 0, 0, 1};
+        assertTrue(batch.add(1, sample));
+        assertFalse(batch.isFull());
+        assertTrue(batch.add(2, sample));
+        assertTrue(batch.isFull());
+        assertFalse(batch.add(3, sample));
+        assertEquals(2, batch.size());
+        assertEquals(2, batch.getTimestamp(1));
+
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertFalse(batch.isFull());
+        assertTrue(batch.add(4, sample));
+        assertEquals(4, batch.getTimestamp(0));
+    }
+
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndicesPastTheSize() {
+        RotationVectorBatch batch = new RotationVectorBatch(4);
+        batch.add(1, new float[] {0, 0, 0});
+        batch.getTimestamp(1);
+    }
+
+
+    @Test
+    public void engineGivesTheSameHeadingFromEitherLength() {
+        // A quarter turn about the vertical axis, with and without the scalar part.
+        float half = (float)Math.toRadians(45);
+        RotationVectorBatch batch = new RotationVectorBatch(2);
+        batch.add(1, new float[] {0, 0, (float)Math.sin(half)});
+        batch.add(2, new float[] {0, 0, (float)Math.sin(half), (float)Math.cos(half)});
+
+        HeadingEngine engine = new HeadingEngine(
+                RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        engine.update(batch, 0);
+        float fromVector = engine.getAzimuth();
+        engine.update(batch, 1);
+        assertEquals(fromVector, engine.getAzimuth(), 0.01f);
+    }
+}
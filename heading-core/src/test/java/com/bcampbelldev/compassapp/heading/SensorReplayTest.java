@@ -0,0 +1,130 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a recorded rotation vector stream replays to the same headings, keeps its timing
+ * when sped up, and rejects corrupt logs.
+ */
+public class SensorReplayTest {
+
+    private static final long PERIOD_NANOS = 5_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    // A device lying flat and turning slowly, with every other event lacking the scalar part.
+    private static float[] sample(int i) {
+        double half = Math.toRadians(i * 0.7) / 2;
+        if (i % 2 == 0) {
+            return new float[] {0, 0, (float)Math.sin(half), (float)Math.cos(half), 0.1f};
+        }
+        return new float[] {0, 0, (float)Math.sin(half)};
+    }
+
+
+    private File record(int count) throws IOException {
+        File file = folder.newFile("rotation.bin");
+        SensorRecorder recorder = new SensorRecorder(file, 4096);
+        recorder.start();
+        for (int i = 0; i < count; i++) {
+            assertTrue(recorder.record(1_000_000L + i * PERIOD_NANOS, sample(i), i % 4));
+        }
+        recorder.close();
+        assertEquals(0, recorder.getDroppedCount());
+        return file;
+    }
+
+
+    @Test
+    public void replayReproducesTheRecordedHeadings() throws Exception {
+        final int count = 500;
+        File file = record(count);
+
+        SensorReplay replay = new SensorReplay(file);
+        assertEquals(count, replay.size());
+
+        final HeadingEngine live = new HeadingEngine(
+                RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        final HeadingEngine replayed = new HeadingEngine(
+                RotationMath.AXIS_X, RotationMath.AXIS_Y, CompassPoints.THIRTY_TWO_POINT);
+        final int[] index = new int[1];
+
+        replay.play(new SensorReplay.Listener() {
+            @Override
+            public void onSample(long timestamp, float[] values, int accuracy) {
+                int i = index[0]++;
+                float[] expected = sample(i);
+                assertEquals(1_000_000L + i * PERIOD_NANOS, timestamp);
+                assertEquals(i % 4, accuracy);
+                assertArrayEquals(expected, values, 0f);
+
+                live.update(timestamp, expected);
+                replayed.update(timestamp, values);
+                assertEquals(live.getAzimuth(), replayed.getAzimuth(), 0f);
+                assertEquals(live.getCompassPoint(), replayed.getCompassPoint());
+            }
+        }, 0);
+        assertEquals(count, index[0]);
+    }
+
+
+    @Test
+    public void acceleratedReplayKeepsRelativeTiming() throws Exception {
+        // 200 events 5 ms apart span about a second; at 10x that is about 100 ms.
+        File file = record(200);
+        SensorReplay replay = new SensorReplay(file);
+
+        long start = System.nanoTime();
+        replay.play(new SensorReplay.Listener() {
+            @Override
+            public void onSample(long timestamp, float[] values, int accuracy) {
+            }
+        }, 10f);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue("replay took " + elapsed + " ns", elapsed >= 199 * PERIOD_NANOS / 10);
+    }
+
+
+    @Test
+    public void rejectsReadingsWithAnInvalidValueCount() throws Exception {
+        File file = record(3);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            // The value count of the second reading, as a negative byte.
+            out.seek(SensorRecorder.HEADER_SIZE + SensorRecorder.RECORD_SIZE + 9);
+            out.write(0x80);
+        } finally {
+            out.close();
+        }
+
+        final int[] played = new int[1];
+        try {
+            new SensorReplay(file).play(new SensorReplay.Listener() {
+                @Override
+                public void onSample(long timestamp, float[] values, int accuracy) {
+                    played[0]++;
+                }
+            }, 0);
+            fail("played a corrupt reading");
+        } catch (IOException expected) {
+            assertEquals(1, played[0]);
+        }
+    }
+
+
+    @Test(expected = IOException.class)
+    public void rejectsFilesThatAreNotSensorLogs() throws IOException {
+        new SensorReplay(folder.newFile("empty.bin"));
+    }
+}
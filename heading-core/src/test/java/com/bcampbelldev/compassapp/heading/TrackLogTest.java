@@ -0,0 +1,235 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a track written by TrackLog reads back exactly, by time span, as CSV with
+ * wall-clock times, after a sync, and with a torn last block.
+ */
+public class TrackLogTest {
+
+    private static final long START = 5_000_000_000L;
+    private static final long PERIOD_NANOS = 100_000_000L;
+
+    // The session started at 2026-01-01 00:00:00 UTC, a second before the first heading.
+    private static final long START_MILLIS = 1_767_225_600_000L;
+    private static final long START_NANOS = START - 1_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    // Turning back and forth across north, with the accuracy changing now and then.
+    private static float azimuth(int i) {
+        float azimuth = (float)(40 * Math.sin(i * 0.01)) + (i % 7) * 0.01f;
+        return azimuth < 0 ? azimuth + 360 : azimuth;
+    }
+
+
+    private static int accuracy(int i) {
+        return i / 500 % 3;
+    }
+
+
+    private File record(int count) throws IOException {
+        File file = folder.newFile("track.bin");
+        TrackLog log = new TrackLog(file, 1 << 16, START_MILLIS, START_NANOS);
+        log.start();
+        for (int i = 0; i < count; i++) {
+            assertTrue(log.record(START + i * PERIOD_NANOS, azimuth(i), accuracy(i)));
+        }
+        log.close();
+        assertEquals(0, log.getDroppedCount());
+        return file;
+    }
+
+
+    @Test
+    public void readsBackEveryHeadingCompactly() throws IOException {
+        final int count = 20_000;
+        File file = record(count);
+
+        // Raw, the headings would take 16 bytes each.
+        assertTrue("log is " + file.length() + " bytes", file.length() < count * 8);
+
+        TrackLogReader reader = new TrackLogReader(file);
+        try {
+            assertEquals(count, reader.size());
+            assertTrue(reader.getBlockCount() > 10);
+
+            final int[] index = new int[1];
+            reader.query(Long.MIN_VALUE, Long.MAX_VALUE, new TrackLogReader.Visitor() {
+                @Override
+                public void onHeading(long timestamp, float azimuth, int accuracy) {
+                    int i = index[0]++;
+                    assertEquals(START + i * PERIOD_NANOS, timestamp);
+                    // Kept to a hundredth of a degree, so just short of north rounds to 0.
+                    float error = Math.abs(azimuth(i) - azimuth);
+                    assertEquals(0, Math.min(error, 360 - error), 0.006f);
+                    assertEquals(accuracy(i), accuracy);
+                }
+            });
+            assertEquals(count, index[0]);
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    @Test
+    public void queriesASpanOfTime() throws IOException {
+        File file = record(20_000);
+        TrackLogReader reader = new TrackLogReader(file);
+        try {
+            final List<Long> timestamps = new ArrayList<>();
+            TrackLogReader.Visitor visitor = new TrackLogReader.Visitor() {
+                @Override
+                public void onHeading(long timestamp, float azimuth, int accuracy) {
+                    timestamps.add(timestamp);
+                }
+            };
+
+            // From halfway between two headings to exactly on one.
+            reader.query(START + 12_345 * PERIOD_NANOS - PERIOD_NANOS / 2,
+                    START + 13_000 * PERIOD_NANOS, visitor);
+            assertEquals(655, timestamps.size());
+            assertEquals(START + 12_345 * PERIOD_NANOS, (long)timestamps.get(0));
+            assertEquals(START + 12_999 * PERIOD_NANOS, (long)timestamps.get(654));
+
+            timestamps.clear();
+            reader.query(0, START, visitor);
+            assertTrue(timestamps.isEmpty());
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    @Test
+    public void exportsCsv() throws IOException {
+        File file = record(3000);
+        TrackLogReader reader = new TrackLogReader(file);
+        StringWriter csv = new StringWriter();
+        try {
+            reader.exportCsv(csv);
+        } finally {
+            reader.close();
+        }
+
+        BufferedReader lines = new BufferedReader(new StringReader(csv.toString()));
+        assertEquals("timestamp_ns,wall_clock_ms,heading_deg,accuracy", lines.readLine());
+        assertEquals(START + "," + (START_MILLIS + 1000) + ",0.00,0", lines.readLine());
+        int count = 1;
+        String last = null;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            last = line;
+            count++;
+        }
+        assertEquals(3000, count);
+        assertEquals(String.format(Locale.US, "%d,%d,%.2f,%d", START + 2999 * PERIOD_NANOS,
+                START_MILLIS + 1000 + 2999 * 100, azimuth(2999), accuracy(2999)), last);
+    }
+
+
+    @Test
+    public void syncMakesEveryHeadingReadable() throws Exception {
+        File file = folder.newFile("track.bin");
+        TrackLog log = new TrackLog(file, 1 << 16, START_MILLIS, START_NANOS);
+        log.start();
+        try {
+            for (int i = 0; i < 5000; i++) {
+                log.record(START + i * PERIOD_NANOS, azimuth(i), accuracy(i));
+            }
+            log.sync();
+
+            // Still open, and the writer would not flush by itself for a while yet.
+            TrackLogReader reader = new TrackLogReader(file);
+            try {
+                assertEquals(5000, reader.size());
+                assertEquals(START_MILLIS, reader.getStartMillis());
+                assertEquals(START_MILLIS + 1500,
+                        reader.toWallClockMillis(START + 5 * PERIOD_NANOS));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            log.close();
+        }
+        // Once closed there is nothing to wait for.
+        log.sync();
+    }
+
+
+    // Make a block's count of headings far more than it holds, as if read halfway through
+    // being rewritten.
+    private static void tearBlock(File file, int block) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(TrackLog.HEADER_SIZE + (long)block * TrackLog.BLOCK_SIZE + 8);
+            out.write(new byte[] {0, 0, 1, 0});
+        } finally {
+            out.close();
+        }
+    }
+
+
+    @Test
+    public void aTornLastBlockEndsTheLog() throws IOException {
+        File file = record(3000);
+        TrackLogReader reader = new TrackLogReader(file);
+        int blocks = reader.getBlockCount();
+        reader.close();
+        tearBlock(file, blocks - 1);
+
+        reader = new TrackLogReader(file);
+        StringWriter csv = new StringWriter();
+        final int[] count = new int[1];
+        try {
+            reader.exportCsv(csv);
+            reader.query(Long.MIN_VALUE, Long.MAX_VALUE, new TrackLogReader.Visitor() {
+                @Override
+                public void onHeading(long timestamp, float azimuth, int accuracy) {
+                    count[0]++;
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        // The headings up to the tear are still read.
+        assertEquals(3000, count[0]);
+        assertEquals(3001, csv.toString().split("\n").length);
+    }
+
+
+    @Test(expected = IOException.class)
+    public void anyOtherBadBlockIsCorrupt() throws IOException {
+        File file = record(3000);
+        tearBlock(file, 0);
+        TrackLogReader reader = new TrackLogReader(file);
+        try {
+            reader.exportCsv(new StringWriter());
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    @Test(expected = IOException.class)
+    public void rejectsFilesThatAreNotTrackLogs() throws IOException {
+        new TrackLogReader(folder.newFile("empty.bin"));
+    }
+}
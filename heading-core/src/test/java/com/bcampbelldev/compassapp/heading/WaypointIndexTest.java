@@ -0,0 +1,131 @@
+package com.bcampbelldev.compassapp.heading;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the index's searches against brute force, reading waypoints from CSV, and when the
+ * nearest waypoints are searched again.
+ */
+public class WaypointIndexTest {
+
+    @Test
+    public void findsTheSameNearestWaypointsAsABruteForceSearch() {
+        Random random = new Random(42);
+        int n = 5000;
+        String[] names = new String[n];
+        float[] latitudes = new float[n];
+        float[] longitudes = new float[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "wp" + i;
+            latitudes[i] = (float)Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+            longitudes[i] = random.nextFloat() * 360f - 180f;
+        }
+        WaypointIndex index = new WaypointIndex(names, latitudes, longitudes);
+
+        int[] found = new int[5];
+        float[] distances = new float[5];
+        for (int query = 0; query < 50; query++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lon = random.nextDouble() * 360 - 180;
+            assertEquals(5, index.findNearest(lat, lon, found, distances));
+
+            double[] expected = new double[n];
+            for (int i = 0; i < n; i++) {
+                expected[i] = NearestWaypoints.distance(lat, lon, latitudes[i], longitudes[i]);
+            }
+            Arrays.sort(expected);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(expected[i], distances[i], 1.0);
+            }
+        }
+    }
+
+
+    @Test
+    public void findsEveryWaypointWithinARadius() {
+        Random random = new Random(7);
+        int n = 2000;
+        String[] names = new String[n];
+        float[] latitudes = new float[n];
+        float[] longitudes = new float[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "wp" + i;
+            latitudes[i] = 46f + random.nextFloat();
+            longitudes[i] = -122f + random.nextFloat();
+        }
+        WaypointIndex index = new WaypointIndex(names, latitudes, longitudes);
+
+        int[] found = new int[n];
+        int count = index.findWithin(46.5, -121.5, 20_000f, found);
+        int expected = 0;
+        for (int i = 0; i < n; i++) {
+            if (NearestWaypoints.distance(46.5, -121.5, latitudes[i], longitudes[i]) <= 20_000) {
+                expected++;
+            }
+        }
+        assertTrue(expected > 0);
+        assertEquals(expected, count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(NearestWaypoints.distance(46.5, -121.5, index.getLatitude(found[i]),
+                    index.getLongitude(found[i])) <= 20_010);
+        }
+
+        // The output is full before the search is.
+        assertEquals(5, index.findWithin(46.5, -121.5, 20_000f, new int[5]));
+    }
+
+
+    @Test
+    public void readsCsvWithHeaderAndCommasInNames() throws IOException {
+        WaypointIndex index = WaypointIndex.read(new StringReader(
+                "name,latitude,longitude\n"
+                + "# comment\n"
+                + "\n"
+                + "Trailhead, north lot,46.5,-121.25\n"
+                + "Summit,46.8528,-121.7604\n"));
+
+        assertEquals(2, index.size());
+        int[] found = new int[1];
+        float[] distances = new float[1];
+        index.findNearest(46.5, -121.25, found, distances);
+        assertEquals("Trailhead, north lot", index.getName(found[0]));
+        assertEquals(0f, distances[0], 1f);
+    }
+
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidLines() throws IOException {
+        WaypointIndex.read(new StringReader("Summit,46.8,-121.7\nbroken line\n"));
+    }
+
+
+    @Test
+    public void recomputesOnlyAfterAMeaningfulMove() {
+        WaypointIndex index = new WaypointIndex(new String[] {"east", "north", "far"},
+                new float[] {0f, 0.01f, 10f}, new float[] {0.01f, 0f, 10f});
+        NearestWaypoints nearest = new NearestWaypoints(index, 2, 50f,
+                CompassPoints.THIRTY_TWO_POINT);
+
+        assertTrue(nearest.setLocation(0, 0));
+        assertEquals(2, nearest.size());
+        assertEquals(1112f, nearest.getDistance(0), 2f);
+        assertFalse(nearest.setLocation(0.0001, 0));
+        assertTrue(nearest.setLocation(0.001, 0));
+
+        // North is now closer, and facing east it is a quarter turn to the left.
+        nearest.setHeading(90f);
+        assertEquals("north", nearest.getName(0));
+        assertEquals(0f, nearest.getBearing(0), 0.01f);
+        assertEquals("N", nearest.getBearingPoint(0));
+        assertEquals(-90f, nearest.getRelativeAngle(0), 0.01f);
+        assertEquals("east", nearest.getName(1));
+        assertEquals(5.7f, nearest.getRelativeAngle(1), 0.1f);
+    }
+}
@@ -0,0 +1,55 @@
+#!/bin/sh
+# Measures cold start of MainActivity on a connected device or emulator.
+#
+# Usage: scripts/cold-start.sh [runs]
+#
+# Each run kills the app, drops the page cache where the device allows it (rooted or userdebug
+# builds) and starts MainActivity with `am start -W`. Two times are reported per run:
+#   TotalTime   - until the first frame of MainActivity was drawn
+#   FullyDrawn  - until the first heading was shown (MainActivity calls reportFullyDrawn())
+# followed by the median of each. Compare medians on the same device before and after a change.
+#
+# For a breakdown by phase, capture a trace while starting the app, e.g.
+#   python systrace.py -a com.bcampbelldev.compassapp am wm gfx view sched -t 5
+# and look for the MainActivity.* sections.
+
+PACKAGE=com.bcampbelldev.compassapp
+ACTIVITY=$PACKAGE/.MainActivity
+RUNS=${1:-10}
+
+total_times=""
+drawn_times=""
+
+i=1
+while [ "$i" -le "$RUNS" ]; do
+    adb shell am force-stop $PACKAGE
+    adb shell "echo 3 > /proc/sys/vm/drop_caches" > /dev/null 2>&1
+    sleep 1
+    adb logcat -c
+
+    total=$(adb shell am start -W -n $ACTIVITY | tr -d '\r' | awk '/TotalTime/ { print $2 }')
+
+    # reportFullyDrawn is logged by the activity manager, e.g. "Fully drawn ...: +412ms".
+    drawn=""
+    tries=0
+    while [ -z "$drawn" ] && [ "$tries" -lt 10 ]; do
+        sleep 0.5
+        drawn=$(adb logcat -d -s ActivityManager:I ActivityTaskManager:I | tr -d '\r' \
+            | grep "Fully drawn $ACTIVITY" | sed -E 's/.*\+(([0-9]+)s)?([0-9]+)ms.*/\2 \3/' \
+            | awk '{ if (NF == 2) print $1 * 1000 + $2; else print $1 }' | tail -n 1)
+        tries=$((tries + 1))
+    done
+
+    echo "run $i: TotalTime=${total}ms FullyDrawn=${drawn:-?}ms"
+    total_times="$total_times $total"
+    [ -n "$drawn" ] && drawn_times="$drawn_times $drawn"
+    i=$((i + 1))
+done
+
+median() {
+    echo "$@" | tr ' ' '\n' | grep . | sort -n | awk '{ a[NR] = $1 } END {
+        if (NR == 0) print "?"; else if (NR % 2) print a[(NR + 1) / 2];
+        else print (a[NR / 2] + a[NR / 2 + 1]) / 2 }'
+}
+
+echo "median: TotalTime=$(median $total_times)ms FullyDrawn=$(median $drawn_times)ms"